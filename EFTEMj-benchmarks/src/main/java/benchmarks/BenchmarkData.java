@@ -0,0 +1,201 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Vector;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.process.StackConverter;
+import libs.lma.LMA;
+import sr_eels.CameraSetup;
+import sr_eels.SR_EELS_Polynomial_2D;
+
+/**
+ * Loads the test data of the benchmarks from the EFTEMj JAR file.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class BenchmarkData {
+
+	/**
+	 * The example EFTEM stack with the Fe-L edge at 708 eV.
+	 */
+	public static final String FE_STACK =
+		"/example-images/EFTEM-Stack_Fe_50counts.tif";
+	/**
+	 * The energy losses of the slices of {@link #FE_STACK}.
+	 */
+	public static final float[] FE_ENERGY_LOSSES = { 617, 672, 694, 717 };
+	/**
+	 * The edge energy loss that is used for {@link #FE_STACK}.
+	 */
+	public static final float FE_EDGE = 700;
+	/**
+	 * The folder that contains the characterisation results of an SR-EELS
+	 * dataset.
+	 */
+	public static final String SR_EELS_RESULTS =
+		"/testing/sr_eels/lma/results_642562568Li/";
+	public static final String BORDERS_TXT = "Borders.txt";
+	public static final String WIDTH_TXT = "Width.txt";
+
+	private BenchmarkData() {
+		// Only static methods
+	}
+
+	/**
+	 * @return The example EFTEM stack as 32-bit image.
+	 * @throws IOException if the stack is not found.
+	 */
+	public static ImagePlus openFeStack() throws IOException {
+		final InputStream is = open(FE_STACK);
+		try {
+			final ImagePlus imp = new Opener().openTiff(is, "Fe");
+			if (imp == null) throw new IOException("Can't open " + FE_STACK);
+			new StackConverter(imp).convertToGray32();
+			return imp;
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Reads <code>Borders.txt</code> or <code>Width.txt</code> and prepares the
+	 * data points the same way as the SR-EELS correction: Each data point is
+	 * <code>{y, x1, x2}</code> and the coordinates are relative to the centre
+	 * of the camera.
+	 *
+	 * @param fileName {@link #BORDERS_TXT} or {@link #WIDTH_TXT}.
+	 * @return The data points that are used to fit the 2D polynomial.
+	 * @throws IOException if the file is not found.
+	 */
+	public static double[][] readDataPoints(final String fileName)
+		throws IOException
+	{
+		final boolean isBorders = BORDERS_TXT.equals(fileName);
+		final Vector<double[]> values = new Vector<double[]>();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+			open(SR_EELS_RESULTS + fileName)));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.indexOf('#') != -1) continue;
+				final String[] splitLine = line.trim().split("\\s+");
+				if (splitLine.length < 3) continue;
+				final double x1 = Double.parseDouble(splitLine[0]);
+				final double x2 = Double.parseDouble(splitLine[1]);
+				final double y = Double.parseDouble(splitLine[2]);
+				values.add(new double[] { isBorders ? y - CameraSetup
+					.getFullHeight() / 2 : y, x1 - CameraSetup.getFullWidth() / 2, x2 -
+						CameraSetup.getFullHeight() / 2 });
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return values.toArray(new double[values.size()][]);
+	}
+
+	/**
+	 * Fits the 2D polynomial like the SR-EELS correction does.
+	 *
+	 * @param fileName {@link #BORDERS_TXT} or {@link #WIDTH_TXT}.
+	 * @return The fitted polynomial.
+	 * @throws IOException if the file is not found.
+	 */
+	public static SR_EELS_Polynomial_2D fitPolynomial(final String fileName)
+		throws IOException
+	{
+		final int m = getOrderX1(fileName);
+		final int n = 2;
+		final double[] parameters = new double[(m + 1) * (n + 1)];
+		Arrays.fill(parameters, 1.);
+		new LMA(new SR_EELS_Polynomial_2D(m, n), parameters, readDataPoints(
+			fileName)).fit();
+		return new SR_EELS_Polynomial_2D(m, n, parameters);
+	}
+
+	/**
+	 * @param fileName {@link #BORDERS_TXT} or {@link #WIDTH_TXT}.
+	 * @return The order in x1 that is used by the SR-EELS correction. The order
+	 *         in x2 is always 2.
+	 */
+	public static int getOrderX1(final String fileName) {
+		return BORDERS_TXT.equals(fileName) ? 3 : 2;
+	}
+
+	/**
+	 * Copies a file of {@link #SR_EELS_RESULTS} to a temporary folder, as the
+	 * SR-EELS correction expects a path.
+	 *
+	 * @param fileName {@link #BORDERS_TXT} or {@link #WIDTH_TXT}.
+	 * @return The path of the copy. The file is deleted on exit.
+	 * @throws IOException if the file is not found.
+	 */
+	public static String copyToTempFile(final String fileName)
+		throws IOException
+	{
+		final File file = File.createTempFile("EFTEMj_", "_" + fileName);
+		file.deleteOnExit();
+		final InputStream is = open(SR_EELS_RESULTS + fileName);
+		try {
+			final OutputStream os = new FileOutputStream(file);
+			try {
+				final byte[] buffer = new byte[8192];
+				int n;
+				while ((n = is.read(buffer)) > 0) {
+					os.write(buffer, 0, n);
+				}
+			}
+			finally {
+				os.close();
+			}
+		}
+		finally {
+			is.close();
+		}
+		return file.getAbsolutePath();
+	}
+
+	private static InputStream open(final String path) throws IOException {
+		final InputStream is = BenchmarkData.class.getResourceAsStream(path);
+		if (is == null) throw new IOException("File not found in JAR at " +
+			path);
+		return is;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import elemental_map.ElementalMapping;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import elemental_map.SyntheticEFTEMSeries;
+import ij.ImagePlus;
+
+/**
+ * Measures the elemental mapping of a {@link SyntheticEFTEMSeries} at several
+ * image sizes. A 16k series needs about 10 GB of memory, e.g.
+ * <code>-p size=16384 -jvmArgs -Xmx16g</code>.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ElementalMappingBenchmark {
+
+	private static final float EPSILON = 1e-6f;
+
+	@Param({ "1024", "4096" })
+	public int size;
+
+	@Param({ "LSE", "MLE" })
+	public String method;
+
+	/**
+	 * <code>false</code> fits each pixel by an instance of
+	 * {@link elemental_map.PowerLawFit} (see
+	 * {@link ElementalMapping#setUseKernel(boolean)}).
+	 */
+	@Param({ "true", "false" })
+	public boolean useKernel;
+
+	private ImagePlus stack;
+
+	@Setup
+	public void setup() {
+		stack = new SyntheticEFTEMSeries(size, size,
+			BenchmarkData.FE_ENERGY_LOSSES, BenchmarkData.FE_EDGE).create();
+	}
+
+	/**
+	 * @return The mapping, to keep the JIT from skipping the calculation.
+	 */
+	@Benchmark
+	public ElementalMapping mapping() {
+		final ElementalMapping mapping = new ElementalMapping(
+			BenchmarkData.FE_ENERGY_LOSSES, stack, BenchmarkData.FE_EDGE, EPSILON,
+			AVAILABLE_METHODS.valueOf(method));
+		mapping.setUseKernel(useKernel);
+		mapping.startCalculation();
+		return mapping;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eftemj.EFTEMj_ComputePool;
+import libs.lma.LMA;
+import libs.lma.LMAMatrix;
+import sr_eels.SR_EELS_Polynomial_2D;
+
+/**
+ * Measures the fit of the 2D polynomials that describe the borders and the
+ * width of an SR-EELS dataset. The data is taken from
+ * {@link BenchmarkData#SR_EELS_RESULTS} and the fit is set up like at the
+ * SR-EELS correction.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LMABenchmark {
+
+	@Param({ BenchmarkData.BORDERS_TXT, BenchmarkData.WIDTH_TXT })
+	public String data;
+
+	/**
+	 * Use the shared compute pool (<code>true</code>) or fit at the calling
+	 * {@link Thread} (<code>false</code>).
+	 */
+	@Param({ "false", "true" })
+	public boolean parallel;
+
+	private double[][] dataPoints;
+	private int m;
+	private int n;
+
+	@Setup
+	public void setup() throws IOException {
+		dataPoints = BenchmarkData.readDataPoints(data);
+		m = BenchmarkData.getOrderX1(data);
+		n = 2;
+	}
+
+	/**
+	 * @return The fitted parameters, to keep the JIT from skipping the fit.
+	 * @throws LMAMatrix.InvertException if the fit fails.
+	 */
+	@Benchmark
+	public double[] fit() throws LMAMatrix.InvertException {
+		final SR_EELS_Polynomial_2D func = new SR_EELS_Polynomial_2D(m, n);
+		final double[] parameters = new double[(m + 1) * (n + 1)];
+		Arrays.fill(parameters, 1.);
+		final LMA lma = new LMA(func, parameters, dataPoints);
+		if (parallel) lma.setExecutorService(EFTEMj_ComputePool
+			.getExecutorService());
+		lma.fit();
+		return parameters;
+	}
+}
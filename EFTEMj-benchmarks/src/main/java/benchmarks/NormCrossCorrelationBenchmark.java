@@ -0,0 +1,106 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import drift.NormCrossCorrelation;
+import drift.SyntheticDriftStack;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Measures the normalised cross-correlation of the drift detection for
+ * several template sizes and maximum shifts. Both images are created by
+ * {@link SyntheticDriftStack}.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NormCrossCorrelationBenchmark {
+
+	/**
+	 * The size of the template (the cropped reference image).
+	 */
+	@Param({ "64", "256", "512" })
+	public int templateSize;
+
+	/**
+	 * The maximum shift in x- and y-direction.
+	 */
+	@Param({ "8", "32" })
+	public int maxShift;
+
+	@Param({ "false", "true" })
+	public boolean coefficient;
+
+	private ImageProcessor reference;
+	private ImageProcessor image;
+
+	@Setup
+	public void setup() {
+		final int size = templateSize + 2 * maxShift;
+		final SyntheticDriftStack generator = new SyntheticDriftStack(size, size,
+			2);
+		generator.setMaxShift(maxShift / 2.0);
+		final ImageStack stack = generator.create().getStack();
+		reference = stack.getProcessor(1);
+		image = stack.getProcessor(2);
+	}
+
+	/**
+	 * @return The cross-correlation map, to keep the JIT from skipping the
+	 *         calculation.
+	 */
+	@Benchmark
+	public ImagePlus crossCorrelation() {
+		final NormCrossCorrelation ncc = new NormCrossCorrelation(reference,
+			image, maxShift, maxShift);
+		ncc.useCoefficient(coefficient);
+		ncc.startCalculation();
+		return ncc.getCrossCorrelationMap();
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import elemental_map.ElementalMapping;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import elemental_map.PowerLawFit;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Measures the power law fits of the elemental mapping: A single fit of one
+ * pixel and the fit of all pixels of the example EFTEM stack.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PowerLawFitBenchmark {
+
+	/**
+	 * The number of pixels that are fitted in turn by {@link #perPixel()}.
+	 * Different pixels prevent that the JIT optimises a constant input.
+	 */
+	private static final int PIXELS = 1024;
+	private static final float EPSILON = 1e-6f;
+
+	@Param({ "LSE", "WLSE", "MLE", "LMA" })
+	public String method;
+
+	/**
+	 * <code>false</code> fits each pixel by an instance of {@link PowerLawFit}
+	 * (see {@link ElementalMapping#setUseKernel(boolean)}). Only used by
+	 * {@link #perFrame()}.
+	 */
+	@Param({ "true", "false" })
+	public boolean useKernel;
+
+	private AVAILABLE_METHODS fitMethod;
+	private ImagePlus stack;
+	private double[] preEdgeEnergyLosses;
+	private double[][] preEdgeCounts;
+	private int pixel;
+
+	@Setup
+	public void setup() throws IOException {
+		fitMethod = AVAILABLE_METHODS.valueOf(method);
+		stack = BenchmarkData.openFeStack();
+		int count = 0;
+		while (count < BenchmarkData.FE_ENERGY_LOSSES.length &&
+			BenchmarkData.FE_ENERGY_LOSSES[count] < BenchmarkData.FE_EDGE)
+		{
+			count++;
+		}
+		preEdgeEnergyLosses = new double[count];
+		for (int i = 0; i < count; i++) {
+			preEdgeEnergyLosses[i] = BenchmarkData.FE_ENERGY_LOSSES[i];
+		}
+		final ImageStack imageStack = stack.getStack();
+		final int pixelCount = stack.getWidth() * stack.getHeight();
+		final int step = Math.max(1, pixelCount / PIXELS);
+		preEdgeCounts = new double[PIXELS][count];
+		for (int p = 0; p < PIXELS; p++) {
+			final int index = (p * step) % pixelCount;
+			for (int i = 0; i < count; i++) {
+				preEdgeCounts[p][i] = imageStack.getProcessor(i + 1).getf(index);
+			}
+		}
+	}
+
+	/**
+	 * The fit of a single pixel as done by the elemental mapping.
+	 *
+	 * @return The fitted r, to keep the JIT from skipping the fit.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public double perPixel() {
+		pixel = (pixel + 1) % PIXELS;
+		final PowerLawFit fit = ElementalMapping.createPowerLawFit(fitMethod,
+			preEdgeEnergyLosses, preEdgeCounts[pixel], EPSILON);
+		fit.doFit();
+		return fit.getR();
+	}
+
+	/**
+	 * The elemental mapping of the whole stack, including the extrapolation of
+	 * the background, using the shared compute pool.
+	 *
+	 * @return The mapping, to keep the JIT from skipping the calculation.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ElementalMapping perFrame() {
+		final ElementalMapping mapping = new ElementalMapping(
+			BenchmarkData.FE_ENERGY_LOSSES, stack, BenchmarkData.FE_EDGE, EPSILON,
+			fitMethod);
+		mapping.setUseKernel(useKernel);
+		mapping.startCalculation();
+		return mapping;
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import sr_eels.SR_EELS_CorrectionPlugin;
+import sr_eels.SyntheticSR_EELSImage;
+
+/**
+ * Measures the full SR-EELS correction: Reading the characterisation
+ * results, fitting both 2D polynomials and correcting the image. The image is
+ * created by {@link SyntheticSR_EELSImage} from the same characterisation
+ * results.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SR_EELS_CorrectionBenchmark {
+
+	/**
+	 * The width and height of the image. The binning is calculated from the
+	 * size of the camera.
+	 */
+	@Param({ "1024", "2048" })
+	public int size;
+
+	private ImagePlus image;
+	private String pathBorders;
+	private String pathWidth;
+
+	@Setup
+	public void setup() throws IOException {
+		pathBorders = BenchmarkData.copyToTempFile(BenchmarkData.BORDERS_TXT);
+		pathWidth = BenchmarkData.copyToTempFile(BenchmarkData.WIDTH_TXT);
+		image = new SyntheticSR_EELSImage(size, size, BenchmarkData.fitPolynomial(
+			BenchmarkData.BORDERS_TXT), BenchmarkData.fitPolynomial(
+				BenchmarkData.WIDTH_TXT)).create();
+	}
+
+	/**
+	 * @return The corrected image, to keep the JIT from skipping the
+	 *         correction.
+	 */
+	@Benchmark
+	public ImagePlus correction() {
+		return new SR_EELS_CorrectionPlugin().correctImage(image, pathBorders,
+			pathWidth);
+	}
+}
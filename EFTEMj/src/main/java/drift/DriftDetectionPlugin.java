@@ -35,6 +35,7 @@
 import javax.naming.InitialContext;
 
 import eftemj.EFTEMj;
+import eftemj.EFTEMj_Progress;
 import gui.ExtendedWaitForUserDialog;
 import ij.IJ;
 import ij.ImageJ;
@@ -141,6 +142,8 @@ public class DriftDetectionPlugin implements ExtendedPlugInFilter {
 	@Override
 	public int setup(final String arg, final ImagePlus imp) {
 		if (arg == "final") {
+			// The drift detection has been cancelled.
+			if (driftArray == null) return NO_CHANGES | DONE;
 			final ResultsTable result = new ResultsTable();
 			// only integer values are used
 			result.setPrecision(0);
@@ -173,16 +176,31 @@ public int setup(final String arg, final ImagePlus imp) {
 	public void run(final ImageProcessor ip) {
 		final NormCrossCorrelation[] ccArray = prepareCC();
 		driftArray = new Point[ccArray.length];
-		for (int i = 0; i < ccArray.length; i++) {
-			if (ccArray[i] != null) {
-				ccArray[i].startCalculation();
-				driftArray[i] = NormCrossCorrelation.findMax(ccArray[i]
-					.getCrossCorrelationMap());
-			}
-			else {
-				driftArray[i] = new Point(0, 0);
+		// this is the count of subtasks
+		final EFTEMj_Progress progress = EFTEMj_Progress.start("Drift detection",
+			(ccArray.length - 1) * (deltaY * 2 + 1));
+		try {
+			for (int i = 0; i < ccArray.length; i++) {
+				if (progress.isCancelled()) break;
+				if (ccArray[i] != null) {
+					ccArray[i].setProgress(progress);
+					ccArray[i].startCalculation();
+					driftArray[i] = NormCrossCorrelation.findMax(ccArray[i]
+						.getCrossCorrelationMap());
+				}
+				else {
+					driftArray[i] = new Point(0, 0);
+				}
 			}
 		}
+		finally {
+			progress.finish();
+		}
+		if (progress.isCancelled()) {
+			driftArray = null;
+			canceled();
+			return;
+		}
 		// OptimisedStackShifter will modify the Array
 		shiftArray = Arrays.copyOf(driftArray, driftArray.length);
 		if (performShift == true) {
@@ -284,9 +302,6 @@ private NormCrossCorrelation[] prepareCC() {
 				ccArray[i] = null;
 			}
 		}
-		// this is the count of subtasks
-		NormCrossCorrelation.setProgressSteps((ccArray.length - 1) * (deltaY * 2 +
-			1));
 		return ccArray;
 	}
 
@@ -28,11 +28,9 @@
 package drift;
 
 import java.awt.Point;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
-import ij.IJ;
+import eftemj.EFTEMj_ComputePool;
+import eftemj.EFTEMj_Progress;
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
@@ -92,15 +90,10 @@ public class NormCrossCorrelation {
 	 */
 	private double squareSumT;
 	/**
-	 * This field indicates the progress. A static method is used to increase the
-	 * value by 1. It is necessary to use volatile because different
-	 * {@link Thread}s call the related method.
+	 * The job that shows the progress. Each row of the map is a step. If
+	 * <code>null</code>, each calculation creates its own job.
 	 */
-	private static volatile int progress;
-	/**
-	 * Number of steps until the drift detection is finished.
-	 */
-	private static int progressSteps;
+	private EFTEMj_Progress progress;
 
 	/**
 	 * Creates an instance of {@link NormCrossCorrelation} and prepares the
@@ -122,7 +115,6 @@ public NormCrossCorrelation(final ImageProcessor ip1,
 		mapHeight = 2 * shiftY + 1;
 		normCrossCorrelationMap = new FloatProcessor(mapWidth, mapHeight,
 			new double[mapWidth * mapHeight]);
-		progressSteps = mapHeight;
 	}
 
 	/**
@@ -141,23 +133,26 @@ public void useCoefficient(final boolean bool) {
 	 * cross-correlation (coefficient) values as a background task.
 	 */
 	public void startCalculation() {
-		final ExecutorService executorService = Executors.newFixedThreadPool(Runtime
-			.getRuntime().availableProcessors());
+		final boolean ownProgress = progress == null;
+		final EFTEMj_Progress job = ownProgress ? EFTEMj_Progress.start(
+			"Drift detection", mapHeight) : progress;
 		if (useCoefficient == true) {
 			calculateMeanAndSigma();
 		}
 		else {
 			calculateSquareSumT();
 		}
-		for (int s = 0; s < mapHeight; s++) {
-			executorService.execute(new NormCrossCorrelationTask(s));
-		}
-		executorService.shutdown();
 		try {
-			executorService.awaitTermination(5, TimeUnit.MINUTES);
+			EFTEMj_ComputePool.forEach(mapHeight, new EFTEMj_ComputePool.IndexTask() {
+
+				@Override
+				public void run(final int s) {
+					new NormCrossCorrelationTask(s, job).run();
+				}
+			});
 		}
-		catch (final InterruptedException e) {
-			e.printStackTrace();
+		finally {
+			if (ownProgress) job.finish();
 		}
 	}
 
@@ -241,26 +236,23 @@ public static Point findMax(final ImagePlus map) {
 	}
 
 	/**
-	 * {@link NormCrossCorrelationTask} will use this method to update the
-	 * process.
+	 * You only need this method if more than one instance of
+	 * {@link NormCrossCorrelation} is used. All instances can share one job,
+	 * that is started and finished by the caller. Without a job each
+	 * calculation shows its own progress.
+	 *
+	 * @param progress A job with <code>N * (2 * shiftY + 1)</code> steps for N
+	 *          instances of {@link NormCrossCorrelation}.
 	 */
-	private static void updateProgress() {
-		progress++;
-		IJ.showProgress(progress, progressSteps);
+	public void setProgress(final EFTEMj_Progress progress) {
+		this.progress = progress;
 	}
 
 	/**
-	 * You only need this method if more than one instance of
-	 * {@link NormCrossCorrelation} is used. The constructor will set the right
-	 * number of steps if only one instance is used. Call this method after
-	 * creating all instances.
-	 *
-	 * @param steps for N instances of {@link NormCrossCorrelation} this is
-	 *          <code>N * (2 * shiftY + 1)</code>
+	 * @return The number of steps of a single calculation.
 	 */
-	public static void setProgressSteps(final int steps) {
-		progressSteps = steps;
-		progress = 0;
+	public int getProgressSteps() {
+		return mapHeight;
 	}
 
 	/**
@@ -280,26 +272,32 @@ private class NormCrossCorrelationTask implements Runnable {
 		 * cross-correlation (coefficient) values.
 		 */
 		private final float[] result;
+		private final EFTEMj_Progress job;
 
 		/**
 		 * @param column that is processed by this new instance of
 		 *          {@link NormCrossCorrelationTask}
+		 * @param job The job that shows the progress.
 		 */
-		public NormCrossCorrelationTask(final int column) {
+		public NormCrossCorrelationTask(final int column,
+			final EFTEMj_Progress job)
+		{
 			super();
 			s = column;
+			this.job = job;
 			result = new float[normCrossCorrelationMap.getWidth()];
 		}
 
 		@Override
 		public void run() {
+			if (job.isCancelled()) return;
 			if (useCoefficient == true) {
 				calculateCoefficient();
 			}
 			else {
 				calculateCorrelation();
 			}
-			NormCrossCorrelation.updateProgress();
+			job.step();
 		}
 
 		private void calculateCorrelation() {
@@ -0,0 +1,243 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package drift;
+
+import eftemj.EFTEMj_ComputePool;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import tools.PoissonRandom;
+
+/**
+ * <p>
+ * Creates a stack of images that are shifted by known subpixel values. The
+ * content of each image is a pattern of Gaussian spots that is calculated
+ * analytically at the shifted coordinates, so no interpolation is involved.
+ * The spots are placed on a jittered grid and have random intensities, so
+ * the cross-correlation has a single maximum.
+ * </p>
+ * <p>
+ * The first image is the reference. The content of image <code>i</code> is
+ * moved by <code>(shift[i][0], shift[i][1])</code>:
+ * <code>image<sub>i</sub>(x, y) = reference(x - shift[i][0], y - shift[i][1])</code>
+ * . The rows are created in parallel by the {@link EFTEMj_ComputePool}. Each
+ * row uses its own random numbers, so the result only depends on the seed and
+ * not on the number of {@link Thread}s.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class SyntheticDriftStack {
+
+	private final int width;
+	private final int height;
+	private final int slices;
+	private double maxShift = 10;
+	private double[][] shifts;
+	private int spotSpacing = 32;
+	private double background = 50;
+	private double spotCounts = 200;
+	private boolean poissonNoise = true;
+	private long seed;
+
+	/**
+	 * @param width The width of the images.
+	 * @param height The height of the images.
+	 * @param slices The number of images, including the reference.
+	 */
+	public SyntheticDriftStack(final int width, final int height,
+		final int slices)
+	{
+		if (width < 1 || height < 1 || slices < 1)
+			throw new IllegalArgumentException(
+				"The size has to be at least 1x1x1.");
+		this.width = width;
+		this.height = height;
+		this.slices = slices;
+	}
+
+	/**
+	 * @param maxShift The maximum random shift in x- and y-direction (default
+	 *          10 pixels). It is not used if the shifts are set by
+	 *          {@link #setShifts(double[][])}.
+	 */
+	public void setMaxShift(final double maxShift) {
+		this.maxShift = maxShift;
+	}
+
+	/**
+	 * @param shifts The shift of each image: <code>shifts[i][0]</code> is the
+	 *          shift in x-direction and <code>shifts[i][1]</code> in
+	 *          y-direction. <code>null</code> to use random shifts (default).
+	 */
+	public void setShifts(final double[][] shifts) {
+		if (shifts != null && shifts.length != slices)
+			throw new IllegalArgumentException("There have to be " + slices +
+				" shifts.");
+		this.shifts = shifts == null ? null : copy(shifts);
+	}
+
+	/**
+	 * @param spacing The distance of two spots in pixels (default 32).
+	 */
+	public void setSpotSpacing(final int spacing) {
+		if (spacing < 2) throw new IllegalArgumentException(
+			"The spot spacing has to be at least 2.");
+		spotSpacing = spacing;
+	}
+
+	/**
+	 * @param background The counts between the spots (default 50).
+	 * @param spotCounts The maximum counts that are added by a spot (default
+	 *          200).
+	 */
+	public void setCounts(final double background, final double spotCounts) {
+		this.background = background;
+		this.spotCounts = spotCounts;
+	}
+
+	/**
+	 * @param poissonNoise <code>false</code> to create the exact counts
+	 *          (default <code>true</code>).
+	 */
+	public void setPoissonNoise(final boolean poissonNoise) {
+		this.poissonNoise = poissonNoise;
+	}
+
+	/**
+	 * @param seed The seed of the pattern, the random shifts and the Poisson
+	 *          noise (default 0).
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Creates the stack. If no shifts have been set, new random shifts are
+	 * created. The first image is never shifted.
+	 *
+	 * @return A 32-bit stack.
+	 */
+	public ImagePlus create() {
+		if (shifts == null) {
+			final PoissonRandom random = new PoissonRandom(seed);
+			shifts = new double[slices][2];
+			for (int i = 1; i < slices; i++) {
+				shifts[i][0] = maxShift * (2 * random.nextDouble() - 1);
+				shifts[i][1] = maxShift * (2 * random.nextDouble() - 1);
+			}
+		}
+		final FloatProcessor[] images = new FloatProcessor[slices];
+		final ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < slices; i++) {
+			images[i] = new FloatProcessor(width, height);
+			stack.addSlice(String.format("dx=%.3f dy=%.3f", shifts[i][0],
+				shifts[i][1]), images[i]);
+		}
+		final double sigma = spotSpacing / 6.0;
+		final double factor = -1 / (2 * sigma * sigma);
+		EFTEMj_ComputePool.forEach(height, new EFTEMj_ComputePool.IndexTask() {
+
+			@Override
+			public void run(final int y) {
+				final PoissonRandom random = new PoissonRandom(seed * height + y);
+				// The spots of the 3 cell rows around the pixel, including the
+				// neighbouring cells left and right of the image.
+				final int cells = (width - 1) / spotSpacing + 4;
+				final double[][] spotX = new double[3][cells];
+				final double[][] spotY = new double[3][cells];
+				final double[][] amplitude = new double[3][cells];
+				for (int i = 0; i < slices; i++) {
+					final double ry = y - shifts[i][1];
+					final int cellY = (int) Math.floor(ry / spotSpacing);
+					final int firstCellX = (int) Math.floor(-shifts[i][0] /
+						spotSpacing) - 1;
+					for (int j = 0; j < 3; j++) {
+						final int cy = cellY - 1 + j;
+						for (int k = 0; k < cells; k++) {
+							final int cx = firstCellX + k;
+							spotX[j][k] = (cx + 0.25 + 0.5 * hash(cx, cy, 0)) * spotSpacing;
+							spotY[j][k] = (cy + 0.25 + 0.5 * hash(cx, cy, 1)) * spotSpacing;
+							amplitude[j][k] = 0.2 + 0.8 * hash(cx, cy, 2);
+						}
+					}
+					for (int x = 0; x < width; x++) {
+						final double rx = x - shifts[i][0];
+						final int k0 = (int) Math.floor(rx / spotSpacing) - firstCellX;
+						double value = 0;
+						// A spot is only close to the pixel if it is in a neighbouring cell.
+						for (int j = 0; j < 3; j++) {
+							for (int k = k0 - 1; k <= k0 + 1; k++) {
+								final double dx = rx - spotX[j][k];
+								final double dy = ry - spotY[j][k];
+								value += amplitude[j][k] * Math.exp(factor * (dx * dx + dy *
+									dy));
+							}
+						}
+						value = background + spotCounts * value;
+						if (poissonNoise) value = random.nextPoisson(value);
+						images[i].setf(x, y, (float) value);
+					}
+				}
+			}
+		});
+		return new ImagePlus("Drift-Stack_" + width + "x" + height, stack);
+	}
+
+	/**
+	 * @return A copy of the shifts that have been used by {@link #create()}.
+	 */
+	public double[][] getShifts() {
+		return shifts == null ? null : copy(shifts);
+	}
+
+	/**
+	 * The random properties of a spot only depend on the seed and the cell, so
+	 * each {@link Thread} and each shifted image gets the same pattern.
+	 *
+	 * @return A value between 0 and 1.
+	 */
+	private double hash(final int cellX, final int cellY, final int property) {
+		// SplitMix64 finaliser
+		final long cell = ((long) cellX << 32) ^ (cellY & 0xFFFFFFFFL);
+		long z = seed * 0x9E3779B97F4A7C15L + cell * 3 + property;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z ^= z >>> 31;
+		return (z >>> 11) * 0x1.0p-53;
+	}
+
+	private static double[][] copy(final double[][] array) {
+		final double[][] copy = new double[array.length][];
+		for (int i = 0; i < array.length; i++) {
+			copy[i] = array[i].clone();
+		}
+		return copy;
+	}
+}
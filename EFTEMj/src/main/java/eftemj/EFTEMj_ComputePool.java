@@ -0,0 +1,208 @@
+package eftemj;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The thread pool that is shared by all parallel calculations of EFTEMj. The
+ * number of {@link Thread}s is taken from the preferences (see
+ * {@link EFTEMj_Prefs#getComputeThreads()}), so concurrent calculations don't
+ * use more {@link Thread}s than there are processors.
+ * </p>
+ * <p>
+ * {@link #forEach(int, IndexTask)} processes a range of indices (e.g. image
+ * rows). The indices are not assigned in advance: Each {@link Thread} takes
+ * the next unprocessed index when it has finished the previous one, so rows
+ * that need more time are balanced automatically. The calling {@link Thread}
+ * takes part in the calculation and a call from a pool {@link Thread}
+ * (nested parallelism) is processed sequentially. This way a calculation
+ * can't wait for itself.
+ * </p>
+ * <p>
+ * There is no timeout. If a task fails, the remaining indices are skipped and
+ * the exception is thrown by {@link #forEach(int, IndexTask)}.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class EFTEMj_ComputePool {
+
+	/**
+	 * A task that processes a single index.
+	 */
+	public interface IndexTask {
+
+		/**
+		 * @param index The index to process.
+		 */
+		void run(int index);
+	}
+
+	/**
+	 * {@link Thread}s of the pool are marked by this class.
+	 */
+	private static class ComputeThread extends Thread {
+
+		private ComputeThread(final Runnable runnable, final String name) {
+			super(runnable, name);
+			setDaemon(true);
+		}
+	}
+
+	/**
+	 * A call of {@link EFTEMj_ComputePool#forEach(int, IndexTask)}. The same
+	 * instance is executed by all participating {@link Thread}s.
+	 */
+	private static class Job implements Runnable {
+
+		private final int count;
+		private final IndexTask task;
+		private final AtomicInteger next = new AtomicInteger();
+		/**
+		 * Counts the indices that are not yet processed or skipped.
+		 */
+		private final CountDownLatch remaining;
+		private volatile Throwable failure;
+		private volatile boolean aborted;
+
+		private Job(final int count, final IndexTask task) {
+			this.count = count;
+			this.task = task;
+			remaining = new CountDownLatch(count);
+		}
+
+		@Override
+		public void run() {
+			int index;
+			while ((index = next.getAndIncrement()) < count) {
+				try {
+					if (!aborted) task.run(index);
+				}
+				catch (final Throwable t) {
+					if (failure == null) failure = t;
+					aborted = true;
+				}
+				finally {
+					remaining.countDown();
+				}
+			}
+		}
+
+		/**
+		 * Waits until all indices are processed or skipped. If the calling
+		 * {@link Thread} is interrupted, the remaining indices are skipped.
+		 */
+		private void await() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					remaining.await();
+					break;
+				}
+				catch (final InterruptedException e) {
+					interrupted = true;
+					aborted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		private void rethrow() {
+			final Throwable t = failure;
+			if (t == null) return;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new RuntimeException(t);
+		}
+	}
+
+	private static ThreadPoolExecutor executor;
+
+	private EFTEMj_ComputePool() {
+		// Only static methods
+	}
+
+	/**
+	 * @return The shared {@link ExecutorService}. It must not be shut down.
+	 *         Tasks running at the pool should not wait for other tasks of the
+	 *         pool; use {@link #forEach(int, IndexTask)} instead.
+	 */
+	public static synchronized ExecutorService getExecutorService() {
+		if (executor == null) {
+			final int threads = EFTEMj_Prefs.getComputeThreads();
+			final AtomicInteger threadNumber = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						return new ComputeThread(runnable, "EFTEMj compute " + threadNumber
+							.incrementAndGet());
+					}
+				});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * @return The number of {@link Thread}s that are used for calculations.
+	 */
+	public static synchronized int getThreadCount() {
+		if (executor == null) return EFTEMj_Prefs.getComputeThreads();
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Changes the number of {@link Thread}s and saves it to the preferences.
+	 * Running calculations are not affected.
+	 *
+	 * @param threads The number of {@link Thread}s or 0 to use all processors.
+	 */
+	public static synchronized void setThreadCount(final int threads) {
+		EFTEMj_Prefs.setComputeThreads(threads);
+		if (executor == null) return;
+		final int count = EFTEMj_Prefs.getComputeThreads();
+		if (count > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(count);
+			executor.setCorePoolSize(count);
+		}
+		else {
+			executor.setCorePoolSize(count);
+			executor.setMaximumPoolSize(count);
+		}
+	}
+
+	/**
+	 * Runs the task for all indices from 0 to <code>count - 1</code> in
+	 * parallel and waits until all are finished.
+	 *
+	 * @param count The number of indices.
+	 * @param task The task that is run for each index. It must be thread safe.
+	 */
+	public static void forEach(final int count, final IndexTask task) {
+		if (count <= 0) return;
+		final int threads = Math.min(getThreadCount(), count);
+		if (threads <= 1 || Thread.currentThread() instanceof ComputeThread) {
+			for (int i = 0; i < count; i++) {
+				task.run(i);
+			}
+			return;
+		}
+		final Job job = new Job(count, task);
+		final ExecutorService executorService = getExecutorService();
+		for (int i = 1; i < threads; i++) {
+			executorService.execute(job);
+		}
+		job.run();
+		job.await();
+		job.rethrow();
+	}
+}
@@ -13,6 +13,7 @@ public class EFTEMj_Prefs {
 
 	private final static String PREFS_LOG_FILE_PATH = "path.logFile";
 	private final static String LOG_FILE_PATH = "C:/temp/EFTEMj.log";
+	private final static String PREFS_COMPUTE_THREADS = "compute.threads";
 
 	public static void main(final String[] args) {
 		/*
@@ -64,4 +65,25 @@ public static String getLogFile() {
 		return path;
 	}
 
+	/**
+	 * @return The number of {@link Thread}s used by the
+	 *         {@link EFTEMj_ComputePool}. All processors are used if no value has
+	 *         been saved.
+	 */
+	public static int getComputeThreads() {
+		final int threads = (int) Prefs.get(EFTEMj.PREFS_PREFIX +
+			PREFS_COMPUTE_THREADS, 0);
+		if (threads > 0) return threads;
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param threads The number of {@link Thread}s used by the
+	 *          {@link EFTEMj_ComputePool} or 0 to use all processors.
+	 */
+	public static void setComputeThreads(final int threads) {
+		Prefs.set(EFTEMj.PREFS_PREFIX + PREFS_COMPUTE_THREADS, Math.max(0,
+			threads));
+	}
+
 }
@@ -0,0 +1,227 @@
+package eftemj;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.IJ;
+
+/**
+ * <p>
+ * The progress and the cancellation of a long-running calculation (a job).
+ * Each job has its own counter, so concurrent calculations don't disturb each
+ * other. Worker {@link Thread}s only increase the counter; the progress bar of
+ * ImageJ is updated by a single {@link Thread} at a fixed rate. If more than
+ * one job is running, the progress bar shows the sum of all jobs.
+ * </p>
+ * <p>
+ * The cancellation is cooperative: Worker {@link Thread}s have to check
+ * {@link #isCancelled()} and skip the remaining work. Pressing ESC cancels all
+ * running jobs.
+ * </p>
+ * <p>
+ * A job is used like this:
+ * </p>
+ *
+ * <pre>
+ * final EFTEMj_Progress progress = EFTEMj_Progress.start(&quot;Name&quot;, rows);
+ * try {
+ * 	// for each row at any Thread:
+ * 	if (progress.isCancelled()) return;
+ * 	...
+ * 	progress.step();
+ * }
+ * finally {
+ * 	progress.finish();
+ * }
+ * </pre>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class EFTEMj_Progress {
+
+	/**
+	 * The time between two updates of the progress bar in milliseconds.
+	 */
+	private static final long UPDATE_INTERVAL = 100;
+	/**
+	 * The number of counters of each job. Each {@link Thread} uses one of them,
+	 * selected by its id.
+	 */
+	private static final int STRIPES = 16;
+	/**
+	 * The distance of two counters at the array. 8 longs fill a cache line, so
+	 * the counters of different {@link Thread}s don't share a cache line.
+	 */
+	private static final int PADDING = 8;
+
+	/**
+	 * All jobs that have been started and not yet finished.
+	 */
+	private static final CopyOnWriteArrayList<EFTEMj_Progress> jobs =
+		new CopyOnWriteArrayList<EFTEMj_Progress>();
+	private static ScheduledExecutorService updater;
+	private static ScheduledFuture<?> updateTask;
+
+	private final String name;
+	private final long steps;
+	private final AtomicLongArray counters = new AtomicLongArray(STRIPES *
+		PADDING);
+	private volatile boolean cancelled;
+
+	private EFTEMj_Progress(final String name, final long steps) {
+		this.name = name;
+		this.steps = steps;
+	}
+
+	/**
+	 * Creates a new job and starts updating the progress bar.
+	 *
+	 * @param name The name of the job, e.g. used for status messages.
+	 * @param steps The number of steps until the job is finished.
+	 * @return The new job.
+	 */
+	public static EFTEMj_Progress start(final String name, final long steps) {
+		final EFTEMj_Progress progress = new EFTEMj_Progress(name, steps);
+		synchronized (EFTEMj_Progress.class) {
+			if (jobs.isEmpty()) {
+				// ESC that has been pressed before belongs to a previous job.
+				IJ.resetEscape();
+				startUpdater();
+			}
+			jobs.add(progress);
+		}
+		return progress;
+	}
+
+	/**
+	 * Increases the progress by one step. This method can be called by any
+	 * {@link Thread}.
+	 */
+	public void step() {
+		step(1);
+	}
+
+	/**
+	 * Increases the progress. This method can be called by any {@link Thread}.
+	 *
+	 * @param count The number of finished steps.
+	 */
+	public void step(final long count) {
+		final int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+		counters.addAndGet(stripe * PADDING, count);
+	}
+
+	/**
+	 * @return The number of finished steps.
+	 */
+	public long getProgress() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += counters.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The number of steps until the job is finished.
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return The name of the job.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Cancels the job. Worker {@link Thread}s will notice it at the next call of
+	 * {@link #isCancelled()}.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return <code>true</code> if the job has been cancelled, or if ESC has
+	 *         been pressed.
+	 */
+	public boolean isCancelled() {
+		if (!cancelled && IJ.escapePressed()) cancelAll();
+		return cancelled;
+	}
+
+	/**
+	 * Stops the job. The progress bar is reset if no other job is running. Call
+	 * this method even if the job has been cancelled.
+	 */
+	public void finish() {
+		synchronized (EFTEMj_Progress.class) {
+			jobs.remove(this);
+			if (jobs.isEmpty()) stopUpdater();
+		}
+		if (cancelled) IJ.showStatus(name + " has been canceled.");
+	}
+
+	/**
+	 * Cancels all running jobs.
+	 */
+	public static void cancelAll() {
+		for (final EFTEMj_Progress job : jobs) {
+			job.cancelled = true;
+		}
+	}
+
+	private static void startUpdater() {
+		if (updater == null) {
+			updater = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory()
+			{
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "EFTEMj progress");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		}
+		updateTask = updater.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				updateProgressBar();
+			}
+		}, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private static void stopUpdater() {
+		if (updateTask != null) {
+			updateTask.cancel(false);
+			updateTask = null;
+		}
+		IJ.showProgress(1.0);
+	}
+
+	/**
+	 * Shows the sum of all running jobs at the progress bar and checks if ESC
+	 * has been pressed.
+	 */
+	private static void updateProgressBar() {
+		if (IJ.escapePressed()) cancelAll();
+		long progress = 0;
+		long steps = 0;
+		for (final EFTEMj_Progress job : jobs) {
+			progress += Math.min(job.getProgress(), job.steps);
+			steps += job.steps;
+		}
+		if (steps > 0) IJ.showProgress((double) progress / steps);
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package elemental_map;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Keeps the fitted maps of r and a of recent calculations. The power law
+ * background only depends on the pre-edge images, the fit method and its
+ * parameters. If only the post-edge images or the edge energy loss change,
+ * {@link ElementalMapping} takes r and a from this cache and only the cheap
+ * extrapolation of the background is repeated.
+ * </p>
+ * <p>
+ * A cache must only be used with a single stack, e.g. during one session of
+ * the {@link ElementalMappingPlugin} dialog. The least recently used entry is
+ * removed if the capacity is exceeded.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class BackgroundFitCache {
+
+	/**
+	 * The default capacity is large enough for all steps of a
+	 * {@link ProgressiveElementalMapping} and two sets of pre-edge images.
+	 */
+	public static final int DEFAULT_CAPACITY = 8;
+
+	/**
+	 * The maps of a single calculation.
+	 */
+	static class Entry {
+
+		final float[] r;
+		final float[] a;
+		final byte[] errors;
+		/**
+		 * The methods used by the hybrid method or <code>null</code>.
+		 */
+		final byte[] methods;
+
+		Entry(final float[] r, final float[] a, final byte[] errors,
+			final byte[] methods)
+		{
+			this.r = r;
+			this.a = a;
+			this.errors = errors;
+			this.methods = methods;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+	private int hits;
+	private int misses;
+
+	public BackgroundFitCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity The maximum number of calculations that are kept.
+	 */
+	public BackgroundFitCache(final int capacity) {
+		entries = new LinkedHashMap<String, Entry>(capacity + 1, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				final Map.Entry<String, BackgroundFitCache.Entry> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param key A key created by {@link ElementalMapping}.
+	 * @return The cached maps or <code>null</code>.
+	 */
+	synchronized Entry get(final String key) {
+		final Entry entry = entries.get(key);
+		if (entry == null) misses++;
+		else hits++;
+		return entry;
+	}
+
+	/**
+	 * @param key A key created by {@link ElementalMapping}.
+	 * @param entry Copies of the maps. They must not be modified afterwards.
+	 */
+	synchronized void put(final String key, final Entry entry) {
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Removes all entries, e.g. if the stack has been modified.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return The number of calculations that used cached maps.
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of calculations that had to fit the background.
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+}
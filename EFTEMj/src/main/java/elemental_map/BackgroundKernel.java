@@ -0,0 +1,141 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+/**
+ * <p>
+ * A {@link BackgroundModel} that has been compiled for fixed energy losses.
+ * Fitting a pixel is a product of the precalculated pseudo-inverse and the
+ * (logarithmised) counts. Extrapolating is a product of the parameters and the
+ * precalculated basis functions at the post-edge energy losses.
+ * </p>
+ * <p>
+ * The counts and parameters are stored as structure of arrays (
+ * <code>counts[i][pixel]</code>, <code>parameters[k][pixel]</code>). No
+ * objects are created while fitting and the instance has no mutable state, so
+ * one {@link BackgroundKernel} can be used by all {@link Thread}s.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class BackgroundKernel {
+
+	private final boolean logarithmic;
+	/**
+	 * The pseudo-inverse of the design matrix (<code>[k][i]</code>).
+	 */
+	private final double[][] projection;
+	/**
+	 * The basis functions at the post-edge energy losses (<code>[z][k]</code>).
+	 */
+	private final double[][] postEdgeBasis;
+	private final double referenceEnergyLoss;
+
+	BackgroundKernel(final boolean logarithmic, final double[][] projection,
+		final double[][] postEdgeBasis, final double referenceEnergyLoss)
+	{
+		this.logarithmic = logarithmic;
+		this.projection = projection;
+		this.postEdgeBasis = postEdgeBasis;
+		this.referenceEnergyLoss = referenceEnergyLoss;
+	}
+
+	/**
+	 * @return The number of parameters of the model.
+	 */
+	public int getParameterCount() {
+		return projection.length;
+	}
+
+	/**
+	 * @return The geometric mean E<sub>0</sub> of the pre-edge energy losses.
+	 */
+	public double getReferenceEnergyLoss() {
+		return referenceEnergyLoss;
+	}
+
+	/**
+	 * Fits the model to several pixels.
+	 *
+	 * @param counts The counts of the pre-edge images (<code>counts[i][pixel]
+	 *          </code>).
+	 * @param length The number of pixels to fit.
+	 * @param parameters The fitted parameters are written to this array (
+	 *          <code>parameters[k][pixel]</code>).
+	 * @param errorCodes The error code of each pixel (see {@link PowerLawFit}).
+	 *          Pixels with a NaN parameter, e.g. because of counts that are not
+	 *          positive, are marked with {@link PowerLawFit#ERROR_R_NAN}.
+	 */
+	public void fit(final double[][] counts, final int length,
+		final double[][] parameters, final int[] errorCodes)
+	{
+		for (int k = 0; k < parameters.length; k++) {
+			for (int x = 0; x < length; x++) {
+				parameters[k][x] = 0;
+			}
+		}
+		for (int i = 0; i < counts.length; i++) {
+			final double[] countsI = counts[i];
+			for (int x = 0; x < length; x++) {
+				final double y = logarithmic ? Math.log(countsI[x]) : countsI[x];
+				for (int k = 0; k < projection.length; k++) {
+					parameters[k][x] += projection[k][i] * y;
+				}
+			}
+		}
+		for (int x = 0; x < length; x++) {
+			errorCodes[x] = PowerLawFit.ERROR_NONE;
+			for (int k = 0; k < parameters.length; k++) {
+				if (Double.isNaN(parameters[k][x])) {
+					errorCodes[x] = PowerLawFit.ERROR_R_NAN;
+				}
+				else if (Double.isInfinite(parameters[k][x])) {
+					errorCodes[x] = PowerLawFit.ERROR_R_INFINITE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param parameters The fitted parameters (<code>parameters[k][pixel]
+	 *          </code>).
+	 * @param x The pixel.
+	 * @param z The index of the post-edge energy loss.
+	 * @return The background at the post-edge energy loss.
+	 */
+	public double extrapolate(final double[][] parameters, final int x,
+		final int z)
+	{
+		final double[] basis = postEdgeBasis[z];
+		double value = 0;
+		for (int k = 0; k < basis.length; k++) {
+			value += basis[k] * parameters[k][x];
+		}
+		return logarithmic ? Math.exp(value) : value;
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import Jama.Matrix;
+
+/**
+ * <p>
+ * A model of the background below an ionisation edge. All models are linear in
+ * their parameters c<sub>k</sub>, either for the counts themselves or for the
+ * logarithm of the counts:
+ * </p>
+ * <ul>
+ * <li>I(E) = &sum; c<sub>k</sub>&sdot;f<sub>k</sub>(E)</li>
+ * <li>ln(I(E)) = &sum; c<sub>k</sub>&sdot;f<sub>k</sub>(E)</li>
+ * </ul>
+ * <p>
+ * The basis functions f<sub>k</sub> only depend on the energy loss. Because of
+ * that, a model is compiled to a {@link BackgroundKernel} once for the given
+ * energy losses and each pixel is fitted by a single matrix-vector product.
+ * The energy losses are divided by the geometric mean E<sub>0</sub> of the
+ * pre-edge energy losses to keep the least squares problem well conditioned.
+ * </p>
+ * <p>
+ * To add a new model, extend this class and implement the basis functions.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public abstract class BackgroundModel {
+
+	/**
+	 * The power law ln(I) = ln(a) - r&sdot;ln(E). It is fitted by the least
+	 * squares method and gives the same result as {@link PowerLawFit_LSE}.
+	 */
+	public static final BackgroundModel POWER_LAW = new PowerLaw();
+	/**
+	 * The exponential background ln(I) = c<sub>0</sub> - b&sdot;E/E
+	 * <sub>0</sub>.
+	 */
+	public static final BackgroundModel EXPONENTIAL = new Exponential();
+
+	/**
+	 * @return The name that is shown at the GUI.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return The number of parameters c<sub>k</sub>.
+	 */
+	public abstract int getParameterCount();
+
+	/**
+	 * @return <code>true</code> if the model describes ln(I) and
+	 *         <code>false</code> if it describes I.
+	 */
+	public abstract boolean isLogarithmic();
+
+	/**
+	 * Calculates the values of all basis functions.
+	 *
+	 * @param energyLoss The energy loss divided by E<sub>0</sub>.
+	 * @param values The values f<sub>k</sub>(E) are written to this array.
+	 */
+	public abstract void basis(double energyLoss, double[] values);
+
+	/**
+	 * @return <code>true</code> if the parameters are c<sub>0</sub> =
+	 *         ln(a&sdot;E<sub>0</sub><sup>-r</sup>) and c<sub>1</sub> = -r.
+	 */
+	public boolean isPowerLaw() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	/**
+	 * Calculates the least squares solution for the given energy losses.
+	 *
+	 * @param preEdgeEnergyLosses The energy losses of the fitted images.
+	 * @param postEdgeEnergyLosses The energy losses to extrapolate to.
+	 * @return A {@link BackgroundKernel} that fits this model.
+	 * @throws IllegalArgumentException if there are not enough pre-edge images
+	 *           to determine all parameters.
+	 */
+	public BackgroundKernel compile(final double[] preEdgeEnergyLosses,
+		final double[] postEdgeEnergyLosses)
+	{
+		final int k = getParameterCount();
+		if (preEdgeEnergyLosses.length < k) {
+			throw new IllegalArgumentException(getName() + " needs at least " + k +
+				" pre-edge images.");
+		}
+		double lnSum = 0;
+		for (final double eLoss : preEdgeEnergyLosses) {
+			lnSum += Math.log(eLoss);
+		}
+		final double referenceEnergyLoss = Math.exp(lnSum /
+			preEdgeEnergyLosses.length);
+		final double[][] design = new double[preEdgeEnergyLosses.length][k];
+		for (int i = 0; i < design.length; i++) {
+			basis(preEdgeEnergyLosses[i] / referenceEnergyLoss, design[i]);
+		}
+		final double[][] projection;
+		try {
+			// The least squares solution of X*P = 1 is the pseudo-inverse of X.
+			projection = new Matrix(design).solve(Matrix.identity(design.length,
+				design.length)).getArray();
+		}
+		catch (final RuntimeException e) {
+			throw new IllegalArgumentException(getName() +
+				" can not be fitted to the pre-edge images: " + e.getMessage());
+		}
+		final double[][] postEdgeBasis = new double[postEdgeEnergyLosses.length][k];
+		for (int i = 0; i < postEdgeBasis.length; i++) {
+			basis(postEdgeEnergyLosses[i] / referenceEnergyLoss, postEdgeBasis[i]);
+		}
+		return new BackgroundKernel(isLogarithmic(), projection, postEdgeBasis,
+			referenceEnergyLoss);
+	}
+
+	/**
+	 * @param order The highest power of ln(E).
+	 * @return The polynomial ln(I) = &sum; c<sub>k</sub>&sdot;ln(E/E<sub>0</sub>)
+	 *         <sup>k</sup>. The order 1 is the power law.
+	 */
+	public static BackgroundModel logPolynomial(final int order) {
+		return new LogPolynomial(order);
+	}
+
+	/**
+	 * @param r1 The exponent of the first power law.
+	 * @param r2 The exponent of the second power law.
+	 * @return The linear combination of power laws (LCPL) I = A<sub>1</sub>
+	 *         &sdot;E<sup>-r1</sup> + A<sub>2</sub>&sdot;E<sup>-r2</sup>.
+	 */
+	public static BackgroundModel lcpl(final double r1, final double r2) {
+		return new LinearCombinationOfPowerLaws(r1, r2);
+	}
+
+	private static class PowerLaw extends BackgroundModel {
+
+		@Override
+		public String getName() {
+			return "Power law";
+		}
+
+		@Override
+		public int getParameterCount() {
+			return 2;
+		}
+
+		@Override
+		public boolean isLogarithmic() {
+			return true;
+		}
+
+		@Override
+		public void basis(final double energyLoss, final double[] values) {
+			values[0] = 1;
+			values[1] = Math.log(energyLoss);
+		}
+
+		@Override
+		public boolean isPowerLaw() {
+			return true;
+		}
+	}
+
+	private static class Exponential extends BackgroundModel {
+
+		@Override
+		public String getName() {
+			return "Exponential";
+		}
+
+		@Override
+		public int getParameterCount() {
+			return 2;
+		}
+
+		@Override
+		public boolean isLogarithmic() {
+			return true;
+		}
+
+		@Override
+		public void basis(final double energyLoss, final double[] values) {
+			values[0] = 1;
+			values[1] = energyLoss;
+		}
+	}
+
+	private static class LogPolynomial extends BackgroundModel {
+
+		private final int order;
+
+		public LogPolynomial(final int order) {
+			if (order < 1) {
+				throw new IllegalArgumentException("The order must be at least 1.");
+			}
+			this.order = order;
+		}
+
+		@Override
+		public String getName() {
+			return "Log-polynomial (order " + order + ")";
+		}
+
+		@Override
+		public int getParameterCount() {
+			return order + 1;
+		}
+
+		@Override
+		public boolean isLogarithmic() {
+			return true;
+		}
+
+		@Override
+		public void basis(final double energyLoss, final double[] values) {
+			final double lnE = Math.log(energyLoss);
+			values[0] = 1;
+			for (int k = 1; k <= order; k++) {
+				values[k] = values[k - 1] * lnE;
+			}
+		}
+	}
+
+	private static class LinearCombinationOfPowerLaws extends BackgroundModel {
+
+		private final double r1;
+		private final double r2;
+
+		public LinearCombinationOfPowerLaws(final double r1, final double r2) {
+			if (r1 == r2) {
+				throw new IllegalArgumentException(
+					"The exponents of the LCPL must differ.");
+			}
+			this.r1 = r1;
+			this.r2 = r2;
+		}
+
+		@Override
+		public String getName() {
+			return String.format("LCPL (r1 = %.2f, r2 = %.2f)", r1, r2);
+		}
+
+		@Override
+		public int getParameterCount() {
+			return 2;
+		}
+
+		@Override
+		public boolean isLogarithmic() {
+			return false;
+		}
+
+		@Override
+		public void basis(final double energyLoss, final double[] values) {
+			values[0] = Math.pow(energyLoss, -r1);
+			values[1] = Math.pow(energyLoss, -r2);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+/**
+ * <p>
+ * Calculates the uncertainty of the extrapolated power law background
+ * I(E) = a&sdot;E<sup>-r</sup> at a single pixel. The counts are assumed to be
+ * Poisson distributed. Then the covariance of ln(a) and r is the inverse of
+ * the Fisher information, that only depends on the moments
+ * S<sub>k</sub> = &sum; I(E<sub>i</sub>)&sdot;ln(E<sub>i</sub>)<sup>k</sup>
+ * (k = 0, 1, 2) of the fitted pre-edge intensities.
+ * </p>
+ * <p>
+ * The logarithms of the energy losses are calculated once per instance. The
+ * moments are calculated once per pixel by {@link #update}, or are passed by
+ * {@link #setMoments} if the fit has already calculated them. Afterwards the
+ * variance of the background at any post-edge energy loss costs only a few
+ * multiplications. The results are valid for counts that are not scaled, e.g.
+ * by an exposure correction.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+class BackgroundUncertainty {
+
+	private final double[] lnPreEdge;
+	private final double[] lnPostEdge;
+	private double s0;
+	private double s1;
+	private double s2;
+	private double determinant;
+
+	/**
+	 * @param preEdgeEnergyLosses The energy losses of the pre-edge images.
+	 * @param postEdgeEnergyLosses The energy losses of the post-edge images.
+	 */
+	public BackgroundUncertainty(final double[] preEdgeEnergyLosses,
+		final double[] postEdgeEnergyLosses)
+	{
+		lnPreEdge = new double[preEdgeEnergyLosses.length];
+		for (int i = 0; i < lnPreEdge.length; i++) {
+			lnPreEdge[i] = Math.log(preEdgeEnergyLosses[i]);
+		}
+		lnPostEdge = new double[postEdgeEnergyLosses.length];
+		for (int z = 0; z < lnPostEdge.length; z++) {
+			lnPostEdge[z] = Math.log(postEdgeEnergyLosses[z]);
+		}
+	}
+
+	/**
+	 * Calculates the moments of the fitted pre-edge intensities.
+	 *
+	 * @param r The fitted parameter r.
+	 * @param a The fitted parameter a.
+	 */
+	public void update(final double r, final double a) {
+		s0 = 0;
+		s1 = 0;
+		s2 = 0;
+		for (final double lnE : lnPreEdge) {
+			final double intensity = a * Math.exp(-r * lnE);
+			s0 += intensity;
+			s1 += intensity * lnE;
+			s2 += intensity * lnE * lnE;
+		}
+		determinant = s0 * s2 - s1 * s1;
+	}
+
+	/**
+	 * Sets the moments directly, e.g. if the fitted intensities are equal to the
+	 * counts, or if they are known from the fit (see
+	 * {@link PowerLawKernel#setMoments}).
+	 */
+	public void setMoments(final double s0, final double s1, final double s2) {
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		determinant = s0 * s2 - s1 * s1;
+	}
+
+	/**
+	 * @param lnE The logarithm of the energy loss of a post-edge image.
+	 * @param background The extrapolated background at this energy loss.
+	 * @return The variance of the extrapolated background.
+	 */
+	public double getVarianceAtLn(final double lnE, final double background) {
+		final double varianceOfLn = (s2 - 2 * lnE * s1 + lnE * lnE * s0) /
+			determinant;
+		return background * background * varianceOfLn;
+	}
+
+	/**
+	 * Egerton's h-factor describes the increase of the noise by the background
+	 * subtraction. The variance of the elemental signal S is S + h&sdot;B.
+	 *
+	 * @param z The index of the post-edge image.
+	 * @param background The extrapolated background at this energy loss.
+	 * @return The h-factor 1 + var(B)/B.
+	 */
+	public double getHFactor(final int z, final double background) {
+		return getHFactorAtLn(lnPostEdge[z], background);
+	}
+
+	/**
+	 * @param lnE The logarithm of the energy loss of a post-edge image.
+	 * @param background The extrapolated background at this energy loss.
+	 * @return The h-factor 1 + var(B)/B.
+	 * @see #getHFactor(int, double)
+	 */
+	public double getHFactorAtLn(final double lnE, final double background) {
+		return 1 + getVarianceAtLn(lnE, background) / background;
+	}
+}
@@ -0,0 +1,181 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import eftemj.EFTEMj_ComputePool;
+
+/**
+ * <p>
+ * Maps that have a closed-form solution. The map methods work on the pixel
+ * arrays of the images and process them in parallel chunks.
+ * </p>
+ * <p>
+ * If only two pre-edge images are used (three-window method), the power law
+ * passes through both data points and all fit methods give the same result.
+ * {@link ElementalMapping} calculates it by {@link #twoWindowPowerLaw} together
+ * with the other maps of each pixel. The jump-ratio and the relative thickness
+ * (log-ratio method) are simple ratios of two images.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class ClosedFormMaps {
+
+	/**
+	 * The smallest number of pixels that is processed by one task.
+	 */
+	static final int MIN_CHUNK_SIZE = 1 << 14;
+
+	/**
+	 * A part of the pixel array that is processed by one {@link Thread}.
+	 */
+	interface ChunkTask {
+
+		/**
+		 * @param from The first pixel (inclusive).
+		 * @param to The last pixel (exclusive).
+		 */
+		void run(int from, int to);
+	}
+
+	private ClosedFormMaps() {
+		// Only static methods
+	}
+
+	/**
+	 * Calculates the power law I(E) = a&sdot;E<sup>-r</sup> that passes through
+	 * the counts of two pre-edge images at one pixel. The logarithm of the
+	 * ratio is only defined for positive counts: Counts that are not positive
+	 * result in {@link PowerLawFit#ERROR_R_NAN}, like the LSE.
+	 *
+	 * @param counts1 The count of the first pre-edge image.
+	 * @param lnE1 The logarithm of the energy loss of the first pre-edge image.
+	 * @param counts2 The count of the second pre-edge image.
+	 * @param lnE2 The logarithm of the energy loss of the second pre-edge
+	 *          image.
+	 * @param result r and a are written to <code>result[0]</code> and
+	 *          <code>result[1]</code>. Both are NaN if the calculation fails.
+	 * @return The error code (see {@link PowerLawFit}).
+	 */
+	static int twoWindowPowerLaw(final double counts1, final double lnE1,
+		final double counts2, final double lnE2, final double[] result)
+	{
+		result[0] = Double.NaN;
+		result[1] = Double.NaN;
+		if (!(counts1 > 0 && counts2 > 0)) return PowerLawFit.ERROR_R_NAN;
+		final double r = Math.log(counts1 / counts2) / (lnE2 - lnE1);
+		if (Double.isInfinite(r)) return PowerLawFit.ERROR_R_INFINITE;
+		final double a = counts2 * Math.exp(r * lnE2);
+		if (Double.isInfinite(a)) return PowerLawFit.ERROR_A_INFINITE;
+		result[0] = r;
+		result[1] = a;
+		return PowerLawFit.ERROR_NONE;
+	}
+
+	/**
+	 * The jump-ratio image is the post-edge image divided by the pre-edge
+	 * image.
+	 *
+	 * @param postEdge A post-edge image.
+	 * @param preEdge A pre-edge image, usually the one that is next to the edge.
+	 * @param jumpRatio The result is written to this array.
+	 */
+	public static void jumpRatio(final float[] postEdge, final float[] preEdge,
+		final float[] jumpRatio)
+	{
+		forEachChunk(postEdge.length, MIN_CHUNK_SIZE, new ChunkTask() {
+
+			@Override
+			public void run(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					jumpRatio[i] = postEdge[i] / preEdge[i];
+				}
+			}
+		});
+	}
+
+	/**
+	 * The relative thickness t/&lambda; is calculated by the log-ratio method:
+	 * t/&lambda; = ln(I<sub>t</sub>/I<sub>0</sub>). Pixels where one of the
+	 * images is not positive are NaN.
+	 *
+	 * @param unfiltered The unfiltered image (I<sub>t</sub>).
+	 * @param zeroLoss The zero-loss filtered image (I<sub>0</sub>).
+	 * @param thickness The result is written to this array.
+	 */
+	public static void relativeThickness(final float[] unfiltered,
+		final float[] zeroLoss, final float[] thickness)
+	{
+		forEachChunk(unfiltered.length, MIN_CHUNK_SIZE, new ChunkTask() {
+
+			@Override
+			public void run(final int from, final int to) {
+				for (int i = from; i < to; i++) {
+					if (unfiltered[i] > 0 && zeroLoss[i] > 0) {
+						thickness[i] = (float) Math.log((double) unfiltered[i] /
+							zeroLoss[i]);
+					}
+					else {
+						thickness[i] = Float.NaN;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Splits the pixels (or rows) into chunks and processes them in parallel at
+	 * the {@link EFTEMj_ComputePool}. Small images are processed by the calling
+	 * {@link Thread}.
+	 *
+	 * @param length The number of pixels or rows.
+	 * @param minChunkSize The smallest number of pixels or rows that is
+	 *          processed by one task.
+	 * @param task The task that processes a chunk.
+	 */
+	static void forEachChunk(final int length, final int minChunkSize,
+		final ChunkTask task)
+	{
+		final int threads = EFTEMj_ComputePool.getThreadCount();
+		final int chunkSize = Math.max(minChunkSize, (length + 4 * threads - 1) /
+			(4 * threads));
+		if (threads == 1 || length <= chunkSize) {
+			task.run(0, length);
+			return;
+		}
+		final int chunks = (length + chunkSize - 1) / chunkSize;
+		EFTEMj_ComputePool.forEach(chunks, new EFTEMj_ComputePool.IndexTask() {
+
+			@Override
+			public void run(final int chunk) {
+				final int from = chunk * chunkSize;
+				task.run(from, Math.min(from + chunkSize, length));
+			}
+		});
+	}
+}
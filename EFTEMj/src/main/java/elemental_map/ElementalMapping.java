@@ -28,21 +28,29 @@
 package elemental_map;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
+import eftemj.EFTEMj_ComputePool;
+import eftemj.EFTEMj_Progress;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
 import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import libs.lma.BatchLMA;
+import tools.PoissonRandom;
 
 /**
  * This class will calculate the elemental maps. It is separated from the plugin
@@ -61,7 +69,8 @@ public class ElementalMapping {
 	public static enum AVAILABLE_METHODS {
 			LSE("Least squares estimation"), MLE("Maximum-likelihood estimation"),
 			WLSE("Weighted least squares estimation"), LMA(
-				"Levenberg-Marquardt algorithm");
+				"Levenberg-Marquardt algorithm"), HYBRID(
+					"Hybrid (LSE, MLE if necessary)");
 
 		/**
 		 * Full name of the method. Display this {@link String} at the GUI.
@@ -182,9 +191,19 @@ public static String[] toStringArray() {
 	 */
 	private final double epsilon;
 	/**
-	 * The {@link ImagePlus} that is used for elemental mapping.
+	 * The {@link ImagePlus} that is used for elemental mapping. If local
+	 * summation is used, it contains the local sums of {@link #impMeasured}.
 	 */
-	private final ImagePlus impStack;
+	private ImagePlus impStack;
+	/**
+	 * The measured stack (after the exposure correction).
+	 */
+	private final ImagePlus impMeasured;
+	/**
+	 * The edge length of the neighbourhood that is summed up for each pixel. 1
+	 * disables the local summation.
+	 */
+	private int localSummation = 1;
 	/**
 	 * A map of the parameter <strong>r</strong> ( power law: I(E) = a&sdot;E
 	 * <sup>-r</sup> ).
@@ -199,20 +218,124 @@ public static String[] toStringArray() {
 	 * A map that shows all errors that occurred at the power law fit.
 	 */
 	private final ByteProcessor errorMap;
+	/**
+	 * The hybrid method saves the ordinal of the {@link AVAILABLE_METHODS} that
+	 * has been used at each pixel. It is <code>null</code> for all other
+	 * methods.
+	 */
+	private final ByteProcessor methodMap;
+	/**
+	 * The number of pixels fitted by each {@link AVAILABLE_METHODS}.
+	 */
+	private final AtomicIntegerArray methodCounts = new AtomicIntegerArray(
+		AVAILABLE_METHODS.values().length);
 	/**
 	 * The extracted elemental signal of all post-edge images.
 	 */
 	private final FloatProcessor[] elementalMaps;
 	/**
-	 * This field indicates the progress. A static method is used to increase the
-	 * value by 1. It is necessary to use volatile because different
-	 * {@link Thread}s call the related method.
+	 * Egerton's h-factor of all post-edge images. The variance of the elemental
+	 * signal S is S + h&sdot;B.
 	 */
-	private static volatile int progress;
+	private final FloatProcessor[] hFactorMaps;
 	/**
-	 * Number of steps until the drift detection is finished.
+	 * The signal to noise ratio of all elemental maps.
 	 */
-	private static int progressSteps;
+	private final FloatProcessor[] snrMaps;
+	/**
+	 * The number of Poisson replicates that are fitted for each pixel. 0
+	 * disables the bootstrap.
+	 */
+	private int bootstrapReplicates;
+	/**
+	 * The mean and the standard deviation of the elemental signal of all
+	 * bootstrap replicates. Only created if the bootstrap is enabled.
+	 */
+	private FloatProcessor[] bootstrapMeanMaps;
+	private FloatProcessor[] bootstrapStdDevMaps;
+	/**
+	 * The LMA fit used for all pixels if {@link AVAILABLE_METHODS#LMA} has been
+	 * selected. It is shared by all {@link ElementalMappingTask}s.
+	 */
+	private BatchLMA batchLMA;
+	/**
+	 * The geometric mean of the pre-edge energy losses. {@link BatchLMA} fits
+	 * I(E) = b&sdot;(E/E<sub>0</sub>)<sup>-r</sup> with this value as
+	 * E<sub>0</sub>, as b and r are of similar magnitude and less correlated
+	 * than a and r.
+	 */
+	private double referenceEnergyLoss;
+	/**
+	 * If <code>true</code>, the MLE of each pixel starts with the
+	 * <strong>r</strong> of its left neighbour. The first pixel of each row and
+	 * pixels next to a failed fit start with the default value. The
+	 * {@link PowerLawKernel} uses the left neighbour of each block of pixels.
+	 */
+	private boolean warmStart;
+	/**
+	 * If <code>true</code>, the LSE and the MLE fit a whole row by using
+	 * {@link PowerLawKernel}.
+	 */
+	private boolean useKernel = true;
+	/**
+	 * The background model or <code>null</code> to fit a power law with the
+	 * selected method.
+	 */
+	private BackgroundModel backgroundModel;
+	/**
+	 * The compiled background model of the current calculation or
+	 * <code>null</code>.
+	 */
+	private BackgroundKernel backgroundKernel;
+	/**
+	 * The sum of the iterations of all iterative fits.
+	 */
+	private final AtomicLong iterationSum = new AtomicLong();
+	/**
+	 * The number of fitted pixels.
+	 */
+	private final AtomicInteger fitCount = new AtomicInteger();
+	/**
+	 * The number of pixels that were started with the result of a neighbour.
+	 */
+	private final AtomicInteger warmStartCount = new AtomicInteger();
+	/**
+	 * The number of warm started pixels that failed and were fitted again with
+	 * the default start value.
+	 */
+	private final AtomicInteger warmStartRetries = new AtomicInteger();
+	/**
+	 * The cache of the maps of r and a or <code>null</code>.
+	 */
+	private BackgroundFitCache fitCache;
+	/**
+	 * <code>true</code> if the last calculation used the maps of r and a of the
+	 * {@link #fitCache}.
+	 */
+	private boolean usedCache;
+	/**
+	 * If <code>true</code>, all rows that have not been started yet are
+	 * skipped.
+	 */
+	private volatile boolean cancelled;
+	/**
+	 * Only pixels with a non-zero value at this mask are fitted. If
+	 * <code>null</code>, all pixels are fitted.
+	 */
+	private ImageProcessor mask;
+	/**
+	 * Pixels with a mean pre-edge count lower than this value are not fitted.
+	 */
+	private float threshold = Float.NEGATIVE_INFINITY;
+	/**
+	 * For each row the columns of all pixels that are fitted. <code>null</code>
+	 * if all pixels are fitted.
+	 */
+	private int[][] activeColumns;
+	/**
+	 * The progress of the running fit. Each row is a step.
+	 */
+	private volatile EFTEMj_Progress progress;
 
 	/**
 	 * @param energyLossArray The energy losses of all images at the given stack.
@@ -229,18 +352,16 @@ public ElementalMapping(final float[] energyLossArray, final ImagePlus stack,
 		this.method = method;
 		this.epsilon = epsilon;
 		this.impStack = stack;
+		this.impMeasured = stack;
 		splitEnergyLosses(energyLossArray, edgeEnergyLoss);
 		rMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		aMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		errorMap = new ByteProcessor(stack.getWidth(), stack.getHeight());
-		elementalMaps = new FloatProcessor[postEdgeIndices.length];
-		for (int i = 0; i < elementalMaps.length; i++) {
-			elementalMaps[i] = new FloatProcessor(stack.getWidth(), stack
-				.getHeight());
-			final float[] pixels = (float[]) elementalMaps[i].getPixels();
-			Arrays.fill(pixels, Float.NaN);
-		}
-		progressSteps = stack.getHeight();
+		methodMap = method == AVAILABLE_METHODS.HYBRID ? new ByteProcessor(stack
+			.getWidth(), stack.getHeight()) : null;
+		elementalMaps = createPostEdgeMaps();
+		hFactorMaps = createPostEdgeMaps();
+		snrMaps = createPostEdgeMaps();
 	}
 
 	public ElementalMapping(final float[] energyLossArray,
@@ -251,21 +372,55 @@ public ElementalMapping(final float[] energyLossArray,
 		this.method = method;
 		this.epsilon = epsilon;
 		this.impStack = processExposureArray(stack, exposureArray);
+		this.impMeasured = impStack;
 		splitEnergyLosses(energyLossArray, edgeEnergyLoss);
 		rMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		aMap = new FloatProcessor(stack.getWidth(), stack.getHeight());
 		errorMap = new ByteProcessor(stack.getWidth(), stack.getHeight());
-		elementalMaps = new FloatProcessor[postEdgeIndices.length];
-		for (int i = 0; i < elementalMaps.length; i++) {
-			elementalMaps[i] = new FloatProcessor(stack.getWidth(), stack
-				.getHeight());
-			final float[] pixels = (float[]) elementalMaps[i].getPixels();
+		methodMap = method == AVAILABLE_METHODS.HYBRID ? new ByteProcessor(stack
+			.getWidth(), stack.getHeight()) : null;
+		elementalMaps = createPostEdgeMaps();
+		hFactorMaps = createPostEdgeMaps();
+		snrMaps = createPostEdgeMaps();
+	}
+
+	/**
+	 * @return One map for each post-edge image. All pixels are NaN.
+	 */
+	private FloatProcessor[] createPostEdgeMaps() {
+		final FloatProcessor[] maps = new FloatProcessor[postEdgeIndices.length];
+		for (int i = 0; i < maps.length; i++) {
+			maps[i] = new FloatProcessor(impStack.getWidth(), impStack.getHeight());
+			final float[] pixels = (float[]) maps[i].getPixels();
 			Arrays.fill(pixels, Float.NaN);
 		}
-		progressSteps = stack.getHeight();
+		return maps;
 	}
 
-	private ImagePlus processExposureArray(final ImagePlus stack,
+	/**
+	 * @param exposures The exposure times of all images.
+	 * @return <code>true</code> if all exposure times are known and at least one
+	 *         of them differs.
+	 */
+	static boolean hasVaryingExposure(final float[] exposures) {
+		for (final float exposure : exposures) {
+			if (exposure == 0) return false;
+		}
+		for (final float exposure : exposures) {
+			if (exposure != exposures[0]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a 32-bit copy of the stack and scales each image to the longest
+	 * exposure time.
+	 *
+	 * @param stack The stack to process. Any bit depth is supported.
+	 * @param exposureArray The exposure times of all images.
+	 * @return A new {@link ImagePlus} with the scaled 32-bit images.
+	 */
+	static ImagePlus processExposureArray(final ImagePlus stack,
 		final float[] exposureArray)
 	{
 		final float[] exposureArrayNorm = new float[exposureArray.length];
@@ -277,39 +432,650 @@ private ImagePlus processExposureArray(final ImagePlus stack,
 			exposureArrayNorm[i] = exposureArray[i] / max;
 		}
 		final ImagePlus imp = new Duplicator().run(stack, 1, stack.getStackSize());
+		final ImageStack copy = imp.getStack();
+		final ImageStack scaled = new ImageStack(copy.getWidth(), copy
+			.getHeight());
 		for (int i = 0; i < exposureArray.length; i++) {
-			final float[] pixels = (float[]) imp.getStack().getPixels(i + 1);
+			// A 32-bit image is not copied again by convertToFloat().
+			final ImageProcessor ip = copy.getProcessor(i + 1).convertToFloat();
+			final float[] pixels = (float[]) ip.getPixels();
 			for (int j = 0; j < pixels.length; j++) {
 				pixels[j] /= exposureArrayNorm[i];
 			}
+			scaled.addSlice(copy.getSliceLabel(i + 1), ip);
 		}
+		imp.setStack(scaled);
 		return imp;
 	}
 
 	/**
-	 * {@link ElementalMappingTask} will use this method to update the process.
+	 * The hybrid method uses the MLE for pixels with less counts. The bias of
+	 * the LSE is about 1/(2&sdot;counts) at ln(a).
+	 */
+	private static final double HYBRID_MIN_COUNTS = 100;
+	/**
+	 * The hybrid method uses the MLE if &chi;<sup>2</sup> per degree of freedom
+	 * of the LSE result is larger than this value.
+	 */
+	private static final double HYBRID_MAX_CHI2 = 4;
+	/**
+	 * The value of the method map at pixels that have not been fitted or where
+	 * all methods have failed.
+	 */
+	public static final int METHOD_MAP_NONE = 255;
+
+	/**
+	 * Creates a {@link PowerLawFit} that uses the given method. The hybrid
+	 * method only exists row-wise, for a single pixel the MLE is used.
+	 *
+	 * @param method The fit method.
+	 * @param energyLosses The energy losses of the pre-edge images.
+	 * @param counts The counts of the pre-edge images at one pixel.
+	 * @param epsilon The break condition for iterative methods.
+	 * @return A new {@link PowerLawFit}.
 	 */
-	private static void updateProgress() {
-		progress++;
-		IJ.showProgress(progress, progressSteps);
+	public static PowerLawFit createPowerLawFit(final AVAILABLE_METHODS method,
+		final double[] energyLosses, final double[] counts, final double epsilon)
+	{
+		switch (method) {
+			case MLE:
+				return new PowerLawFit_MLE(energyLosses, counts, epsilon);
+			case LSE:
+				return new PowerLawFit_LSE(energyLosses, counts, epsilon);
+			case WLSE:
+				return new PowerLawFit_WLSE(energyLosses, counts, epsilon);
+			case LMA:
+				return new PowerLawFit_LMA(energyLosses, counts, epsilon);
+			case HYBRID:
+				return new PowerLawFit_MLE(energyLosses, counts, epsilon);
+			default:
+				throw new IllegalArgumentException("Unknown method: " + method);
+		}
 	}
 
 	/**
 	 * Starts the calculation with parallel {@link Thread}s.
 	 */
 	public void startCalculation() {
-		final ExecutorService executorService = Executors.newFixedThreadPool(Runtime
-			.getRuntime().availableProcessors());
-		for (int j = 0; j < impStack.getHeight(); j++) {
-			executorService.execute(new ElementalMappingTask(j));
+		impStack = localSummation > 1 ? LocalSummation.sum(impMeasured,
+			localSummation) : impMeasured;
+		calculate();
+		if (localSummation > 1 && !cancelled) normaliseLocalSums();
+	}
+
+	/**
+	 * <p>
+	 * Enables the adaptive local summation. Instead of the counts of a single
+	 * pixel, the sum of the k&times;k neighbourhood is fitted. This improves
+	 * the statistics like binning, but the maps keep the size of the stack. The
+	 * sums are calculated from summed-area tables, so the cost does not depend
+	 * on k.
+	 * </p>
+	 * <p>
+	 * The maps of a, the elemental signal and the bootstrap results are divided
+	 * by the number of summed pixels, so they can be compared with maps without
+	 * summation. r, the h-factor and the SNR belong to the summed counts. The
+	 * threshold is compared to the mean counts of the neighbourhood.
+	 * </p>
+	 *
+	 * @param size The edge length k of the neighbourhood. 1 disables the local
+	 *          summation.
+	 */
+	public void setLocalSummation(final int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException(
+				"The size of the neighbourhood must be at least 1.");
+		}
+		this.localSummation = size;
+	}
+
+	/**
+	 * Converts the results of the local sums to values per pixel.
+	 */
+	private void normaliseLocalSums() {
+		final int width = impStack.getWidth();
+		final int height = impStack.getHeight();
+		final List<FloatProcessor> maps = new ArrayList<FloatProcessor>();
+		maps.add(aMap);
+		maps.addAll(Arrays.asList(elementalMaps));
+		if (bootstrapMeanMaps != null) {
+			maps.addAll(Arrays.asList(bootstrapMeanMaps));
+			maps.addAll(Arrays.asList(bootstrapStdDevMaps));
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final float count = LocalSummation.getPixelCount(width, height,
+					localSummation, x, y);
+				for (final FloatProcessor map : maps) {
+					map.setf(x, y, map.getf(x, y) / count);
+				}
+			}
 		}
-		executorService.shutdown();
+	}
+
+	/**
+	 * Fits all pixels of {@link #impStack}. If the maps of r and a are found at
+	 * the {@link BackgroundFitCache}, only the background is extrapolated.
+	 */
+	private void calculate() {
+		iterationSum.set(0);
+		fitCount.set(0);
+		warmStartCount.set(0);
+		warmStartRetries.set(0);
+		for (int i = 0; i < methodCounts.length(); i++) {
+			methodCounts.set(i, 0);
+		}
+		if (methodMap != null) {
+			methodMap.setValue(METHOD_MAP_NONE);
+			methodMap.fill();
+		}
+		findActivePixels();
+		final String cacheKey = getCacheKey();
+		usedCache = false;
+		if (cacheKey != null) {
+			final BackgroundFitCache.Entry entry = fitCache.get(cacheKey);
+			if (entry != null) {
+				System.arraycopy(entry.r, 0, rMap.getPixels(), 0, entry.r.length);
+				System.arraycopy(entry.a, 0, aMap.getPixels(), 0, entry.a.length);
+				System.arraycopy(entry.errors, 0, errorMap.getPixels(), 0,
+					entry.errors.length);
+				if (methodMap != null) {
+					System.arraycopy(entry.methods, 0, methodMap.getPixels(), 0,
+						entry.methods.length);
+				}
+				usedCache = true;
+				extrapolateBackground();
+				return;
+			}
+		}
+		fit();
+		if (cacheKey != null && !cancelled) {
+			fitCache.put(cacheKey, new BackgroundFitCache.Entry(((float[]) rMap
+				.getPixels()).clone(), ((float[]) aMap.getPixels()).clone(),
+				((byte[]) errorMap.getPixels()).clone(), methodMap == null ? null
+					: ((byte[]) methodMap.getPixels()).clone()));
+		}
+	}
+
+	/**
+	 * Fits the background of all active pixels and calculates the post-edge
+	 * maps.
+	 */
+	private void fit() {
+		if (bootstrapReplicates > 0) {
+			bootstrapMeanMaps = createPostEdgeMaps();
+			bootstrapStdDevMaps = createPostEdgeMaps();
+		}
+		else if (preEdgeIndices.length == 2 && (backgroundModel == null ||
+			backgroundModel.isPowerLaw()))
+		{
+			calculateTwoWindows();
+			return;
+		}
+		if (method == AVAILABLE_METHODS.HYBRID && backgroundModel == null &&
+			preEdgeEnergyLosses.length < BackgroundModel.POWER_LAW
+				.getParameterCount())
+		{
+			throw new IllegalArgumentException(BackgroundModel.POWER_LAW.getName() +
+				" needs at least " + BackgroundModel.POWER_LAW.getParameterCount() +
+				" pre-edge images.");
+		}
+		BackgroundModel model = backgroundModel;
+		if (model == null && method == AVAILABLE_METHODS.LSE && useKernel) {
+			model = BackgroundModel.POWER_LAW;
+		}
+		backgroundKernel = model == null ? null : model.compile(
+			preEdgeEnergyLosses, postEdgeEnergyLosses);
+		if (method == AVAILABLE_METHODS.LMA) {
+			double lnSum = 0;
+			for (final double eLoss : preEdgeEnergyLosses) {
+				lnSum += Math.log(eLoss);
+			}
+			referenceEnergyLoss = Math.exp(lnSum / preEdgeEnergyLosses.length);
+			final double[] normalisedEnergyLosses =
+				new double[preEdgeEnergyLosses.length];
+			for (int i = 0; i < normalisedEnergyLosses.length; i++) {
+				normalisedEnergyLosses[i] = preEdgeEnergyLosses[i] /
+					referenceEnergyLoss;
+			}
+			batchLMA = new BatchLMA(new PowerLawFit_LMA.PowerLawFunction(),
+				normalisedEnergyLosses);
+			batchLMA.minDeltaChi2 = epsilon;
+		}
+		progress = EFTEMj_Progress.start("Elemental mapping", impStack
+			.getHeight());
+		if (cancelled) progress.cancel();
 		try {
-			executorService.awaitTermination(5, TimeUnit.MINUTES);
+			EFTEMj_ComputePool.forEach(impStack.getHeight(),
+				new EFTEMj_ComputePool.IndexTask()
+			{
+
+					@Override
+					public void run(final int y) {
+						new ElementalMappingTask(y).run();
+					}
+				});
+		}
+		finally {
+			if (progress.isCancelled()) cancelled = true;
+			progress.finish();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Uses a {@link BackgroundFitCache} for the maps of r and a. The maps are
+	 * cached for each set of pre-edge images, fit method and its parameters.
+	 * If the edge energy loss is changed without changing the pre-edge images,
+	 * the fit is skipped and only the post-edge maps are calculated.
+	 * </p>
+	 * <p>
+	 * The cache is not used with a mask, the bootstrap or a background model
+	 * other than the power law.
+	 * </p>
+	 *
+	 * @param fitCache A {@link BackgroundFitCache} that has only been used with
+	 *          the same stack, or <code>null</code> to disable caching.
+	 */
+	public void setFitCache(final BackgroundFitCache fitCache) {
+		this.fitCache = fitCache;
+	}
+
+	/**
+	 * @return The key of the current parameters at the
+	 *         {@link BackgroundFitCache} or <code>null</code> if the cache
+	 *         can't be used.
+	 */
+	private String getCacheKey() {
+		if (fitCache == null || mask != null || bootstrapReplicates > 0) {
+			return null;
+		}
+		if (backgroundModel != null && !backgroundModel.isPowerLaw()) return null;
+		return MessageFormat.format("{0}x{1} {2} {3} {4} {5} {6} {7} {8} {9}",
+			impStack.getWidth(), impStack.getHeight(), Arrays.toString(
+				preEdgeIndices), method, Double.toString(epsilon), Float.toString(
+					threshold), localSummation, warmStart, useKernel,
+			backgroundModel == null ? "" : backgroundModel.getName());
+	}
+
+	/**
+	 * Calculates the elemental maps, the h-factor and the SNR from the maps of
+	 * r and a. Only pixels with a valid r and a are processed.
+	 */
+	private void extrapolateBackground() {
+		final int width = impStack.getWidth();
+		final float[][] postEdgePixels = new float[postEdgeIndices.length][];
+		for (int z = 0; z < postEdgeIndices.length; z++) {
+			postEdgePixels[z] = (float[]) impStack.getStack().getPixels(
+				postEdgeIndices[z]);
+		}
+		final float[] r = (float[]) rMap.getPixels();
+		final float[] a = (float[]) aMap.getPixels();
+		ClosedFormMaps.forEachChunk(impStack.getHeight(), 16,
+			new ClosedFormMaps.ChunkTask()
+		{
+
+				@Override
+				public void run(final int from, final int to) {
+					final BackgroundUncertainty uncertainty = new BackgroundUncertainty(
+						preEdgeEnergyLosses, postEdgeEnergyLosses);
+					for (int i = from * width; i < to * width; i++) {
+						if (Float.isNaN(r[i]) || Float.isNaN(a[i])) continue;
+						uncertainty.update(r[i], a[i]);
+						for (int z = 0; z < postEdgePixels.length; z++) {
+							final double bg = a[i] * Math.pow(postEdgeEnergyLosses[z], -r[i]);
+							final double signal = postEdgePixels[z][i] - bg;
+							final double h = uncertainty.getHFactor(z, bg);
+							((float[]) elementalMaps[z].getPixels())[i] = (float) signal;
+							((float[]) hFactorMaps[z].getPixels())[i] = (float) h;
+							((float[]) snrMaps[z].getPixels())[i] = (float) (signal / Math
+								.sqrt(signal + h * bg));
+						}
+					}
+				}
+			});
+		IJ.showProgress(1.0);
+	}
+
+	/**
+	 * Replaces the power law by another background model. The model is fitted
+	 * by least squares, the selected method is ignored. The maps of r, ln(a),
+	 * the h-factor and the SNR are only calculated for the power law.
+	 *
+	 * @param backgroundModel A {@link BackgroundModel} or <code>null</code> to
+	 *          fit a power law with the selected method.
+	 */
+	public void setBackgroundModel(final BackgroundModel backgroundModel) {
+		this.backgroundModel = backgroundModel;
+	}
+
+	/**
+	 * Creates a LCPL model whose exponents enclose the power law of the mean
+	 * pre-edge counts.
+	 *
+	 * @param spread The exponents are r - spread and r + spread.
+	 * @return A {@link BackgroundModel} that can be passed to
+	 *         {@link #setBackgroundModel(BackgroundModel)}.
+	 */
+	public BackgroundModel createLCPLModel(final double spread) {
+		final double[] meanCounts = new double[preEdgeIndices.length];
+		for (int z = 0; z < preEdgeIndices.length; z++) {
+			meanCounts[z] = impStack.getStack().getProcessor(preEdgeIndices[z])
+				.getStatistics().mean;
+		}
+		double r = new PowerLawFit_LSE(preEdgeEnergyLosses, meanCounts, epsilon)
+			.getR();
+		if (Double.isNaN(r) || Double.isInfinite(r)) r = 4;
+		return BackgroundModel.lcpl(r - spread, r + spread);
+	}
+
+	/**
+	 * The MLE uses {@link PowerLawKernel} and the LSE uses
+	 * {@link BackgroundModel#POWER_LAW} by default. With a warm start the
+	 * kernel starts each block of pixels with the r of its left neighbour.
+	 *
+	 * @param useKernel <code>false</code> to fit each pixel by an instance of
+	 *          {@link PowerLawFit}.
+	 * @throws IllegalStateException if the hybrid method is used. It only
+	 *           exists as a row kernel.
+	 */
+	public void setUseKernel(final boolean useKernel) {
+		if (!useKernel && method == AVAILABLE_METHODS.HYBRID) {
+			throw new IllegalStateException(
+				"The hybrid method needs the row kernel.");
+		}
+		this.useKernel = useKernel;
+	}
+
+	/**
+	 * @param warmStart <code>true</code> to start the MLE of each pixel with the
+	 *          result of the neighbouring pixel.
+	 */
+	public void setWarmStart(final boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * Restricts the calculation to the pixels with a non-zero value at the given
+	 * mask. All maps are NaN at the other pixels.
+	 *
+	 * @param mask An {@link ImageProcessor} of the same size as the stack or
+	 *          <code>null</code> to fit all pixels.
+	 */
+	public void setMask(final ImageProcessor mask) {
+		if (mask != null && (mask.getWidth() != impStack.getWidth() || mask
+			.getHeight() != impStack.getHeight()))
+		{
+			throw new IllegalArgumentException(
+				"The mask must have the same size as the stack.");
+		}
+		this.mask = mask;
+	}
+
+	/**
+	 * Restricts the calculation to the pixels inside the given {@link Roi}.
+	 *
+	 * @param roi An area {@link Roi} or <code>null</code> to fit all pixels.
+	 */
+	public void setMask(final Roi roi) {
+		if (roi == null || roi.isArea() == false) {
+			setMask((ImageProcessor) null);
+			return;
+		}
+		final ByteProcessor roiMask = new ByteProcessor(impStack.getWidth(),
+			impStack.getHeight());
+		roiMask.setColor(255);
+		roiMask.fill(roi);
+		setMask(roiMask);
+	}
+
+	/**
+	 * Pixels with a mean pre-edge count lower than the threshold are not fitted.
+	 * This excludes vacuum and holes. The threshold is combined with the mask.
+	 *
+	 * @param threshold The lowest mean count of the pre-edge images.
+	 */
+	public void setThreshold(final float threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Creates the list of active pixels for each row. The maps are set to NaN at
+	 * all pixels that are not fitted.
+	 */
+	private void findActivePixels() {
+		if (mask == null && threshold == Float.NEGATIVE_INFINITY) {
+			activeColumns = null;
+			return;
+		}
+		final int width = impStack.getWidth();
+		final int height = impStack.getHeight();
+		final float[][] preEdgePixels = new float[preEdgeIndices.length][];
+		for (int z = 0; z < preEdgeIndices.length; z++) {
+			preEdgePixels[z] = (float[]) impStack.getStack().getPixels(
+				preEdgeIndices[z]);
+		}
+		activeColumns = new int[height][];
+		final int[] columns = new int[width];
+		for (int y = 0; y < height; y++) {
+			int count = 0;
+			for (int x = 0; x < width; x++) {
+				final int index = y * width + x;
+				boolean active = mask == null || mask.get(index) != 0;
+				if (active && threshold != Float.NEGATIVE_INFINITY) {
+					double sum = 0;
+					for (int z = 0; z < preEdgePixels.length; z++) {
+						sum += preEdgePixels[z][index];
+					}
+					if (localSummation > 1) {
+						sum /= LocalSummation.getPixelCount(width, height, localSummation,
+							x, y);
+					}
+					active = sum / preEdgePixels.length >= threshold;
+				}
+				if (active) {
+					columns[count++] = x;
+				}
+				else {
+					rMap.setf(index, Float.NaN);
+					aMap.setf(index, Float.NaN);
+				}
+			}
+			activeColumns[y] = Arrays.copyOf(columns, count);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Enables the bootstrap error estimation. For each pixel the given number of
+	 * replicates is created by drawing Poisson distributed counts with the
+	 * measured counts as mean values. Each replicate is fitted with the selected
+	 * method, or with the {@link BackgroundModel} if one has been set, and the
+	 * elemental signal is calculated.
+	 * </p>
+	 * <p>
+	 * Only the running mean and variance of each pixel are kept, so the memory
+	 * needed does not depend on the number of replicates. The random numbers
+	 * use a fixed seed for each row, so the results are reproducible.
+	 * </p>
+	 *
+	 * @param replicates The number of replicates per pixel or 0 to disable the
+	 *          bootstrap.
+	 */
+	public void setBootstrapReplicates(final int replicates) {
+		this.bootstrapReplicates = replicates;
+	}
+
+	/**
+	 * Stops a running calculation. Rows that are already processed keep their
+	 * results, all other rows are skipped. This method can be called by any
+	 * {@link Thread}.
+	 */
+	public void cancel() {
+		cancelled = true;
+		final EFTEMj_Progress current = progress;
+		if (current != null) current.cancel();
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #cancel()} has been called or ESC has
+	 *         been pressed.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return The mean number of iterations per pixel of the last calculation.
+	 */
+	public double getMeanIterations() {
+		if (fitCount.get() == 0) return 0;
+		return (double) iterationSum.get() / fitCount.get();
+	}
+
+	/**
+	 * @return A summary of the iterations needed by the last calculation.
+	 */
+	public String getIterationStatistics() {
+		if (usedCache) return method + ": r and a have been taken from the cache.";
+		String statistics = MessageFormat.format(
+			"{0}: {1,number,0.00} iterations per pixel ({2,number,0} pixels)",
+			method, getMeanIterations(), fitCount.get());
+		if (method == AVAILABLE_METHODS.HYBRID) {
+			statistics += MessageFormat.format(
+				"\nLSE: {0,number,0} pixels, MLE: {1,number,0} pixels, LMA: {2,number,0} pixels",
+				methodCounts.get(AVAILABLE_METHODS.LSE.ordinal()), methodCounts.get(
+					AVAILABLE_METHODS.MLE.ordinal()), methodCounts.get(
+						AVAILABLE_METHODS.LMA.ordinal()));
+		}
+		if (warmStartCount.get() > 0) {
+			statistics += MessageFormat.format(
+				"\n{0,number,0} pixels warm started, {1,number,0} of them fitted again",
+				warmStartCount.get(), warmStartRetries.get());
+		}
+		return statistics;
+	}
+
+	/**
+	 * <p>
+	 * The three-window method: With two pre-edge images the power law passes
+	 * through both data points. All fit methods give the same result, so the
+	 * closed-form solution is used instead of a fit (see
+	 * {@link ClosedFormMaps#twoWindowPowerLaw}).
+	 * </p>
+	 * <p>
+	 * The pixel arrays are processed in parallel chunks of rows. r, a, the
+	 * errors, the elemental maps, the h-factor and the SNR are calculated in a
+	 * single pass.
+	 * </p>
+	 */
+	private void calculateTwoWindows() {
+		final int width = impStack.getWidth();
+		final float[] counts1 = (float[]) impStack.getStack().getPixels(
+			preEdgeIndices[0]);
+		final float[] counts2 = (float[]) impStack.getStack().getPixels(
+			preEdgeIndices[1]);
+		final double lnE1 = Math.log(preEdgeEnergyLosses[0]);
+		final double lnE2 = Math.log(preEdgeEnergyLosses[1]);
+		final float[][] postEdgePixels = new float[postEdgeIndices.length][];
+		final double[] lnPostEdge = new double[postEdgeIndices.length];
+		for (int z = 0; z < postEdgeIndices.length; z++) {
+			postEdgePixels[z] = (float[]) impStack.getStack().getPixels(
+				postEdgeIndices[z]);
+			lnPostEdge[z] = Math.log(postEdgeEnergyLosses[z]);
+		}
+		final float[] r = (float[]) rMap.getPixels();
+		final float[] a = (float[]) aMap.getPixels();
+		final byte[] errors = (byte[]) errorMap.getPixels();
+		ClosedFormMaps.forEachChunk(impStack.getHeight(), 16,
+			new ClosedFormMaps.ChunkTask()
+		{
+
+				@Override
+				public void run(final int from, final int to) {
+					final BackgroundUncertainty uncertainty = new BackgroundUncertainty(
+						preEdgeEnergyLosses, postEdgeEnergyLosses);
+					final double[] result = new double[2];
+					int fits = 0;
+					for (int y = from; y < to; y++) {
+						final int[] columns = activeColumns == null ? null
+							: activeColumns[y];
+						final int n = columns == null ? width : columns.length;
+						for (int k = 0; k < n; k++) {
+							final int i = y * width + (columns == null ? k : columns[k]);
+							final double c1 = counts1[i];
+							final double c2 = counts2[i];
+							final int errorCode = ClosedFormMaps.twoWindowPowerLaw(c1, lnE1,
+								c2, lnE2, result);
+							errors[i] = (byte) errorCode;
+							if (errorCode != PowerLawFit.ERROR_NONE) {
+								r[i] = Float.NaN;
+								a[i] = Float.NaN;
+								continue;
+							}
+							final double rValue = result[0];
+							r[i] = (float) rValue;
+							a[i] = (float) result[1];
+							// The closed-form solution is equal to the LSE.
+							if (methodMap != null) methodMap.set(i, AVAILABLE_METHODS.LSE
+								.ordinal());
+							// The fitted intensities are equal to the counts.
+							uncertainty.setMoments(c1 + c2, c1 * lnE1 + c2 * lnE2, c1 *
+								lnE1 * lnE1 + c2 * lnE2 * lnE2);
+							for (int z = 0; z < postEdgePixels.length; z++) {
+								final double bg = c2 * Math.exp(-rValue * (lnPostEdge[z] -
+									lnE2));
+								final double signal = postEdgePixels[z][i] - bg;
+								final double h = uncertainty.getHFactor(z, bg);
+								((float[]) elementalMaps[z].getPixels())[i] = (float) signal;
+								((float[]) hFactorMaps[z].getPixels())[i] = (float) h;
+								((float[]) snrMaps[z].getPixels())[i] = (float) (signal / Math
+									.sqrt(signal + h * bg));
+							}
+						}
+						fits += n;
+					}
+					fitCount.addAndGet(fits);
+				}
+			});
+		IJ.showProgress(1.0);
+	}
+
+	/**
+	 * Shows an {@link ImagePlus} with the map of the methods used by the hybrid
+	 * method. Each pixel contains the ordinal of an {@link AVAILABLE_METHODS} or
+	 * {@link #METHOD_MAP_NONE}. Nothing is shown for the other methods.
+	 *
+	 * @param cal A {@link Calibration} object or <code>null</code>.
+	 */
+	public void showMethodMap(final Calibration cal) {
+		if (methodMap == null) return;
+		final ImagePlus imp = new ImagePlus("Map of fit methods", methodMap);
+		if (cal != null) imp.setCalibration(cal);
+		imp.show();
+	}
+
+	/**
+	 * Shows one or more {@link ImagePlus} with the jump-ratio map. Each
+	 * post-edge image is divided by the pre-edge image with the highest energy
+	 * loss.
+	 *
+	 * @param cal A {@link Calibration} object or <code>null</code>.
+	 */
+	public void showJumpRatioMap(final Calibration cal) {
+		int preEdge = 0;
+		for (int i = 1; i < preEdgeEnergyLosses.length; i++) {
+			if (preEdgeEnergyLosses[i] > preEdgeEnergyLosses[preEdge]) preEdge = i;
 		}
-		catch (final InterruptedException e) {
-			e.printStackTrace();
+		final float[] preEdgePixels = (float[]) impStack.getStack().getPixels(
+			preEdgeIndices[preEdge]);
+		final FloatProcessor[] jumpRatioMaps = createPostEdgeMaps();
+		for (int z = 0; z < postEdgeIndices.length; z++) {
+			ClosedFormMaps.jumpRatio((float[]) impStack.getStack().getPixels(
+				postEdgeIndices[z]), preEdgePixels, (float[]) jumpRatioMaps[z]
+					.getPixels());
 		}
+		showPostEdgeMaps(jumpRatioMaps, "Jump-ratio map {0,number}eV", cal);
 	}
 
 	/**
@@ -336,11 +1102,8 @@ public void showRMap(final Calibration cal) {
 	 * @param cal A {@link Calibration} object or <code>null</code>.
 	 */
 	public void showLnAMap(final Calibration cal) {
-		final FloatProcessor lnAMap = new FloatProcessor(aMap.getWidth(), aMap
-			.getHeight());
-		lnAMap.copyBits(aMap, 0, 0, Blitter.COPY);
-		lnAMap.log();
-		final ImagePlus impLnAMap = new ImagePlus("Map of parameter ln(a)", lnAMap);
+		final ImagePlus impLnAMap = new ImagePlus("Map of parameter ln(a)",
+			getLnAMap());
 		if (cal != null) {
 			impLnAMap.setCalibration(cal);
 		}
@@ -381,6 +1144,99 @@ public void showElementalMap(final Calibration cal) {
 		}
 	}
 
+	/**
+	 * Shows one or more {@link ImagePlus} with the signal to noise ratio of the
+	 * elemental maps.
+	 *
+	 * @param cal A {@link Calibration} object or <code>null</code>.
+	 */
+	public void showSNRMap(final Calibration cal) {
+		showPostEdgeMaps(snrMaps, "SNR map {0,number}eV", cal);
+	}
+
+	/**
+	 * Shows one or more {@link ImagePlus} with Egerton's h-factor. It describes
+	 * the uncertainty of the extrapolated background.
+	 *
+	 * @param cal A {@link Calibration} object or <code>null</code>.
+	 */
+	public void showHFactorMap(final Calibration cal) {
+		showPostEdgeMaps(hFactorMaps, "h-factor map {0,number}eV", cal);
+	}
+
+	/**
+	 * Shows the mean and the standard deviation of the elemental signal of all
+	 * bootstrap replicates. Nothing is shown if the bootstrap was disabled.
+	 *
+	 * @param cal A {@link Calibration} object or <code>null</code>.
+	 */
+	public void showBootstrapMaps(final Calibration cal) {
+		if (bootstrapMeanMaps == null) return;
+		showPostEdgeMaps(bootstrapMeanMaps, "Bootstrap mean {0,number}eV", cal);
+		showPostEdgeMaps(bootstrapStdDevMaps,
+			"Bootstrap standard deviation {0,number}eV", cal);
+	}
+
+	/**
+	 * @return The standard deviation of the elemental signal of all bootstrap
+	 *         replicates or <code>null</code> if the bootstrap was disabled.
+	 */
+	public FloatProcessor[] getBootstrapStdDevMaps() {
+		return bootstrapStdDevMaps;
+	}
+
+	private void showPostEdgeMaps(final FloatProcessor[] maps,
+		final String pattern, final Calibration cal)
+	{
+		for (int z = 0; z < maps.length; z++) {
+			final ImagePlus imp = new ImagePlus(MessageFormat.format(pattern,
+				postEdgeEnergyLosses[z]), maps[z]);
+			if (cal != null) {
+				imp.setCalibration(cal);
+			}
+			imp.show();
+		}
+	}
+
+	/**
+	 * @return The map of the parameter <strong>r</strong>.
+	 */
+	FloatProcessor getRMap() {
+		return rMap;
+	}
+
+	/**
+	 * @return A new map of the parameter <strong>ln(a)</strong>.
+	 */
+	FloatProcessor getLnAMap() {
+		final FloatProcessor lnAMap = new FloatProcessor(aMap.getWidth(), aMap
+			.getHeight());
+		lnAMap.copyBits(aMap, 0, 0, Blitter.COPY);
+		lnAMap.log();
+		return lnAMap;
+	}
+
+	/**
+	 * @return The map of the errors that occurred at the power law fit.
+	 */
+	ByteProcessor getErrorMap() {
+		return errorMap;
+	}
+
+	/**
+	 * @return The elemental maps of all post-edge images.
+	 */
+	FloatProcessor[] getElementalMaps() {
+		return elementalMaps;
+	}
+
+	/**
+	 * @return The energy losses of all post-edge images.
+	 */
+	double[] getPostEdgeEnergyLosses() {
+		return postEdgeEnergyLosses;
+	}
+
 	/**
 	 * This method has to be called at the constructor. It will fill the arrays of
 	 * pre-edge and post-edge energy losses.
@@ -422,6 +1278,27 @@ private void splitEnergyLosses(final float[] allEnergyLosses,
 		}
 	}
 
+	/**
+	 * The buffers that are used to fit the bootstrap replicates of one row.
+	 */
+	private class ReplicateBuffers {
+
+		private final PowerLawKernel kernel = new PowerLawKernel(
+			preEdgeEnergyLosses, epsilon);
+		private final double[] rStart;
+		private final double[][] parameters;
+		private final double[] chi2;
+		private final int[] iterations;
+
+		private ReplicateBuffers(final int length) {
+			rStart = new double[length];
+			parameters = new double[backgroundKernel == null ? 2 : backgroundKernel
+				.getParameterCount()][length];
+			chi2 = new double[length];
+			iterations = new int[length];
+		}
+	}
+
 	/**
 	 * This Class implements {@link Runnable} to allow parallel calculation of
 	 * power low fit functions. This is possible, because the calculation is
@@ -437,6 +1314,22 @@ private class ElementalMappingTask implements Runnable {
 		 * The image row to process.
 		 */
 		private final int y;
+		/**
+		 * Is used to calculate the h-factor and the SNR of each pixel.
+		 */
+		private final BackgroundUncertainty uncertainty =
+			new BackgroundUncertainty(preEdgeEnergyLosses, postEdgeEnergyLosses);
+		/**
+		 * <code>true</code> for each pixel of the row that has been fitted
+		 * successfully. Only used by the bootstrap.
+		 */
+		private boolean[] fitted;
+		/**
+		 * The r and a of each pixel of the row that has been fitted successfully
+		 * with a power law. Only used by the bootstrap.
+		 */
+		private double[] fittedR;
+		private double[] fittedA;
 
 		/**
 		 * A default constructor that only sets one field.
@@ -450,72 +1343,622 @@ public ElementalMappingTask(final int y) {
 
 		@Override
 		public void run() {
+			if (progress.isCancelled()) return;
+			if (bootstrapReplicates > 0) {
+				fitted = new boolean[impStack.getWidth()];
+				fittedR = new double[impStack.getWidth()];
+				fittedA = new double[impStack.getWidth()];
+			}
+			if (backgroundKernel != null) {
+				fitRowModel();
+			}
+			else if (method == AVAILABLE_METHODS.LMA) {
+				fitRowBatched();
+			}
+			else if (method == AVAILABLE_METHODS.HYBRID) {
+				fitRowHybrid();
+			}
+			else if (useKernel && method == AVAILABLE_METHODS.MLE) {
+				fitRowKernel();
+			}
+			else {
+				fitRow();
+			}
+			if (bootstrapReplicates > 0 && !progress.isCancelled()) bootstrapRow();
+			progress.step();
+		}
+
+		/**
+		 * @return The columns of all pixels of the row that are fitted.
+		 */
+		private int[] getColumns() {
+			if (activeColumns != null) return activeColumns[y];
+			final int[] columns = new int[impStack.getWidth()];
+			for (int x = 0; x < columns.length; x++) {
+				columns[x] = x;
+			}
+			return columns;
+		}
+
+		/**
+		 * Creates an instance of {@link PowerLawFit} for each pixel of the row.
+		 */
+		private void fitRow() {
 			final double[] counts = new double[preEdgeIndices.length];
 			// A power low fit method has to extend PowerLawFit.
 			PowerLawFit fitMethod;
-			for (int x = 0; x < impStack.getWidth(); x++) {
-				float r;
-				float a;
+			// The r of the left neighbour or NaN if its fit has failed.
+			double previousR = Double.NaN;
+			long iterations = 0;
+			int warmStarted = 0;
+			int retries = 0;
+			final int[] columns = getColumns();
+			int previousX = -1;
+			for (final int x : columns) {
+				// Only the direct neighbour is used for a warm start.
+				if (x != previousX + 1) previousR = Double.NaN;
+				previousX = x;
 				for (int z = 0; z < preEdgeIndices.length; z++) {
 					counts[z] = impStack.getStack().getProcessor(preEdgeIndices[z]).getf(
 						x, y);
 				}
-				switch (method) {
-					case MLE:
+				boolean isWarmStart = false;
+				if (method == AVAILABLE_METHODS.MLE && warmStart && !Double.isNaN(
+					previousR))
+				{
+					fitMethod = new PowerLawFit_MLE(preEdgeEnergyLosses, counts, epsilon,
+						previousR);
+					isWarmStart = true;
+				}
+				else {
+					fitMethod = createPowerLawFit(method, preEdgeEnergyLosses, counts,
+						epsilon);
+				}
+				fitMethod.doFit();
+				if (isWarmStart) {
+					warmStarted++;
+					if (fitMethod.getErrorCode() != PowerLawFit.ERROR_NONE) {
+						// The neighbour is no good guess - use the default start value.
+						retries++;
+						iterations += fitMethod.getIterations();
 						fitMethod = new PowerLawFit_MLE(preEdgeEnergyLosses, counts,
 							epsilon);
-						break;
-					case LMA:
-						fitMethod = new PowerLawFit_LMA(preEdgeEnergyLosses, counts,
-							epsilon);
-						break;
-					case LSE:
-						fitMethod = new PowerLawFit_LSE(preEdgeEnergyLosses, counts,
-							epsilon);
-						break;
-					case WLSE:
-						fitMethod = new PowerLawFit_WLSE(preEdgeEnergyLosses, counts,
-							epsilon);
-						break;
-					default:
-						return;
+						fitMethod.doFit();
+					}
 				}
-				fitMethod.doFit();
+				iterations += fitMethod.getIterations();
 				if (fitMethod.getErrorCode() == PowerLawFit.ERROR_NONE) {
-					r = (float) fitMethod.getR();
-					if (Float.isInfinite(r)) {
-						errorMap.set(x, y, PowerLawFit.ERROR_R_INFINITE);
-						rMap.setf(x, y, Float.NaN);
-						aMap.setf(x, y, Float.NaN);
+					setResult(x, (float) fitMethod.getR(), (float) fitMethod.getA());
+					previousR = fitMethod.getR();
+				}
+				else {
+					setError(x, fitMethod.getErrorCode());
+					previousR = Double.NaN;
+				}
+			}
+			addStatistics(columns.length, iterations, warmStarted, retries);
+		}
+
+		/**
+		 * @param columns The columns of the pixels to read.
+		 * @return The pre-edge counts of the given pixels of the row (
+		 *         <code>counts[i][pixel]</code>).
+		 */
+		private double[][] getCounts(final int[] columns) {
+			final int width = impStack.getWidth();
+			final double[][] counts = new double[preEdgeIndices.length][columns
+				.length];
+			for (int z = 0; z < preEdgeIndices.length; z++) {
+				final float[] pixels = (float[]) impStack.getStack().getPixels(
+					preEdgeIndices[z]);
+				for (int i = 0; i < columns.length; i++) {
+					counts[z][i] = pixels[y * width + columns[i]];
+				}
+			}
+			return counts;
+		}
+
+		/**
+		 * Fits all pixels of the row at once by using the compiled
+		 * {@link BackgroundModel}.
+		 */
+		private void fitRowModel() {
+			final int[] columns = getColumns();
+			if (columns.length == 0) return;
+			final double[][] counts = getCounts(columns);
+			final double[][] parameters = new double[backgroundKernel
+				.getParameterCount()][columns.length];
+			final int[] errorCodes = new int[columns.length];
+			backgroundKernel.fit(counts, columns.length, parameters, errorCodes);
+			final boolean isPowerLaw = backgroundModel == null || backgroundModel
+				.isPowerLaw();
+			final double referenceEnergyLoss = backgroundKernel
+				.getReferenceEnergyLoss();
+			for (int i = 0; i < columns.length; i++) {
+				final int x = columns[i];
+				if (errorCodes[i] != PowerLawFit.ERROR_NONE) {
+					setError(x, errorCodes[i]);
+				}
+				else if (isPowerLaw) {
+					final double r = -parameters[1][i];
+					setResult(x, (float) r, (float) (Math.exp(parameters[0][i]) * Math
+						.pow(referenceEnergyLoss, r)));
+				}
+				else {
+					errorMap.set(x, y, PowerLawFit.ERROR_NONE);
+					rMap.setf(x, y, Float.NaN);
+					aMap.setf(x, y, Float.NaN);
+					for (int z = 0; z < postEdgeIndices.length; z++) {
+						final float value = impStack.getStack().getProcessor(
+							postEdgeIndices[z]).getf(x, y);
+						elementalMaps[z].setf(x, y, (float) (value - backgroundKernel
+							.extrapolate(parameters, i, z)));
 					}
-					else {
-						rMap.setf(x, y, r);
-						a = (float) fitMethod.getA();
-						if (Float.isInfinite(a)) {
-							errorMap.set(x, y, PowerLawFit.ERROR_A_INFINITE);
-							rMap.setf(x, y, Float.NaN);
-							aMap.setf(x, y, Float.NaN);
-						}
-						else {
-							errorMap.set(x, y, PowerLawFit.ERROR_NONE);
-							aMap.setf(x, y, a);
-							for (int z = 0; z < postEdgeIndices.length; z++) {
-								final float value = impStack.getStack().getProcessor(
-									postEdgeIndices[z]).getf(x, y);
-								final float bg = (float) (a * Math.pow(postEdgeEnergyLosses[z],
-									-r));
-								elementalMaps[z].setf(x, y, value - bg);
-							}
+					if (fitted != null) fitted[x] = true;
+				}
+			}
+			addStatistics(columns.length, 0, 0, 0);
+		}
+
+		/**
+		 * Fits all pixels of the row at once by using {@link PowerLawKernel}. With
+		 * a warm start each block of pixels starts with the r of its left
+		 * neighbour (see {@link PowerLawKernel#fitMLEWarmStart}).
+		 */
+		private void fitRowKernel() {
+			final int[] columns = getColumns();
+			if (columns.length == 0) return;
+			final double[][] counts = getCounts(columns);
+			final double[] r = new double[columns.length];
+			final double[] a = new double[columns.length];
+			final int[] errorCodes = new int[columns.length];
+			final PowerLawKernel kernel = new PowerLawKernel(preEdgeEnergyLosses,
+				epsilon);
+			final double[][] moments = new double[3][columns.length];
+			kernel.setMoments(moments);
+			final int[] warmStartStatistics = new int[2];
+			final long iterations = warmStart ? kernel.fitMLEWarmStart(counts,
+				columns.length, columns, r, a, errorCodes, warmStartStatistics)
+				: kernel.fitMLE(counts, columns.length, r, a, errorCodes);
+			for (int i = 0; i < columns.length; i++) {
+				if (errorCodes[i] == PowerLawFit.ERROR_NONE) {
+					setResult(columns[i], (float) r[i], (float) a[i], moments, i);
+				}
+				else {
+					setError(columns[i], errorCodes[i]);
+				}
+			}
+			addStatistics(columns.length, iterations, warmStartStatistics[0],
+				warmStartStatistics[1]);
+		}
+
+		/**
+		 * <p>
+		 * The hybrid method fits all pixels of the row by the LSE first. The MLE
+		 * is used for pixels with low counts, a large &chi;<sup>2</sup> or a failed
+		 * LSE. It starts with the r of the LSE and uses the same
+		 * {@link PowerLawKernel}. If the MLE fails too, the LMA is used.
+		 * </p>
+		 * <p>
+		 * The used method of each pixel is saved at the method map.
+		 * </p>
+		 */
+		private void fitRowHybrid() {
+			final int[] columns = getColumns();
+			if (columns.length == 0) return;
+			final double[][] counts = getCounts(columns);
+			final double[] r = new double[columns.length];
+			final double[] a = new double[columns.length];
+			final int[] errorCodes = new int[columns.length];
+			final AVAILABLE_METHODS[] usedMethods =
+				new AVAILABLE_METHODS[columns.length];
+			final PowerLawKernel kernel = new PowerLawKernel(preEdgeEnergyLosses,
+				epsilon);
+			kernel.fitLSE(counts, columns.length, r, a, errorCodes);
+			final double maxChi2 = HYBRID_MAX_CHI2 * Math.max(1,
+				preEdgeIndices.length - 2);
+			final int[] escalated = new int[columns.length];
+			int escalatedCount = 0;
+			for (int i = 0; i < columns.length; i++) {
+				usedMethods[i] = AVAILABLE_METHODS.LSE;
+				boolean lowCounts = false;
+				for (int z = 0; z < preEdgeIndices.length; z++) {
+					if (counts[z][i] < HYBRID_MIN_COUNTS) lowCounts = true;
+				}
+				if (lowCounts || errorCodes[i] != PowerLawFit.ERROR_NONE || !(kernel
+					.chi2(counts, i, r[i], a[i]) <= maxChi2))
+				{
+					escalated[escalatedCount++] = i;
+				}
+			}
+			long iterations = 0;
+			final double[][] moments = new double[3][columns.length];
+			if (escalatedCount > 0) {
+				final double[][] escalatedCounts =
+					new double[preEdgeIndices.length][escalatedCount];
+				final double[] rStart = new double[escalatedCount];
+				for (int j = 0; j < escalatedCount; j++) {
+					final int i = escalated[j];
+					for (int z = 0; z < preEdgeIndices.length; z++) {
+						escalatedCounts[z][j] = counts[z][i];
+					}
+					rStart[j] = r[i];
+				}
+				final double[] rMLE = new double[escalatedCount];
+				final double[] aMLE = new double[escalatedCount];
+				final int[] errorCodesMLE = new int[escalatedCount];
+				final double[][] momentsMLE = new double[3][escalatedCount];
+				kernel.setMoments(momentsMLE);
+				iterations = kernel.fitMLE(escalatedCounts, escalatedCount, rStart,
+					rMLE, aMLE, errorCodesMLE);
+				final double[] pixelCounts = new double[preEdgeIndices.length];
+				for (int j = 0; j < escalatedCount; j++) {
+					final int i = escalated[j];
+					if (errorCodesMLE[j] == PowerLawFit.ERROR_NONE) {
+						r[i] = rMLE[j];
+						a[i] = aMLE[j];
+						errorCodes[i] = PowerLawFit.ERROR_NONE;
+						usedMethods[i] = AVAILABLE_METHODS.MLE;
+						for (int k = 0; k < moments.length; k++) {
+							moments[k][i] = momentsMLE[k][j];
 						}
+						continue;
+					}
+					for (int z = 0; z < preEdgeIndices.length; z++) {
+						pixelCounts[z] = escalatedCounts[z][j];
 					}
+					final PowerLawFit fitMethod = new PowerLawFit_LMA(
+						preEdgeEnergyLosses, pixelCounts, epsilon);
+					fitMethod.doFit();
+					iterations += fitMethod.getIterations();
+					r[i] = fitMethod.getR();
+					a[i] = fitMethod.getA();
+					errorCodes[i] = fitMethod.getErrorCode();
+					usedMethods[i] = AVAILABLE_METHODS.LMA;
+				}
+			}
+			final int[] countsOfRow = new int[methodCounts.length()];
+			for (int i = 0; i < columns.length; i++) {
+				final int x = columns[i];
+				if (errorCodes[i] == PowerLawFit.ERROR_NONE) {
+					setResult(x, (float) r[i], (float) a[i],
+						usedMethods[i] == AVAILABLE_METHODS.MLE ? moments : null, i);
+					methodMap.set(x, y, usedMethods[i].ordinal());
+					countsOfRow[usedMethods[i].ordinal()]++;
+				}
+				else {
+					setError(x, errorCodes[i]);
+				}
+			}
+			for (int i = 0; i < countsOfRow.length; i++) {
+				if (countsOfRow[i] > 0) methodCounts.addAndGet(i, countsOfRow[i]);
+			}
+			addStatistics(columns.length, iterations, 0, 0);
+		}
+
+		/**
+		 * Adds the statistics of one row to the totals. This is done once per row
+		 * to keep the synchronisation between the {@link Thread}s low.
+		 */
+		private void addStatistics(final int fits, final long iterations,
+			final int warmStarted, final int retries)
+		{
+			fitCount.addAndGet(fits);
+			iterationSum.addAndGet(iterations);
+			warmStartCount.addAndGet(warmStarted);
+			warmStartRetries.addAndGet(retries);
+		}
+
+		/**
+		 * Fits all pixels of the row at once by using {@link BatchLMA}. The
+		 * start parameters are estimated by a linear fit of the logarithmised
+		 * counts.
+		 */
+		private void fitRowBatched() {
+			final int[] columns = getColumns();
+			if (columns.length == 0) return;
+			final double[][] counts = getCounts(columns);
+			final double[][] parameters = new double[2][columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				estimateStartParameters(counts, i, parameters);
+			}
+			final double[] chi2 = new double[columns.length];
+			final int[] iterations = new int[columns.length];
+			batchLMA.fit(counts, parameters, chi2, iterations);
+			long iterationsOfRow = 0;
+			for (int i = 0; i < columns.length; i++) {
+				final int x = columns[i];
+				if (iterations[i] != BatchLMA.FAILED) iterationsOfRow += iterations[i];
+				final double r = parameters[1][i];
+				final double a = parameters[0][i] * Math.pow(referenceEnergyLoss, r);
+				if (iterations[i] == BatchLMA.FAILED) {
+					setError(x, PowerLawFit.ERROR_CONVERGE);
+				}
+				else if (Double.isNaN(r)) {
+					setError(x, PowerLawFit.ERROR_R_NAN);
+				}
+				else if (Double.isNaN(a)) {
+					setError(x, PowerLawFit.ERROR_A_NAN);
 				}
 				else {
-					errorMap.set(x, y, fitMethod.getErrorCode());
+					setResult(x, (float) r, (float) a);
+				}
+			}
+			addStatistics(columns.length, iterationsOfRow, 0, 0);
+		}
+
+		/**
+		 * Uses the least squares fit of ln(I) = ln(a) - r&sdot;ln(E) to get the
+		 * start parameters. If the counts are not positive, r = 4 is used.
+		 *
+		 * @param counts The counts of all fitted pixels of the row.
+		 * @param x The index of the pixel to process at counts.
+		 * @param parameters The start values of b = a&sdot;E<sub>0</sub>
+		 *          <sup>-r</sup> and r are written to this array.
+		 */
+		private void estimateStartParameters(final double[][] counts, final int x,
+			final double[][] parameters)
+		{
+			double xMean = 0;
+			double yMean = 0;
+			for (int z = 0; z < preEdgeEnergyLosses.length; z++) {
+				xMean += Math.log(preEdgeEnergyLosses[z]);
+				yMean += Math.log(counts[z][x]);
+			}
+			xMean /= preEdgeEnergyLosses.length;
+			yMean /= preEdgeEnergyLosses.length;
+			double sum = 0;
+			double sum2 = 0;
+			for (int z = 0; z < preEdgeEnergyLosses.length; z++) {
+				final double dx = Math.log(preEdgeEnergyLosses[z]) - xMean;
+				sum += dx * (Math.log(counts[z][x]) - yMean);
+				sum2 += dx * dx;
+			}
+			double r = -sum / sum2;
+			// xMean is ln(E0), so b is the geometric mean of the counts.
+			double b = Math.exp(yMean);
+			if (Double.isNaN(b) || Double.isInfinite(b) || Double.isNaN(r) || Double
+				.isInfinite(r))
+			{
+				r = 4;
+				b = counts[0][x] * Math.pow(preEdgeEnergyLosses[0] /
+					referenceEnergyLoss, r);
+			}
+			parameters[0][x] = b;
+			parameters[1][x] = r;
+		}
+
+		/**
+		 * Writes the result of a successful fit to all maps.
+		 *
+		 * @param x The processed pixel of the row.
+		 * @param r The fitted parameter r.
+		 * @param a The fitted parameter a.
+		 */
+		private void setResult(final int x, final float r, final float a) {
+			setResult(x, r, a, null, 0);
+		}
+
+		/**
+		 * Writes the result of a successful fit to all maps.
+		 *
+		 * @param x The processed pixel of the row.
+		 * @param r The fitted parameter r.
+		 * @param a The fitted parameter a.
+		 * @param moments The moments of the fitted intensities that have been
+		 *          calculated by {@link PowerLawKernel} (see
+		 *          {@link PowerLawKernel#setMoments}), or <code>null</code> to
+		 *          calculate them from r and a.
+		 * @param i The index of the pixel at <code>moments</code>.
+		 */
+		private void setResult(final int x, final float r, final float a,
+			final double[][] moments, final int i)
+		{
+			if (Float.isInfinite(r)) {
+				errorMap.set(x, y, PowerLawFit.ERROR_R_INFINITE);
+				rMap.setf(x, y, Float.NaN);
+				aMap.setf(x, y, Float.NaN);
+			}
+			else {
+				rMap.setf(x, y, r);
+				if (Float.isInfinite(a)) {
+					errorMap.set(x, y, PowerLawFit.ERROR_A_INFINITE);
 					rMap.setf(x, y, Float.NaN);
 					aMap.setf(x, y, Float.NaN);
 				}
+				else {
+					errorMap.set(x, y, PowerLawFit.ERROR_NONE);
+					aMap.setf(x, y, a);
+					if (moments == null) {
+						uncertainty.update(r, a);
+					}
+					else {
+						uncertainty.setMoments(moments[0][i], moments[1][i],
+							moments[2][i]);
+					}
+					for (int z = 0; z < postEdgeIndices.length; z++) {
+						final float value = impStack.getStack().getProcessor(
+							postEdgeIndices[z]).getf(x, y);
+						final float bg = (float) (a * Math.pow(postEdgeEnergyLosses[z],
+							-r));
+						final float signal = value - bg;
+						elementalMaps[z].setf(x, y, signal);
+						final double h = uncertainty.getHFactor(z, bg);
+						hFactorMaps[z].setf(x, y, (float) h);
+						snrMaps[z].setf(x, y, (float) (signal / Math.sqrt(signal + h *
+							bg)));
+					}
+					if (fitted != null) {
+						fitted[x] = true;
+						fittedR[x] = r;
+						fittedA[x] = a;
+					}
+				}
+			}
+		}
+
+		/**
+		 * <p>
+		 * Fits Poisson replicates of the counts of all pixels of the row that
+		 * have been fitted successfully. Each replicate of the whole row is drawn
+		 * to the same buffers and fitted at once by the row kernel of the
+		 * selected method (see {@link #fitReplicate}). The mean and the variance
+		 * of the elemental signal are accumulated with Welford's algorithm.
+		 * Replicates whose fit fails are ignored.
+		 * </p>
+		 * <p>
+		 * The random numbers use the row as seed, so the results do not depend
+		 * on the number of {@link Thread}s.
+		 * </p>
+		 */
+		private void bootstrapRow() {
+			final int width = impStack.getWidth();
+			final int[] columns = new int[width];
+			int length = 0;
+			for (int x = 0; x < width; x++) {
+				if (fitted[x]) columns[length++] = x;
+			}
+			if (length == 0) return;
+			final float[][] preEdgePixels = new float[preEdgeIndices.length][];
+			for (int z = 0; z < preEdgeIndices.length; z++) {
+				preEdgePixels[z] = (float[]) impStack.getStack().getPixels(
+					preEdgeIndices[z]);
+			}
+			final float[][] postEdgePixels = new float[postEdgeIndices.length][];
+			for (int z = 0; z < postEdgeIndices.length; z++) {
+				postEdgePixels[z] = (float[]) impStack.getStack().getPixels(
+					postEdgeIndices[z]);
+			}
+			final PoissonRandom random = new PoissonRandom(y);
+			final double[][] counts = new double[preEdgeIndices.length][length];
+			final double[] r = new double[length];
+			final double[] a = new double[length];
+			final int[] errorCodes = new int[length];
+			final ReplicateBuffers buffers = new ReplicateBuffers(length);
+			final int[] n = new int[length];
+			final double[][] signalMean = new double[postEdgeIndices.length][length];
+			final double[][] signalM2 = new double[postEdgeIndices.length][length];
+			final boolean isPowerLaw = backgroundModel == null || backgroundModel
+				.isPowerLaw();
+			final int offset = y * width;
+			for (int i = 0; i < bootstrapReplicates; i++) {
+				for (int z = 0; z < preEdgeIndices.length; z++) {
+					for (int j = 0; j < length; j++) {
+						counts[z][j] = random.nextPoisson(preEdgePixels[z][offset +
+							columns[j]]);
+					}
+				}
+				fitReplicate(counts, length, columns, buffers, r, a, errorCodes);
+				for (int j = 0; j < length; j++) {
+					if (errorCodes[j] != PowerLawFit.ERROR_NONE || isPowerLaw && (Double
+						.isNaN(r[j]) || Double.isInfinite(a[j])))
+					{
+						continue;
+					}
+					n[j]++;
+					for (int z = 0; z < postEdgeIndices.length; z++) {
+						final double background = isPowerLaw ? a[j] * Math.pow(
+							postEdgeEnergyLosses[z], -r[j]) : backgroundKernel.extrapolate(
+								buffers.parameters, j, z);
+						final double signal = random.nextPoisson(postEdgePixels[z][offset +
+							columns[j]]) - background;
+						final double delta = signal - signalMean[z][j];
+						signalMean[z][j] += delta / n[j];
+						signalM2[z][j] += delta * (signal - signalMean[z][j]);
+					}
+				}
+			}
+			for (int j = 0; j < length; j++) {
+				final int index = offset + columns[j];
+				for (int z = 0; z < postEdgeIndices.length; z++) {
+					bootstrapMeanMaps[z].setf(index, n[j] > 0 ? (float) signalMean[z][j]
+						: Float.NaN);
+					bootstrapStdDevMaps[z].setf(index, n[j] > 1 ? (float) Math.sqrt(
+						signalM2[z][j] / (n[j] - 1)) : Float.NaN);
+				}
+			}
+		}
+
+		/**
+		 * Fits one replicate of the row with the same method as the measured
+		 * counts. The MLE starts with the r of the measured counts and the LMA
+		 * with r and a of the measured counts. The WLSE has no row kernel and
+		 * uses {@link PowerLawFit_WLSE} like {@link #fitRow()}. A
+		 * {@link BackgroundModel} that is no power law only fills the parameters
+		 * of the buffers.
+		 *
+		 * @param counts The replicate counts (<code>counts[i][pixel]</code>).
+		 * @param length The number of pixels.
+		 * @param columns The column of each pixel.
+		 */
+		private void fitReplicate(final double[][] counts, final int length,
+			final int[] columns, final ReplicateBuffers buffers, final double[] r,
+			final double[] a, final int[] errorCodes)
+		{
+			if (backgroundKernel != null) {
+				backgroundKernel.fit(counts, length, buffers.parameters, errorCodes);
+				if (backgroundModel != null && !backgroundModel.isPowerLaw()) return;
+				final double e0 = backgroundKernel.getReferenceEnergyLoss();
+				for (int j = 0; j < length; j++) {
+					r[j] = -buffers.parameters[1][j];
+					a[j] = Math.exp(buffers.parameters[0][j]) * Math.pow(e0, r[j]);
+				}
+			}
+			else if (method == AVAILABLE_METHODS.MLE ||
+				method == AVAILABLE_METHODS.HYBRID)
+			{
+				for (int j = 0; j < length; j++) {
+					buffers.rStart[j] = fittedR[columns[j]];
+				}
+				buffers.kernel.fitMLE(counts, length, buffers.rStart, r, a,
+					errorCodes);
+			}
+			else if (method == AVAILABLE_METHODS.LSE) {
+				buffers.kernel.fitLSE(counts, length, r, a, errorCodes);
+			}
+			else if (method == AVAILABLE_METHODS.LMA) {
+				for (int j = 0; j < length; j++) {
+					final double rStart = fittedR[columns[j]];
+					buffers.parameters[0][j] = fittedA[columns[j]] * Math.pow(
+						referenceEnergyLoss, -rStart);
+					buffers.parameters[1][j] = rStart;
+				}
+				batchLMA.fit(counts, buffers.parameters, buffers.chi2,
+					buffers.iterations);
+				for (int j = 0; j < length; j++) {
+					r[j] = buffers.parameters[1][j];
+					a[j] = buffers.parameters[0][j] * Math.pow(referenceEnergyLoss,
+						r[j]);
+					errorCodes[j] = buffers.iterations[j] == BatchLMA.FAILED
+						? PowerLawFit.ERROR_CONVERGE : PowerLawFit.ERROR_NONE;
+				}
+			}
+			else {
+				final double[] pixelCounts = new double[counts.length];
+				for (int j = 0; j < length; j++) {
+					for (int z = 0; z < counts.length; z++) {
+						pixelCounts[z] = counts[z][j];
+					}
+					final PowerLawFit fitMethod = createPowerLawFit(method,
+						preEdgeEnergyLosses, pixelCounts, epsilon);
+					fitMethod.doFit();
+					r[j] = fitMethod.getR();
+					a[j] = fitMethod.getA();
+					errorCodes[j] = fitMethod.getErrorCode();
+				}
 			}
-			ElementalMapping.updateProgress();
+		}
+
+		/**
+		 * Marks a pixel where the fit has failed.
+		 *
+		 * @param x The processed pixel of the row.
+		 * @param errorCode One of the error codes of {@link PowerLawFit}.
+		 */
+		private void setError(final int x, final int errorCode) {
+			errorMap.set(x, y, errorCode);
+			rMap.setf(x, y, Float.NaN);
+			aMap.setf(x, y, Float.NaN);
 		}
 	}
 }
@@ -0,0 +1,338 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package elemental_map;
+
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import eftemj.EFTEMj_Debug;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.StackConverter;
+import tools.EnergyLossExtractor;
+import tools.ExposureExtractor;
+
+/**
+ * <p>
+ * Creates elemental maps of all EFTEM series (TIFF stacks) in a folder without
+ * showing any window. The energy losses and exposure times are taken from the
+ * slice labels, like the {@link ElementalMappingPlugin} does.
+ * </p>
+ * <p>
+ * Loading a series is done by a second {@link Thread}: While the current
+ * series is fitted, the next one is read from disk and converted to 32-bit.
+ * The maps of each series are written to the output folder as TIFF files.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class ElementalMappingBatch {
+
+	/**
+	 * A series that has been loaded by the prefetch {@link Thread}.
+	 */
+	private static class Series {
+
+		private final File file;
+		private ImagePlus imp;
+		private float[] energyLosses;
+		private float[] exposures;
+		/**
+		 * <code>null</code> if the series can be processed.
+		 */
+		private String error;
+
+		private Series(final File file) {
+			this.file = file;
+		}
+	}
+
+	private final File inputFolder;
+	private final File outputFolder;
+	private final float edgeEnergyLoss;
+	private final float epsilon;
+	private final AVAILABLE_METHODS method;
+	/**
+	 * Pixels with a mean pre-edge count lower than this value are not fitted.
+	 * 0 disables the threshold.
+	 */
+	private float threshold = 0;
+	/**
+	 * The edge length of the local summation. 1 disables it.
+	 */
+	private int localSummation = 1;
+	/**
+	 * <code>true</code> if the mapping of a series has been cancelled by
+	 * pressing ESC. The remaining series are not processed.
+	 */
+	private boolean cancelled;
+
+	/**
+	 * @param inputFolder The folder that contains the EFTEM series.
+	 * @param outputFolder The maps are saved to this folder. It is created if
+	 *          necessary.
+	 * @param edgeEnergyLoss The onset energy of the considered ionisation edge.
+	 * @param epsilon The accuracy of the power law fit.
+	 * @param method The method used for fitting the power law function.
+	 */
+	public ElementalMappingBatch(final File inputFolder, final File outputFolder,
+		final float edgeEnergyLoss, final float epsilon,
+		final AVAILABLE_METHODS method)
+	{
+		this.inputFolder = inputFolder;
+		this.outputFolder = outputFolder;
+		this.edgeEnergyLoss = edgeEnergyLoss;
+		this.epsilon = epsilon;
+		this.method = method;
+	}
+
+	/**
+	 * @param threshold Pixels with a mean pre-edge count lower than this value
+	 *          are not fitted. 0 disables the threshold.
+	 * @see ElementalMapping#setThreshold(float)
+	 */
+	public void setThreshold(final float threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param size The edge length of the local summation. 1 disables it.
+	 * @see ElementalMapping#setLocalSummation(int)
+	 */
+	public void setLocalSummation(final int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException(
+				"The local summation must be 1 or larger.");
+		}
+		this.localSummation = size;
+	}
+
+	/**
+	 * @return All TIFF files of the input folder, sorted by name.
+	 */
+	public File[] getSeriesFiles() {
+		final File[] files = inputFolder.listFiles();
+		if (files == null) return new File[0];
+		int count = 0;
+		for (final File file : files) {
+			final String name = file.getName().toLowerCase();
+			if (file.isFile() && (name.endsWith(".tif") || name.endsWith(".tiff"))) {
+				files[count++] = file;
+			}
+		}
+		final File[] seriesFiles = Arrays.copyOf(files, count);
+		Arrays.sort(seriesFiles);
+		return seriesFiles;
+	}
+
+	/**
+	 * Processes all series of the input folder. Series that can't be processed
+	 * are skipped and a message is written to the log. If the mapping of a
+	 * series is cancelled, the batch stops without saving its maps.
+	 *
+	 * @return The number of series that have been processed.
+	 */
+	public int run() {
+		final File[] files = getSeriesFiles();
+		if (files.length == 0) return 0;
+		if (!outputFolder.isDirectory() && !outputFolder.mkdirs()) {
+			throw new IllegalArgumentException("Can't create the folder " +
+				outputFolder.getPath());
+		}
+		final ExecutorService loader = Executors.newSingleThreadExecutor();
+		cancelled = false;
+		int processed = 0;
+		try {
+			Future<Series> next = loader.submit(createLoadTask(files[0]));
+			for (int i = 0; i < files.length; i++) {
+				final Series series = next.get();
+				if (i + 1 < files.length) {
+					next = loader.submit(createLoadTask(files[i + 1]));
+				}
+				if (series.error != null) {
+					IJ.log(MessageFormat.format("Skipped {0}: {1}", series.file
+						.getName(), series.error));
+					continue;
+				}
+				IJ.showStatus(MessageFormat.format("Elemental mapping {0}/{1}: {2}",
+					i + 1, files.length, series.file.getName()));
+				if (process(series)) {
+					processed++;
+				}
+				else if (cancelled) {
+					IJ.log(MessageFormat.format("Cancelled at {0}.", series.file
+						.getName()));
+					break;
+				}
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (final ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		finally {
+			loader.shutdownNow();
+		}
+		IJ.showStatus(MessageFormat.format(
+			"Elemental mapping of {0} series has been finished.", processed));
+		return processed;
+	}
+
+	/**
+	 * @return <code>true</code> if the last run has been cancelled by pressing
+	 *         ESC.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	private Callable<Series> createLoadTask(final File file) {
+		return new Callable<Series>() {
+
+			@Override
+			public Series call() {
+				return load(file);
+			}
+		};
+	}
+
+	/**
+	 * Opens a series, converts it to 32-bit and reads the slice labels. A file
+	 * that can't be read sets the error of the series, so only this series is
+	 * skipped.
+	 */
+	private Series load(final File file) {
+		final Series series = new Series(file);
+		try {
+			return load(series);
+		}
+		catch (final RuntimeException e) {
+			series.error = "The file can't be read: " + e;
+			return series;
+		}
+	}
+
+	private Series load(final Series series) {
+		final File file = series.file;
+		final ImagePlus imp = IJ.openImage(file.getPath());
+		if (imp == null) {
+			series.error = "The file can't be opened.";
+			return series;
+		}
+		if (imp.getStackSize() < 3) {
+			series.error = "At least 3 images are necessary.";
+			return series;
+		}
+		if (imp.getBitDepth() != 32) {
+			new StackConverter(imp).convertToGray32();
+		}
+		series.energyLosses = new float[imp.getStackSize()];
+		series.exposures = new float[imp.getStackSize()];
+		for (int i = 0; i < series.energyLosses.length; i++) {
+			series.energyLosses[i] = new EnergyLossExtractor().extractFloatFromTitle(
+				imp, i);
+			if (series.energyLosses[i] == 0) {
+				series.error = "There is no energy loss at slice " + (i + 1) + ".";
+				return series;
+			}
+			series.exposures[i] = new ExposureExtractor().extractFloatFromTitle(imp,
+				i);
+		}
+		series.imp = imp;
+		return series;
+	}
+
+	/**
+	 * Creates the maps of a single series and saves them.
+	 *
+	 * @return <code>true</code> if the maps have been saved. If the mapping has
+	 *         been cancelled, the field <code>cancelled</code> is set.
+	 */
+	private boolean process(final Series series) {
+		final ElementalMapping mapping;
+		if (ElementalMapping.hasVaryingExposure(series.exposures)) {
+			mapping = new ElementalMapping(series.energyLosses, series.exposures,
+				series.imp, edgeEnergyLoss, epsilon, method);
+		}
+		else {
+			mapping = new ElementalMapping(series.energyLosses, series.imp,
+				edgeEnergyLoss, epsilon, method);
+		}
+		if (threshold > 0) mapping.setThreshold(threshold);
+		mapping.setLocalSummation(localSummation);
+		try {
+			mapping.startCalculation();
+		}
+		catch (final IllegalArgumentException e) {
+			IJ.log(MessageFormat.format("Skipped {0}: {1}", series.file.getName(), e
+				.getMessage()));
+			return false;
+		}
+		if (mapping.isCancelled()) {
+			cancelled = true;
+			return false;
+		}
+		EFTEMj_Debug.log(series.file.getName() + ": " + mapping
+			.getIterationStatistics(), false);
+		final String prefix = series.imp.getShortTitle();
+		final Calibration cal = series.imp.getCalibration();
+		save(mapping.getRMap(), prefix + "_r", cal);
+		save(mapping.getLnAMap(), prefix + "_lnA", cal);
+		save(mapping.getErrorMap(), prefix + "_errors", cal);
+		final FloatProcessor[] elementalMaps = mapping.getElementalMaps();
+		final double[] postEdgeEnergyLosses = mapping.getPostEdgeEnergyLosses();
+		for (int z = 0; z < elementalMaps.length; z++) {
+			save(elementalMaps[z], MessageFormat.format("{0}_map_{1,number,#.#}eV",
+				prefix, postEdgeEnergyLosses[z]), cal);
+		}
+		return true;
+	}
+
+	private void save(final ImageProcessor ip, final String title,
+		final Calibration cal)
+	{
+		final ImagePlus imp = new ImagePlus(title, ip);
+		imp.setCalibration(cal);
+		new FileSaver(imp).saveAsTiff(new File(outputFolder, title + ".tif")
+			.getPath());
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package elemental_map;
+
+import java.io.File;
+
+import elemental_map.ElementalMapping.AVAILABLE_EPSILONS;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+/**
+ * This plugin creates elemental maps of all EFTEM series in a folder by using
+ * {@link ElementalMappingBatch}. No windows are shown; the maps are saved to
+ * a sub folder. All parameters can be passed as macro options, which allows
+ * to run the plugin in headless mode.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class ElementalMappingBatchPlugin implements PlugIn {
+
+	/**
+	 * The name of the sub folder that is used for the results.
+	 */
+	private static final String RESULTS_FOLDER = "elemental_maps";
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.PlugIn#run(java.lang.String)
+	 */
+	@Override
+	public void run(final String arg) {
+		final GenericDialog gd = new GenericDialog("Batch elemental mapping");
+		gd.addStringField("Folder:", "", 30);
+		gd.addNumericField("Edge energy loss:", 0, 0, 6, "eV");
+		gd.addChoice("Epsilon:", AVAILABLE_EPSILONS.toStringArray(),
+			AVAILABLE_EPSILONS.values()[0].toString());
+		gd.addChoice("Method:", AVAILABLE_METHODS.toStringArray(),
+			AVAILABLE_METHODS.MLE.toString());
+		gd.addNumericField("Threshold:", 0, 1, 6, "counts");
+		gd.addNumericField("Local summation:", 1, 0, 3, "pixels");
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		String path = gd.getNextString();
+		final float edgeEnergyLoss = (float) gd.getNextNumber();
+		final float epsilon = (float) AVAILABLE_EPSILONS.values()[gd
+			.getNextChoiceIndex()].getValue();
+		final AVAILABLE_METHODS method = AVAILABLE_METHODS.values()[gd
+			.getNextChoiceIndex()];
+		final float threshold = (float) gd.getNextNumber();
+		final int localSummation = (int) gd.getNextNumber();
+		if (path.equals("")) {
+			path = IJ.getDirectory("Select a folder with EFTEM series...");
+			if (path == null) return;
+		}
+		final File folder = new File(path);
+		if (!folder.isDirectory()) {
+			IJ.error("Batch elemental mapping", path + " is not a folder.");
+			return;
+		}
+		if (edgeEnergyLoss <= 0) {
+			IJ.error("Batch elemental mapping",
+				"The edge energy loss has to be larger than 0.");
+			return;
+		}
+		final ElementalMappingBatch batch = new ElementalMappingBatch(folder,
+			new File(folder, RESULTS_FOLDER), edgeEnergyLoss, epsilon, method);
+		try {
+			batch.setThreshold(threshold);
+			batch.setLocalSummation(localSummation);
+			final int processed = batch.run();
+			IJ.log(processed + " series have been processed.");
+		}
+		catch (final IllegalArgumentException e) {
+			IJ.error("Batch elemental mapping", e.getMessage());
+		}
+	}
+}
@@ -27,6 +27,9 @@
 
 package elemental_map;
 
+import java.awt.AWTEvent;
+import java.awt.Checkbox;
+import java.awt.Choice;
 import java.awt.FlowLayout;
 import java.awt.Label;
 import java.awt.Panel;
@@ -37,10 +40,12 @@
 
 import javax.swing.JLabel;
 
+import eftemj.EFTEMj_Debug;
 import elemental_map.ElementalMapping.AVAILABLE_METHODS;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ij.plugin.filter.ExtendedPlugInFilter;
@@ -98,6 +103,58 @@ public class ElementalMappingPlugin implements ExtendedPlugInFilter {
 	 * The selected fit method.
 	 */
 	private AVAILABLE_METHODS method;
+	/**
+	 * If <code>true</code>, the MLE of each pixel starts with the result of the
+	 * neighbouring pixel.
+	 */
+	private boolean warmStart;
+	/**
+	 * The preview that is shown while the parameter dialog is open or
+	 * <code>null</code>.
+	 */
+	private ProgressiveElementalMapping preview;
+	/**
+	 * The maps of r and a of the preview and the final calculation. Changing the
+	 * edge energy loss without changing the pre-edge images only repeats the
+	 * extrapolation of the background.
+	 */
+	private final BackgroundFitCache fitCache = new BackgroundFitCache();
+	/**
+	 * If <code>true</code>, only the pixels inside the selection of the stack
+	 * are fitted.
+	 */
+	private boolean useSelection;
+	/**
+	 * If <code>true</code>, the SNR and h-factor maps are shown.
+	 */
+	private boolean showUncertainty;
+	/**
+	 * The number of bootstrap replicates per pixel. 0 disables the bootstrap.
+	 */
+	private int bootstrapReplicates;
+	/**
+	 * If <code>true</code>, the jump-ratio maps are shown.
+	 */
+	private boolean showJumpRatio;
+	/**
+	 * The background models that can be selected. The first one is the power
+	 * law that is fitted with the selected method.
+	 */
+	private static final String[] BACKGROUND_MODELS = {
+		"Power law (selected method)", "Exponential", "Log-polynomial (order 2)",
+		"LCPL" };
+	/**
+	 * The index of the selected background model at {@link #BACKGROUND_MODELS}.
+	 */
+	private int backgroundModelIndex;
+	/**
+	 * The edge length of the neighbourhood that is summed up for each pixel.
+	 */
+	private int localSummation;
+	/**
+	 * Pixels with a lower mean pre-edge count are not fitted.
+	 */
+	private float threshold;
 	/**
 	 * the {@link Calibration} of the input stack.
 	 */
@@ -130,6 +187,7 @@ public void run(final ImageProcessor ip) {
 			case MLE:
 			case LSE:
 			case WLSE:
+			case HYBRID:
 				ElementalMapping mapping;
 				if (checkForVaryingExposure() == false) {
 					mapping = new ElementalMapping(energyLossArray, impStack,
@@ -139,12 +197,45 @@ public void run(final ImageProcessor ip) {
 					mapping = new ElementalMapping(energyLossArray, exposureArray,
 						impStack, edgeEnergyLoss, epsilon, method);
 				}
-				mapping.startCalculation();
+				mapping.setWarmStart(warmStart);
+				mapping.setFitCache(fitCache);
+				if (useSelection) mapping.setMask(impStack.getRoi());
+				if (threshold > 0) mapping.setThreshold(threshold);
+				mapping.setBootstrapReplicates(bootstrapReplicates);
+				mapping.setLocalSummation(localSummation);
+				switch (backgroundModelIndex) {
+					case 1:
+						mapping.setBackgroundModel(BackgroundModel.EXPONENTIAL);
+						break;
+					case 2:
+						mapping.setBackgroundModel(BackgroundModel.logPolynomial(2));
+						break;
+					case 3:
+						mapping.setBackgroundModel(mapping.createLCPLModel(1.0));
+						break;
+					default:
+						break;
+				}
+				try {
+					mapping.startCalculation();
+				}
+				catch (final IllegalArgumentException e) {
+					IJ.error("Elemental mapping", e.getMessage());
+					return;
+				}
+				EFTEMj_Debug.log(mapping.getIterationStatistics(), false);
 				// TODO Move all show-methods to the final processing
 				mapping.showRMap(calibration);
 				mapping.showLnAMap(calibration);
 				mapping.showErrorMap(calibration);
+				mapping.showMethodMap(calibration);
 				mapping.showElementalMap(calibration);
+				if (showUncertainty) {
+					mapping.showSNRMap(calibration);
+					mapping.showHFactorMap(calibration);
+				}
+				mapping.showBootstrapMaps(calibration);
+				if (showJumpRatio) mapping.showJumpRatioMap(calibration);
 				break;
 			default:
 				IJ.showStatus(method + " has been selected.");
@@ -250,8 +341,40 @@ private int showParameterDialog(final String title) {
 			.toStringArray(), ElementalMapping.AVAILABLE_EPSILONS.toStringArray()[0]);
 		gd.addChoice("Method:", ElementalMapping.AVAILABLE_METHODS.toStringArray(),
 			AVAILABLE_METHODS.MLE.toString());
+		gd.addChoice("Background model:", BACKGROUND_MODELS,
+			BACKGROUND_MODELS[0]);
+		gd.addCheckbox("Start MLE with neighbour result", true);
+		gd.addCheckbox("Show preview", false);
+		gd.addCheckbox("Show SNR and h-factor maps", false);
+		gd.addCheckbox("Show jump-ratio maps", false);
+		gd.addNumericField("Minimum mean pre-edge counts:", 0, 1, 7,
+			"(0 = fit all pixels)");
+		gd.addNumericField("Bootstrap replicates:", 0, 0, 7, "(0 = disabled)");
+		gd.addNumericField("Local summation:", 1, 0, 7, "(k x k pixels)");
+		final boolean hasSelection = impStack.getRoi() != null && impStack
+			.getRoi().isArea();
+		if (hasSelection) {
+			gd.addCheckbox("Fit only pixels inside the selection", true);
+		}
+		gd.addDialogListener(new DialogListener() {
+
+			@Override
+			public boolean dialogItemChanged(final GenericDialog dialog,
+				final AWTEvent e)
+			{
+				// ImageJ sends a null event when the dialog has been closed by OK.
+				if (e != null && isPreviewParameter(dialog, e.getSource())) {
+					updatePreview(dialog);
+				}
+				return true;
+			}
+		});
 		gd.setResizable(false);
 		gd.showDialog();
+		if (preview != null) {
+			preview.close();
+			preview = null;
+		}
 		if (gd.wasCanceled()) {
 			return CANCEL;
 		}
@@ -259,9 +382,67 @@ private int showParameterDialog(final String title) {
 		edgeEnergyLoss = scrollbar.getValue();
 		epsilon = new Float(gd.getNextChoice());
 		method = AVAILABLE_METHODS.values()[gd.getNextChoiceIndex()];
+		backgroundModelIndex = gd.getNextChoiceIndex();
+		warmStart = gd.getNextBoolean();
+		// The preview checkbox is not needed any more.
+		gd.getNextBoolean();
+		showUncertainty = gd.getNextBoolean();
+		showJumpRatio = gd.getNextBoolean();
+		threshold = (float) gd.getNextNumber();
+		bootstrapReplicates = (int) Math.max(0, gd.getNextNumber());
+		localSummation = (int) Math.max(1, gd.getNextNumber());
+		useSelection = hasSelection && gd.getNextBoolean();
 		return OK;
 	}
 
+	/**
+	 * @param gd The parameter dialog.
+	 * @param source The component that has been changed.
+	 * @return <code>true</code> if the component is used by the preview.
+	 */
+	private boolean isPreviewParameter(final GenericDialog gd,
+		final Object source)
+	{
+		// The slider of the edge energy loss comes with a text field.
+		return source == gd.getSliders().get(0) || source == gd.getNumericFields()
+			.get(0) || source == gd.getChoices().get(0) || source == gd.getChoices()
+				.get(1) || source == gd.getCheckboxes().get(0) || source == gd
+					.getCheckboxes().get(1);
+	}
+
+	/**
+	 * Cancels the running preview and starts a new one with the parameters that
+	 * are currently selected at the dialog. The components are read directly to
+	 * not disturb the counters of the {@link GenericDialog}.
+	 *
+	 * @param gd The parameter dialog.
+	 */
+	private void updatePreview(final GenericDialog gd) {
+		if (preview != null) preview.cancel();
+		final Checkbox warmStartCheckbox = (Checkbox) gd.getCheckboxes().get(0);
+		final Checkbox previewCheckbox = (Checkbox) gd.getCheckboxes().get(1);
+		if (previewCheckbox.getState() == false) {
+			if (preview != null) {
+				preview.close();
+				preview = null;
+			}
+			return;
+		}
+		final Scrollbar scrollbar = (Scrollbar) gd.getSliders().get(0);
+		final Choice epsilonChoice = (Choice) gd.getChoices().get(0);
+		final Choice methodChoice = (Choice) gd.getChoices().get(1);
+		final ProgressiveElementalMapping newPreview =
+			new ProgressiveElementalMapping(energyLossArray,
+				checkForVaryingExposure() ? exposureArray : null, impStack, scrollbar
+					.getValue(), Float.parseFloat(epsilonChoice.getSelectedItem()),
+				AVAILABLE_METHODS.values()[methodChoice.getSelectedIndex()]);
+		newPreview.setWarmStart(warmStartCheckbox.getState());
+		newPreview.setFitCache(fitCache);
+		if (preview != null) newPreview.reuseWindows(preview);
+		preview = newPreview;
+		preview.start();
+	}
+
 	/**
 	 * @return The highest energy loss of an image at the given stack.
 	 */
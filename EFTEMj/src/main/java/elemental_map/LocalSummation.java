@@ -0,0 +1,130 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * <p>
+ * Replaces each pixel by the sum of the counts in a k&times;k neighbourhood.
+ * In contrast to binning, the size of the images is kept. The sums are
+ * calculated from a summed-area table (integral image), so the cost per pixel
+ * does not depend on k.
+ * </p>
+ * <p>
+ * At the borders of the image the neighbourhood is clipped. Use
+ * {@link #getPixelCount(int, int, int, int, int)} to get the number of summed
+ * pixels.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+class LocalSummation {
+
+	private LocalSummation() {
+		// Only static methods
+	}
+
+	/**
+	 * @param stack A 32-bit stack.
+	 * @param size The edge length k of the neighbourhood.
+	 * @return A new stack with the local sums. Labels and calibration are
+	 *         copied.
+	 */
+	static ImagePlus sum(final ImagePlus stack, final int size) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int slices = stack.getStackSize();
+		final float[][] sums = new float[slices][];
+		ClosedFormMaps.forEachChunk(slices, 1, new ClosedFormMaps.ChunkTask() {
+
+			@Override
+			public void run(final int from, final int to) {
+				final double[] table = new double[(width + 1) * (height + 1)];
+				for (int i = from; i < to; i++) {
+					sums[i] = sumSlice((float[]) stack.getStack().getPixels(i + 1),
+						width, height, size, table);
+				}
+			}
+		});
+		final ImageStack summed = new ImageStack(width, height);
+		for (int i = 0; i < slices; i++) {
+			summed.addSlice(stack.getStack().getSliceLabel(i + 1), sums[i]);
+		}
+		final ImagePlus imp = new ImagePlus(stack.getTitle(), summed);
+		imp.setCalibration(stack.getCalibration());
+		return imp;
+	}
+
+	/**
+	 * @param table A buffer with (width + 1)&sdot;(height + 1) elements.
+	 * @return The local sums of one image.
+	 */
+	private static float[] sumSlice(final float[] pixels, final int width,
+		final int height, final int size, final double[] table)
+	{
+		final int tableWidth = width + 1;
+		// table[(y + 1) * tableWidth + x + 1] is the sum of all pixels up to (x, y).
+		for (int y = 0; y < height; y++) {
+			double rowSum = 0;
+			for (int x = 0; x < width; x++) {
+				rowSum += pixels[y * width + x];
+				table[(y + 1) * tableWidth + x + 1] = table[y * tableWidth + x + 1] +
+					rowSum;
+			}
+		}
+		final float[] sums = new float[width * height];
+		final int before = (size - 1) / 2;
+		final int after = size / 2;
+		for (int y = 0; y < height; y++) {
+			final int top = Math.max(0, y - before);
+			final int bottom = Math.min(height, y + after + 1);
+			for (int x = 0; x < width; x++) {
+				final int left = Math.max(0, x - before);
+				final int right = Math.min(width, x + after + 1);
+				sums[y * width + x] = (float) (table[bottom * tableWidth + right] -
+					table[top * tableWidth + right] - table[bottom * tableWidth + left] +
+					table[top * tableWidth + left]);
+			}
+		}
+		return sums;
+	}
+
+	/**
+	 * @return The number of pixels that have been summed at (x, y).
+	 */
+	static int getPixelCount(final int width, final int height, final int size,
+		final int x, final int y)
+	{
+		final int before = (size - 1) / 2;
+		final int after = size / 2;
+		return (Math.min(width, x + after + 1) - Math.max(0, x - before)) * (Math
+			.min(height, y + after + 1) - Math.max(0, y - before));
+	}
+}
@@ -0,0 +1,480 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import eftemj.EFTEMj_ComputePool;
+import eftemj.EFTEMj_Progress;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import libs.lma.BatchLMA;
+
+/**
+ * <p>
+ * This class calculates the elemental maps of several ionisation edges that
+ * are recorded at the same stack. Each {@link Edge} has its own pre-edge and
+ * post-edge images.
+ * </p>
+ * <p>
+ * The stack is read only once. Each row is processed by one task that fits the
+ * power law background of all edges for the whole row at once (see
+ * {@link PowerLawKernel} and {@link BatchLMA}). The exposure correction and the
+ * assignment of the images to the edges are done once, too.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class MultiEdgeMapping {
+
+	/**
+	 * The definition of an ionisation edge and the maps that are calculated for
+	 * it.
+	 *
+	 * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+	 */
+	public static class Edge {
+
+		private final String name;
+		private final float preEdgeStart;
+		private final float edgeEnergyLoss;
+		private final float postEdgeEnd;
+		/**
+		 * The indices of the pre-edge and post-edge images. The indices start at
+		 * 0.
+		 */
+		private int[] preEdgeIndices;
+		private int[] postEdgeIndices;
+		private double[] preEdgeEnergyLosses;
+		private double[] postEdgeEnergyLosses;
+		private FloatProcessor rMap;
+		private FloatProcessor aMap;
+		private ByteProcessor errorMap;
+		private FloatProcessor[] elementalMaps;
+		/**
+		 * The geometric mean of the pre-edge energy losses. The
+		 * {@link BatchLMA} fits b = a&sdot;E<sub>0</sub><sup>-r</sup> to the
+		 * normalised energy losses E/E<sub>0</sub>.
+		 */
+		private double referenceEnergyLoss;
+		private BatchLMA batchLMA;
+
+		/**
+		 * All images with an energy loss from <code>preEdgeStart</code> to
+		 * <code>edgeEnergyLoss</code> (exclusive) are used to fit the background.
+		 * Elemental maps are created from all images with an energy loss from
+		 * <code>edgeEnergyLoss</code> to <code>postEdgeEnd</code> (inclusive).
+		 *
+		 * @param name A name that is used at the titles of the maps (e.g. Fe
+		 *          L<sub>2,3</sub>).
+		 * @param preEdgeStart The lowest energy loss of the pre-edge window.
+		 * @param edgeEnergyLoss The onset energy of the ionisation edge.
+		 * @param postEdgeEnd The highest energy loss of the post-edge window.
+		 */
+		public Edge(final String name, final float preEdgeStart,
+			final float edgeEnergyLoss, final float postEdgeEnd)
+		{
+			this.name = name;
+			this.preEdgeStart = preEdgeStart;
+			this.edgeEnergyLoss = edgeEnergyLoss;
+			this.postEdgeEnd = postEdgeEnd;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The map of the parameter <strong>r</strong>.
+		 */
+		public FloatProcessor getRMap() {
+			return rMap;
+		}
+
+		/**
+		 * @return The map of the parameter <strong>a</strong>.
+		 */
+		public FloatProcessor getAMap() {
+			return aMap;
+		}
+
+		/**
+		 * @return The map of the errors of the power law fit.
+		 */
+		public ByteProcessor getErrorMap() {
+			return errorMap;
+		}
+
+		/**
+		 * @return The elemental maps of all post-edge images.
+		 */
+		public FloatProcessor[] getElementalMaps() {
+			return elementalMaps;
+		}
+
+		/**
+		 * @return The energy losses of all post-edge images.
+		 */
+		public double[] getPostEdgeEnergyLosses() {
+			return postEdgeEnergyLosses;
+		}
+
+		/**
+		 * Assigns the images of the stack to this edge and creates the maps.
+		 */
+		private void init(final float[] energyLossArray, final int width,
+			final int height, final double epsilon)
+		{
+			final List<Integer> pre = new ArrayList<Integer>();
+			final List<Integer> post = new ArrayList<Integer>();
+			for (int i = 0; i < energyLossArray.length; i++) {
+				final float eLoss = energyLossArray[i];
+				if (eLoss >= preEdgeStart && eLoss < edgeEnergyLoss) {
+					pre.add(i);
+				}
+				else if (eLoss >= edgeEnergyLoss && eLoss <= postEdgeEnd) {
+					post.add(i);
+				}
+			}
+			if (pre.size() < 2) {
+				throw new IllegalArgumentException(MessageFormat.format(
+					"The edge {0} needs at least 2 pre-edge images.", name));
+			}
+			preEdgeIndices = new int[pre.size()];
+			preEdgeEnergyLosses = new double[pre.size()];
+			for (int i = 0; i < preEdgeIndices.length; i++) {
+				preEdgeIndices[i] = pre.get(i);
+				preEdgeEnergyLosses[i] = energyLossArray[pre.get(i)];
+			}
+			postEdgeIndices = new int[post.size()];
+			postEdgeEnergyLosses = new double[post.size()];
+			for (int i = 0; i < postEdgeIndices.length; i++) {
+				postEdgeIndices[i] = post.get(i);
+				postEdgeEnergyLosses[i] = energyLossArray[post.get(i)];
+			}
+			double lnSum = 0;
+			for (final double eLoss : preEdgeEnergyLosses) {
+				lnSum += Math.log(eLoss);
+			}
+			referenceEnergyLoss = Math.exp(lnSum / preEdgeEnergyLosses.length);
+			final double[] normalisedEnergyLosses =
+				new double[preEdgeEnergyLosses.length];
+			for (int i = 0; i < normalisedEnergyLosses.length; i++) {
+				normalisedEnergyLosses[i] = preEdgeEnergyLosses[i] /
+					referenceEnergyLoss;
+			}
+			batchLMA = new BatchLMA(new PowerLawFit_LMA.PowerLawFunction(),
+				normalisedEnergyLosses);
+			batchLMA.minDeltaChi2 = epsilon;
+			rMap = new FloatProcessor(width, height);
+			aMap = new FloatProcessor(width, height);
+			errorMap = new ByteProcessor(width, height);
+			elementalMaps = new FloatProcessor[postEdgeIndices.length];
+			for (int i = 0; i < elementalMaps.length; i++) {
+				elementalMaps[i] = new FloatProcessor(width, height);
+				Arrays.fill((float[]) elementalMaps[i].getPixels(), Float.NaN);
+			}
+		}
+	}
+
+	private final Edge[] edges;
+	private final AVAILABLE_METHODS method;
+	private final double epsilon;
+	private final int width;
+	private final int height;
+	/**
+	 * The pixels of all images of the stack.
+	 */
+	private final float[][] pixels;
+	/**
+	 * The progress of the running calculation. Each row is a step.
+	 */
+	private EFTEMj_Progress progress;
+
+	/**
+	 * @param energyLossArray The energy losses of all images at the given stack.
+	 * @param exposureArray The exposure times of all images or <code>null</code>
+	 *          if all images have the same exposure time.
+	 * @param stack An {@link ImagePlus} that contains the stack to process.
+	 * @param edges The ionisation edges to map.
+	 * @param epsilon The accuracy of the power low fit.
+	 * @param method The method used for fitting the power law functions.
+	 */
+	public MultiEdgeMapping(final float[] energyLossArray,
+		final float[] exposureArray, final ImagePlus stack, final List<Edge> edges,
+		final float epsilon, final AVAILABLE_METHODS method)
+	{
+		this.edges = edges.toArray(new Edge[edges.size()]);
+		this.method = method;
+		this.epsilon = epsilon;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		final ImagePlus imp = exposureArray == null ? stack : ElementalMapping
+			.processExposureArray(stack, exposureArray);
+		pixels = new float[imp.getStackSize()][];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (float[]) imp.getStack().getProcessor(i + 1).convertToFloat()
+				.getPixels();
+		}
+		for (final Edge edge : this.edges) {
+			edge.init(energyLossArray, width, height, epsilon);
+		}
+	}
+
+	/**
+	 * @return All edges with the calculated maps.
+	 */
+	public Edge[] getEdges() {
+		return edges;
+	}
+
+	/**
+	 * Starts the calculation with parallel {@link Thread}s. One task is created
+	 * for each image row.
+	 */
+	public void startCalculation() {
+		progress = EFTEMj_Progress.start("Multi-edge mapping", height);
+		try {
+			EFTEMj_ComputePool.forEach(height, new EFTEMj_ComputePool.IndexTask() {
+
+				@Override
+				public void run(final int y) {
+					new MultiEdgeMappingTask(y).run();
+				}
+			});
+		}
+		finally {
+			progress.finish();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the last calculation has been cancelled by
+	 *         pressing ESC.
+	 */
+	public boolean isCancelled() {
+		return progress != null && progress.isCancelled();
+	}
+
+	/**
+	 * Shows the elemental maps of all edges.
+	 *
+	 * @param cal A {@link Calibration} object or <code>null</code>.
+	 */
+	public void showElementalMaps(final Calibration cal) {
+		for (final Edge edge : edges) {
+			for (int z = 0; z < edge.elementalMaps.length; z++) {
+				final ImagePlus imp = new ImagePlus(MessageFormat.format(
+					"Elemental map {0} {1,number}eV", edge.name,
+					edge.postEdgeEnergyLosses[z]), edge.elementalMaps[z]);
+				if (cal != null) {
+					imp.setCalibration(cal);
+				}
+				imp.show();
+			}
+		}
+	}
+
+	/**
+	 * Fits the backgrounds of all edges for one image row. The pre-edge counts
+	 * of an edge are copied to row buffers that are shared by all edges, and all
+	 * pixels of the row are fitted at once by {@link PowerLawKernel} or
+	 * {@link BatchLMA}. Only the WLSE has no row kernel and is fitted pixel by
+	 * pixel.
+	 *
+	 * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+	 */
+	private class MultiEdgeMappingTask implements Runnable {
+
+		/**
+		 * The image row to process.
+		 */
+		private final int y;
+		/**
+		 * The pre-edge counts of the processed edge (<code>counts[i][x]</code>).
+		 * The first rows are used by each edge.
+		 */
+		private final double[][] counts;
+		private final double[] r;
+		private final double[] a;
+		private final int[] errorCodes;
+
+		public MultiEdgeMappingTask(final int y) {
+			this.y = y;
+			int maxPreEdgeImages = 0;
+			for (final Edge edge : edges) {
+				maxPreEdgeImages = Math.max(maxPreEdgeImages,
+					edge.preEdgeIndices.length);
+			}
+			counts = new double[maxPreEdgeImages][width];
+			r = new double[width];
+			a = new double[width];
+			errorCodes = new int[width];
+		}
+
+		@Override
+		public void run() {
+			if (progress.isCancelled()) return;
+			final int offset = y * width;
+			for (final Edge edge : edges) {
+				final double[][] edgeCounts = new double[edge.preEdgeIndices.length][];
+				for (int z = 0; z < edgeCounts.length; z++) {
+					edgeCounts[z] = counts[z];
+					final float[] slice = pixels[edge.preEdgeIndices[z]];
+					for (int x = 0; x < width; x++) {
+						edgeCounts[z][x] = slice[offset + x];
+					}
+				}
+				fitRow(edge, edgeCounts);
+				for (int x = 0; x < width; x++) {
+					setResult(edge, offset + x, x);
+				}
+			}
+			progress.step();
+		}
+
+		/**
+		 * Fits the background of one edge at all pixels of the row. The results
+		 * are written to the row buffers <code>r</code>, <code>a</code> and
+		 * <code>errorCodes</code>.
+		 *
+		 * @param edge The edge to process.
+		 * @param edgeCounts The pre-edge counts of the edge.
+		 */
+		private void fitRow(final Edge edge, final double[][] edgeCounts) {
+			switch (method) {
+				case MLE:
+				case HYBRID:
+					new PowerLawKernel(edge.preEdgeEnergyLosses, epsilon).fitMLE(
+						edgeCounts, width, r, a, errorCodes);
+					break;
+				case LSE:
+					new PowerLawKernel(edge.preEdgeEnergyLosses, epsilon).fitLSE(
+						edgeCounts, width, r, a, errorCodes);
+					break;
+				case LMA:
+					fitRowBatched(edge, edgeCounts);
+					break;
+				default:
+					final double[] pixelCounts = new double[edgeCounts.length];
+					for (int x = 0; x < width; x++) {
+						for (int z = 0; z < pixelCounts.length; z++) {
+							pixelCounts[z] = edgeCounts[z][x];
+						}
+						final PowerLawFit fitMethod = ElementalMapping.createPowerLawFit(
+							method, edge.preEdgeEnergyLosses, pixelCounts, epsilon);
+						fitMethod.doFit();
+						r[x] = fitMethod.getR();
+						a[x] = fitMethod.getA();
+						errorCodes[x] = fitMethod.getErrorCode();
+					}
+			}
+		}
+
+		/**
+		 * Fits all pixels of the row by the {@link BatchLMA} of the edge. The
+		 * LSE of {@link PowerLawKernel} is used as start. If it fails, r = 4 is
+		 * used.
+		 */
+		private void fitRowBatched(final Edge edge, final double[][] edgeCounts) {
+			new PowerLawKernel(edge.preEdgeEnergyLosses, epsilon).fitLSE(edgeCounts,
+				width, r, a, errorCodes);
+			final double[][] parameters = new double[2][width];
+			for (int x = 0; x < width; x++) {
+				double rStart = r[x];
+				double b = a[x] * Math.pow(edge.referenceEnergyLoss, -rStart);
+				if (errorCodes[x] != PowerLawFit.ERROR_NONE || Double.isNaN(b) ||
+					Double.isInfinite(b))
+				{
+					rStart = 4;
+					b = edgeCounts[0][x] * Math.pow(edge.preEdgeEnergyLosses[0] /
+						edge.referenceEnergyLoss, rStart);
+				}
+				parameters[0][x] = b;
+				parameters[1][x] = rStart;
+			}
+			final int[] iterations = new int[width];
+			edge.batchLMA.fit(edgeCounts, parameters, new double[width],
+				iterations);
+			for (int x = 0; x < width; x++) {
+				r[x] = parameters[1][x];
+				a[x] = parameters[0][x] * Math.pow(edge.referenceEnergyLoss, r[x]);
+				if (iterations[x] == BatchLMA.FAILED) {
+					errorCodes[x] = PowerLawFit.ERROR_CONVERGE;
+				}
+				else if (Double.isNaN(r[x])) {
+					errorCodes[x] = PowerLawFit.ERROR_R_NAN;
+				}
+				else if (Double.isNaN(a[x])) {
+					errorCodes[x] = PowerLawFit.ERROR_A_NAN;
+				}
+				else {
+					errorCodes[x] = PowerLawFit.ERROR_NONE;
+				}
+			}
+		}
+
+		/**
+		 * Writes the fit result of one pixel to the maps of the edge.
+		 *
+		 * @param edge The processed edge.
+		 * @param index The index of the pixel.
+		 * @param x The pixel of the row.
+		 */
+		private void setResult(final Edge edge, final int index, final int x) {
+			int errorCode = errorCodes[x];
+			final float rPixel = (float) r[x];
+			final float aPixel = (float) a[x];
+			if (errorCode == PowerLawFit.ERROR_NONE) {
+				if (Float.isInfinite(rPixel)) errorCode = PowerLawFit.ERROR_R_INFINITE;
+				else if (Float.isInfinite(aPixel)) errorCode =
+					PowerLawFit.ERROR_A_INFINITE;
+			}
+			edge.errorMap.set(index, errorCode);
+			if (errorCode != PowerLawFit.ERROR_NONE) {
+				edge.rMap.setf(index, Float.NaN);
+				edge.aMap.setf(index, Float.NaN);
+				return;
+			}
+			edge.rMap.setf(index, rPixel);
+			edge.aMap.setf(index, aPixel);
+			for (int z = 0; z < edge.postEdgeIndices.length; z++) {
+				final float bg = (float) (aPixel * Math.pow(
+					edge.postEdgeEnergyLosses[z], -rPixel));
+				edge.elementalMaps[z].setf(index, pixels[edge.postEdgeIndices[
+					z]][index] - bg);
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import elemental_map.ElementalMapping.AVAILABLE_EPSILONS;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.ImageProcessor;
+import tools.EnergyLossExtractor;
+import tools.ExposureExtractor;
+
+/**
+ * This plugin creates the elemental maps of several ionisation edges that are
+ * recorded at the same stack by using {@link MultiEdgeMapping}. The energy
+ * losses and exposure times are taken from the slice labels.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class MultiEdgeMappingPlugin implements ExtendedPlugInFilter {
+
+	/**
+	 * <code>FLAGS = DOES_ALL | STACK_REQUIRED | NO_CHANGES | FINAL_PROCESSING</code>
+	 */
+	private final int FLAGS = DOES_ALL | STACK_REQUIRED | NO_CHANGES |
+		FINAL_PROCESSING;
+	private ImagePlus impStack;
+	private float[] energyLossArray;
+	private final List<MultiEdgeMapping.Edge> edges =
+		new ArrayList<MultiEdgeMapping.Edge>();
+	private float epsilon;
+	private AVAILABLE_METHODS method;
+	private MultiEdgeMapping mapping;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#setup(java.lang.String, ij.ImagePlus)
+	 */
+	@Override
+	public int setup(final String arg, final ImagePlus imp) {
+		if (arg.equals("final")) {
+			if (mapping != null && !mapping.isCancelled()) {
+				mapping.showElementalMaps(impStack.getCalibration());
+			}
+			return NO_CHANGES | DONE;
+		}
+		impStack = imp;
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#run(ij.process.ImageProcessor)
+	 */
+	@Override
+	public void run(final ImageProcessor ip) {
+		IJ.showStatus("Multi-edge mapping...");
+		final float[] exposureArray = new float[impStack.getStackSize()];
+		for (int i = 0; i < exposureArray.length; i++) {
+			exposureArray[i] = new ExposureExtractor().extractFloatFromTitle(
+				impStack, i);
+		}
+		try {
+			mapping = new MultiEdgeMapping(energyLossArray, ElementalMapping
+				.hasVaryingExposure(exposureArray) ? exposureArray : null, impStack,
+				edges, epsilon, method);
+		}
+		catch (final IllegalArgumentException e) {
+			IJ.error("Multi-edge mapping", e.getMessage());
+			return;
+		}
+		mapping.startCalculation();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#showDialog(ij.ImagePlus, java.lang.String,
+	 * ij.plugin.filter.PlugInFilterRunner)
+	 */
+	@Override
+	public int showDialog(final ImagePlus imp, final String command,
+		final PlugInFilterRunner pfr)
+	{
+		energyLossArray = new float[imp.getStackSize()];
+		for (int i = 0; i < energyLossArray.length; i++) {
+			energyLossArray[i] = new EnergyLossExtractor().extractFloatFromTitle(imp,
+				i);
+			if (energyLossArray[i] == 0) {
+				IJ.showMessage("There is no energy loss at slice " + (i + 1) + ".");
+				return DONE;
+			}
+		}
+		final GenericDialog gdCount = new GenericDialog(command +
+			" - number of edges", IJ.getInstance());
+		gdCount.addNumericField("Edges:", 2, 0);
+		gdCount.showDialog();
+		if (gdCount.wasCanceled()) {
+			return DONE;
+		}
+		final int count = (int) gdCount.getNextNumber();
+		if (count < 1) {
+			IJ.showMessage("At least one edge is necessary.");
+			return DONE;
+		}
+		final GenericDialog gd = new GenericDialog(command + " - set parameters",
+			IJ.getInstance());
+		for (int i = 1; i <= count; i++) {
+			gd.addStringField("Name_" + i + ":", "Edge " + i);
+			gd.addNumericField("Pre-edge_start_" + i + ":", 0, 0, 6, "eV");
+			gd.addNumericField("Edge_energy_loss_" + i + ":", 0, 0, 6, "eV");
+			gd.addNumericField("Post-edge_end_" + i + ":", 0, 0, 6, "eV");
+		}
+		gd.addChoice("Epsilon:", AVAILABLE_EPSILONS.toStringArray(),
+			AVAILABLE_EPSILONS.values()[0].toString());
+		gd.addChoice("Method:", AVAILABLE_METHODS.toStringArray(),
+			AVAILABLE_METHODS.MLE.toString());
+		gd.setResizable(false);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return DONE;
+		}
+		edges.clear();
+		for (int i = 0; i < count; i++) {
+			final String name = gd.getNextString();
+			final float preEdgeStart = (float) gd.getNextNumber();
+			final float edgeEnergyLoss = (float) gd.getNextNumber();
+			final float postEdgeEnd = (float) gd.getNextNumber();
+			if (preEdgeStart >= edgeEnergyLoss || edgeEnergyLoss > postEdgeEnd) {
+				IJ.showMessage("The energy losses of " + name +
+					" have to be in ascending order.");
+				return DONE;
+			}
+			edges.add(new MultiEdgeMapping.Edge(name, preEdgeStart, edgeEnergyLoss,
+				postEdgeEnd));
+		}
+		epsilon = (float) AVAILABLE_EPSILONS.values()[gd.getNextChoiceIndex()]
+			.getValue();
+		method = AVAILABLE_METHODS.values()[gd.getNextChoiceIndex()];
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#setNPasses(int)
+	 */
+	@Override
+	public void setNPasses(final int nPasses) {
+		// This method is not used.
+	}
+}
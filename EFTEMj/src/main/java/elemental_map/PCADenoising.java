@@ -0,0 +1,355 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import eftemj.EFTEMj_ComputePool;
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * <p>
+ * Denoises an EFTEM stack by a principal component analysis (PCA), also known
+ * as multivariate statistical analysis (MSA). Each pixel is a spectrum with N
+ * energy losses. Only the first principal components are kept, the remaining
+ * ones mainly contain noise.
+ * </p>
+ * <p>
+ * The N&times;N covariance matrix of the energy losses is accumulated in a
+ * single parallel pass over tiles of image rows. The small matrix is
+ * decomposed and the stack is reconstructed tile by tile. Besides the result,
+ * the memory needed does not depend on the size of the images.
+ * </p>
+ * <p>
+ * The counts are Poisson distributed, so the noise is not the same for all
+ * pixels. By default the data is scaled by the mean spectrum and the mean
+ * image before the analysis (Keenan and Kotula, 2004) and the scaling is
+ * reverted after the reconstruction.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class PCADenoising {
+
+	/**
+	 * The number of image rows that is processed by one task.
+	 */
+	private static final int TILE_ROWS = 64;
+
+	/**
+	 * A task that processes the image rows from <code>from</code> (inclusive)
+	 * to <code>to</code> (exclusive).
+	 */
+	private interface TileTask {
+
+		double[] process(int from, int to);
+	}
+
+	private final ImagePlus impStack;
+	private final float[][] pixels;
+	private final int width;
+	private final int height;
+	private final int n;
+	private int components = 3;
+	private boolean poissonScaling = true;
+	/**
+	 * The mean of each energy loss.
+	 */
+	private double[] channelMeans;
+	/**
+	 * The means of the scaled spectra.
+	 */
+	private double[] means;
+	private double[] eigenvalues;
+
+	/**
+	 * @param stack A 32-bit stack with one image for each energy loss.
+	 */
+	public PCADenoising(final ImagePlus stack) {
+		if (stack.getBitDepth() != 32) {
+			throw new IllegalArgumentException("A 32-bit stack is required.");
+		}
+		impStack = stack;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		n = stack.getStackSize();
+		pixels = new float[n][];
+		for (int i = 0; i < n; i++) {
+			pixels[i] = (float[]) stack.getStack().getPixels(i + 1);
+		}
+	}
+
+	/**
+	 * @param components The number of principal components to keep.
+	 */
+	public void setComponents(final int components) {
+		if (components < 1 || components > n) {
+			throw new IllegalArgumentException(
+				"The number of components has to be between 1 and " + n + ".");
+		}
+		this.components = components;
+	}
+
+	/**
+	 * @param poissonScaling <code>false</code> to analyse the counts without
+	 *          scaling.
+	 */
+	public void setPoissonScaling(final boolean poissonScaling) {
+		this.poissonScaling = poissonScaling;
+	}
+
+	/**
+	 * @return The eigenvalues of all principal components in descending order.
+	 *         They can be used to create a scree plot. <code>null</code> if
+	 *         {@link #denoise()} has not been called.
+	 */
+	public double[] getEigenvalues() {
+		return eigenvalues;
+	}
+
+	/**
+	 * @return A new stack that has been reconstructed from the selected number
+	 *         of principal components. The slice labels and the calibration are
+	 *         copied.
+	 */
+	public ImagePlus denoise() {
+		channelMeans = new double[n];
+		for (final double[] sums : processTiles(new TileTask() {
+
+			@Override
+			public double[] process(final int from, final int to) {
+				final double[] sums = new double[n];
+				for (int i = 0; i < n; i++) {
+					for (int index = from * width; index < to * width; index++) {
+						sums[i] += pixels[i][index];
+					}
+				}
+				return sums;
+			}
+		}))
+		{
+			for (int i = 0; i < n; i++) {
+				channelMeans[i] += sums[i];
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			channelMeans[i] /= width * height;
+		}
+		final Matrix projection = calculateProjection(calculateCovariance());
+		final float[][] result = new float[n][width * height];
+		final double[][] p = projection.getArray();
+		processTiles(new TileTask() {
+
+			@Override
+			public double[] process(final int from, final int to) {
+				final double[] spectrum = new double[n];
+				final double[] scales = new double[n];
+				for (int index = from * width; index < to * width; index++) {
+					readSpectrum(index, spectrum, scales);
+					for (int i = 0; i < n; i++) {
+						double value = means[i];
+						for (int j = 0; j < n; j++) {
+							value += p[i][j] * (spectrum[j] - means[j]);
+						}
+						result[i][index] = (float) (value * scales[i]);
+					}
+				}
+				return null;
+			}
+		});
+		final ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < n; i++) {
+			stack.addSlice(impStack.getStack().getSliceLabel(i + 1), result[i]);
+		}
+		final ImagePlus imp = new ImagePlus(impStack.getTitle() + " (PCA, " +
+			components + " components)", stack);
+		imp.setCalibration(impStack.getCalibration());
+		return imp;
+	}
+
+	/**
+	 * <p>
+	 * Each tile accumulates its mean and the centred sums of products
+	 * (co-moments) with Welford's algorithm. The tiles are merged in their order
+	 * by the pairwise update of Chan et al. Unlike raw sums of squares, this
+	 * does not lose precision if the mean is large compared to the variance.
+	 * </p>
+	 *
+	 * @return The covariance matrix of the (scaled) energy losses.
+	 */
+	private Matrix calculateCovariance() {
+		// The number of pixels, the means and the lower triangle of the
+		// co-moments.
+		final int size = 1 + n + n * (n + 1) / 2;
+		final double[] totals = new double[size];
+		final double[] delta = new double[n];
+		for (final double[] tile : processTiles(new TileTask() {
+
+			@Override
+			public double[] process(final int from, final int to) {
+				final double[] moments = new double[size];
+				final double[] spectrum = new double[n];
+				final double[] scales = new double[n];
+				final double[] deltaBefore = new double[n];
+				for (int index = from * width; index < to * width; index++) {
+					readSpectrum(index, spectrum, scales);
+					final double count = ++moments[0];
+					for (int i = 0; i < n; i++) {
+						deltaBefore[i] = spectrum[i] - moments[1 + i];
+						moments[1 + i] += deltaBefore[i] / count;
+					}
+					int k = 1 + n;
+					for (int i = 0; i < n; i++) {
+						final double deltaAfter = spectrum[i] - moments[1 + i];
+						for (int j = 0; j <= i; j++) {
+							moments[k++] += deltaAfter * deltaBefore[j];
+						}
+					}
+				}
+				return moments;
+			}
+		}))
+		{
+			final double countA = totals[0];
+			final double countB = tile[0];
+			final double count = countA + countB;
+			for (int i = 0; i < n; i++) {
+				delta[i] = tile[1 + i] - totals[1 + i];
+				totals[1 + i] += delta[i] * countB / count;
+			}
+			final double factor = countA * countB / count;
+			int k = 1 + n;
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j <= i; j++) {
+					totals[k] += tile[k] + delta[i] * delta[j] * factor;
+					k++;
+				}
+			}
+			totals[0] = count;
+		}
+		means = new double[n];
+		System.arraycopy(totals, 1, means, 0, n);
+		final Matrix covariance = new Matrix(n, n);
+		int k = 1 + n;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j <= i; j++) {
+				final double value = totals[k++] / (totals[0] - 1);
+				covariance.set(i, j, value);
+				covariance.set(j, i, value);
+			}
+		}
+		return covariance;
+	}
+
+	/**
+	 * Decomposes the covariance matrix and creates the projection onto the
+	 * selected principal components.
+	 *
+	 * @param covariance The covariance matrix of the energy losses.
+	 * @return V<sub>k</sub>&sdot;V<sub>k</sub><sup>T</sup>, where V<sub>k</sub>
+	 *         contains the eigenvectors of the k largest eigenvalues.
+	 */
+	private Matrix calculateProjection(final Matrix covariance) {
+		final EigenvalueDecomposition eigen = covariance.eig();
+		final double[] values = eigen.getRealEigenvalues();
+		final Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		// Sort the indices by descending eigenvalues.
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(final Integer o1, final Integer o2) {
+				return Double.compare(values[o2], values[o1]);
+			}
+		});
+		eigenvalues = new double[n];
+		final Matrix vectors = new Matrix(n, components);
+		for (int c = 0; c < n; c++) {
+			eigenvalues[c] = values[order[c]];
+			if (c < components) {
+				for (int i = 0; i < n; i++) {
+					vectors.set(i, c, eigen.getV().get(i, order[c]));
+				}
+			}
+		}
+		return vectors.times(vectors.transpose());
+	}
+
+	/**
+	 * Reads the spectrum of one pixel and scales it.
+	 *
+	 * @param index The index of the pixel.
+	 * @param spectrum The scaled spectrum is written to this array.
+	 * @param scales The factors that revert the scaling are written to this
+	 *          array.
+	 */
+	private void readSpectrum(final int index, final double[] spectrum,
+		final double[] scales)
+	{
+		double pixelMean = 0;
+		for (int i = 0; i < n; i++) {
+			spectrum[i] = pixels[i][index];
+			pixelMean += spectrum[i];
+		}
+		pixelMean /= n;
+		for (int i = 0; i < n; i++) {
+			final double weight = pixelMean * channelMeans[i];
+			scales[i] = poissonScaling && weight > 0 ? Math.sqrt(weight) : 1;
+			spectrum[i] /= scales[i];
+		}
+	}
+
+	/**
+	 * Processes all tiles in parallel.
+	 *
+	 * @return The results of all tiles in the order of the tiles. Summing them up
+	 *         in this order makes the result independent of the number of
+	 *         {@link Thread}s.
+	 */
+	private List<double[]> processTiles(final TileTask task) {
+		final int tiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+		final double[][] results = new double[tiles][];
+		EFTEMj_ComputePool.forEach(tiles, new EFTEMj_ComputePool.IndexTask() {
+
+			@Override
+			public void run(final int tile) {
+				final int tileFrom = tile * TILE_ROWS;
+				results[tile] = task.process(tileFrom, Math.min(tileFrom + TILE_ROWS,
+					height));
+			}
+		});
+		return Arrays.asList(results);
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.ImageProcessor;
+
+/**
+ * This plugin denoises an EFTEM stack by using {@link PCADenoising}. The
+ * result can be used as input of the {@link ElementalMappingPlugin}, as the
+ * slice labels with the energy losses are kept.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class PCADenoisingPlugin implements ExtendedPlugInFilter {
+
+	/**
+	 * <code>FLAGS = DOES_32 | STACK_REQUIRED | NO_CHANGES | FINAL_PROCESSING</code>
+	 */
+	private final int FLAGS = DOES_32 | STACK_REQUIRED | NO_CHANGES |
+		FINAL_PROCESSING;
+	private ImagePlus impStack;
+	private int components;
+	private boolean poissonScaling;
+	private boolean showScreePlot;
+	private ImagePlus result;
+	private double[] eigenvalues;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#setup(java.lang.String, ij.ImagePlus)
+	 */
+	@Override
+	public int setup(final String arg, final ImagePlus imp) {
+		if (arg.equals("final")) {
+			if (result != null) result.show();
+			if (showScreePlot && eigenvalues != null) showScreePlot();
+			return NO_CHANGES | DONE;
+		}
+		impStack = imp;
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#run(ij.process.ImageProcessor)
+	 */
+	@Override
+	public void run(final ImageProcessor ip) {
+		IJ.showStatus("PCA denoising...");
+		final PCADenoising denoising = new PCADenoising(impStack);
+		denoising.setComponents(components);
+		denoising.setPoissonScaling(poissonScaling);
+		result = denoising.denoise();
+		eigenvalues = denoising.getEigenvalues();
+	}
+
+	/**
+	 * Shows the eigenvalues at a logarithmic scale. The components left of the
+	 * kink contain the signal.
+	 */
+	private void showScreePlot() {
+		final double[] index = new double[eigenvalues.length];
+		final double[] values = new double[eigenvalues.length];
+		for (int i = 0; i < index.length; i++) {
+			index[i] = i + 1;
+			values[i] = Math.max(eigenvalues[i], Double.MIN_VALUE);
+		}
+		final Plot plot = new Plot("Scree plot of " + impStack.getTitle(),
+			"component", "eigenvalue");
+		plot.add("line", index, values);
+		plot.setLogScaleY();
+		plot.show();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#showDialog(ij.ImagePlus, java.lang.String,
+	 * ij.plugin.filter.PlugInFilterRunner)
+	 */
+	@Override
+	public int showDialog(final ImagePlus imp, final String command,
+		final PlugInFilterRunner pfr)
+	{
+		final GenericDialog gd = new GenericDialog(command + " - set parameters",
+			IJ.getInstance());
+		gd.addNumericField("Components:", Math.min(3, imp.getStackSize()), 0);
+		gd.addCheckbox("Scale for Poisson noise", true);
+		gd.addCheckbox("Show scree plot", true);
+		gd.setResizable(false);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return DONE;
+		}
+		components = (int) gd.getNextNumber();
+		poissonScaling = gd.getNextBoolean();
+		showScreePlot = gd.getNextBoolean();
+		if (components < 1 || components > imp.getStackSize()) {
+			IJ.showMessage("The number of components has to be between 1 and " + imp
+				.getStackSize() + ".");
+			return DONE;
+		}
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#setNPasses(int)
+	 */
+	@Override
+	public void setNPasses(final int nPasses) {
+		// This method is not used.
+	}
+}
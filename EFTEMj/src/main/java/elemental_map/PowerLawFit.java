@@ -46,6 +46,11 @@ public abstract class PowerLawFit {
 	protected double a;
 	protected int errorCode;
 	protected boolean done;
+	/**
+	 * The number of iterations that were necessary to calculate the result. It
+	 * is 0 for methods that are not iterative.
+	 */
+	protected int iterations;
 	public final static int ERROR_NONE = 0;
 	public final static int ERROR_R_NAN = 1;
 	public final static int ERROR_R_INFINITE = 2;
@@ -83,6 +88,14 @@ public int getErrorCode() {
 		return errorCode;
 	}
 
+	/**
+	 * @return The number of iterations used by {@link #doFit()}. Methods that are
+	 *         not iterative return 0.
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
 	/**
 	 * Calculate <strong>r</strong> and <strong>a</strong>.
 	 */
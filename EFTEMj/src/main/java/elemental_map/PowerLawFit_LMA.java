@@ -60,10 +60,20 @@ public double getPartialDerivate(final double x, final double[] a,
 				case 0:
 					return Math.pow(x, -a[1]);
 				case 1:
-					return -1 * a[0] * Math.log(a[1]) * Math.pow(x, -a[1]);
+					return -1 * a[0] * Math.log(x) * Math.pow(x, -a[1]);
 			}
 			throw new RuntimeException("No such parameter index: " + parameterIndex);
 		}
+
+		@Override
+		public double getYAndPartialDerivates(final double x, final double[] a,
+			final double[] partialDerivates)
+		{
+			final double power = Math.pow(x, -a[1]);
+			partialDerivates[0] = power;
+			partialDerivates[1] = -1 * a[0] * Math.log(x) * power;
+			return a[0] * power;
+		}
 	}
 
 	@Override
@@ -96,6 +96,7 @@ public void doFit() {
 		double denum;
 		// Start: Iteration to calculate r
 		while (Math.abs(rn_prev - rn) > epsilon) {
+			iterations++;
 			rn_prev = rn;
 			num = numerator(rn);
 			denum = denominator(rn);
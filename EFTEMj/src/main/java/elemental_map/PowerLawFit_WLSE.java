@@ -62,6 +62,7 @@ public void doFit() {
 		double diff = 10.0;
 		// Start: Iteration to calculate r
 		while (Math.abs(rn_prev - rn) > epsilon) {
+			iterations++;
 			rn_prev = rn;
 			rn = (sum(1, 0, 1) * sum(1, 1, 0) - (sum(1, 0, 0) * sum(1, 1, 1))) / (sum(
 				1, 2, 0) * sum(1, 0, 0) - Math.pow(sum(1, 1, 0), 2));
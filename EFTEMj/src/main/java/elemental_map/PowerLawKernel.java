@@ -0,0 +1,428 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+/**
+ * <p>
+ * Fits the power law I(E) = a&sdot;E<sup>-r</sup> to a row of pixels at once.
+ * All pixels share the same energy losses, so ln(E<sub>i</sub>) and every
+ * term that depends only on the energy losses are calculated once instead of
+ * once per pixel.
+ * </p>
+ * <p>
+ * The counts are stored as structure of arrays (<code>counts[i][pixel]</code>
+ * ). The pixels are processed in blocks of {@link #LANES}. Each step of the
+ * fit is applied to all pixels of a block by a simple loop over the lanes, a
+ * layout the JIT compiler can map to SIMD instructions. Pixels that have
+ * converged are masked and keep their value until the whole block has
+ * finished.
+ * </p>
+ * <p>
+ * The results and error codes are the same as with {@link PowerLawFit_LSE} and
+ * {@link PowerLawFit_MLE}. The LSE uses double precision for all sums.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+class PowerLawKernel {
+
+	/**
+	 * The number of pixels that are processed together.
+	 */
+	static final int LANES = 8;
+	/**
+	 * The start value of the MLE (see {@link PowerLawFit_MLE}).
+	 */
+	private static final double DEFAULT_R = 4.0;
+	/**
+	 * The MLE fails if the change of r increases this number of times.
+	 */
+	private static final int MAX_DIVERGENCES = 25;
+
+	private final double[] lnE;
+	private final double lnEMean;
+	/**
+	 * ln(E<sub>i</sub>) - mean(ln(E)) and the sum of its squares, used by the
+	 * LSE.
+	 */
+	private final double[] lnEDeviation;
+	private final double lnEDeviationSquares;
+	private final double epsilon;
+	/**
+	 * The per lane state of the MLE.
+	 */
+	private final double[] rn = new double[LANES];
+	private final double[] rnPrevious = new double[LANES];
+	private final double[] diff = new double[LANES];
+	private final double[] weight = new double[LANES];
+	private final double[] sumCounts = new double[LANES];
+	private final double[] s0 = new double[LANES];
+	private final double[] s1 = new double[LANES];
+	private final double[] s2 = new double[LANES];
+	private final int[] divergences = new int[LANES];
+	private final boolean[] active = new boolean[LANES];
+	/**
+	 * The start value of r of each lane. NaN selects the default value.
+	 */
+	private final double[] start = new double[LANES];
+	/**
+	 * The moments of the fitted intensities (<code>moments[k][pixel]</code>) or
+	 * <code>null</code>.
+	 */
+	private double[][] moments;
+
+	/**
+	 * An instance is not thread safe. Each {@link Thread} has to create its own
+	 * {@link PowerLawKernel}.
+	 *
+	 * @param energyLosses The energy losses of the pre-edge images.
+	 * @param epsilon The break condition of the MLE.
+	 */
+	public PowerLawKernel(final double[] energyLosses, final double epsilon) {
+		this.epsilon = epsilon;
+		lnE = new double[energyLosses.length];
+		double sum = 0;
+		for (int i = 0; i < lnE.length; i++) {
+			lnE[i] = Math.log(energyLosses[i]);
+			sum += lnE[i];
+		}
+		lnEMean = sum / lnE.length;
+		lnEDeviation = new double[lnE.length];
+		double squares = 0;
+		for (int i = 0; i < lnE.length; i++) {
+			lnEDeviation[i] = lnE[i] - lnEMean;
+			squares += lnEDeviation[i] * lnEDeviation[i];
+		}
+		lnEDeviationSquares = squares;
+	}
+
+	/**
+	 * The MLE calculates &sum; E<sub>i</sub><sup>-r</sup>&sdot;ln(E<sub>i</sub>)
+	 * <sup>k</sup> (k = 0, 1, 2) with the final r of each pixel. Multiplied by
+	 * a these are the moments S<sub>k</sub> that are used by
+	 * {@link BackgroundUncertainty}.
+	 *
+	 * @param moments If not <code>null</code>, the moments of each pixel that
+	 *          is fitted by the MLE are written to <code>moments[k][pixel]
+	 *          </code>.
+	 */
+	public void setMoments(final double[][] moments) {
+		this.moments = moments;
+	}
+
+	/**
+	 * The least squares fit of ln(I) = ln(a) - r&sdot;ln(E).
+	 *
+	 * @param counts The counts of the pre-edge images (<code>counts[i][pixel]
+	 *          </code>).
+	 * @param length The number of pixels to fit.
+	 * @param r The fitted r of each pixel, NaN if the fit failed.
+	 * @param a The fitted a of each pixel, NaN if the fit failed.
+	 * @param errorCodes The error code of each pixel (see {@link PowerLawFit}).
+	 */
+	public void fitLSE(final double[][] counts, final int length,
+		final double[] r, final double[] a, final int[] errorCodes)
+	{
+		for (int x = 0; x < length; x++) {
+			r[x] = 0;
+			a[x] = 0;
+		}
+		// r and a are used to sum up -dx*ln(I) and ln(I).
+		for (int i = 0; i < lnE.length; i++) {
+			final double[] countsI = counts[i];
+			final double dx = lnEDeviation[i];
+			for (int x = 0; x < length; x++) {
+				final double lnI = Math.log(countsI[x]);
+				r[x] -= dx * lnI;
+				a[x] += lnI;
+			}
+		}
+		final int n = lnE.length;
+		for (int x = 0; x < length; x++) {
+			r[x] /= lnEDeviationSquares;
+			a[x] = Math.exp(a[x] / n + r[x] * lnEMean);
+			// A count of 0 results in ln(I) = -Infinity and an infinite r.
+			// PowerLawFit_LSE subtracts the mean of ln(I) and gets NaN instead.
+			if (Double.isNaN(r[x]) || Double.isInfinite(r[x])) {
+				setFailed(x, r, a, errorCodes, PowerLawFit.ERROR_R_NAN);
+			}
+			else if (Double.isNaN(a[x])) {
+				setFailed(x, r, a, errorCodes, PowerLawFit.ERROR_A_NAN);
+			}
+			else {
+				errorCodes[x] = PowerLawFit.ERROR_NONE;
+			}
+		}
+	}
+
+	/**
+	 * The maximum likelihood estimation that is described at
+	 * {@link PowerLawFit_MLE}.
+	 *
+	 * @param counts The counts of the pre-edge images (<code>counts[i][pixel]
+	 *          </code>).
+	 * @param length The number of pixels to fit.
+	 * @param r The fitted r of each pixel, NaN if the fit failed.
+	 * @param a The fitted a of each pixel, NaN if the fit failed.
+	 * @param errorCodes The error code of each pixel (see {@link PowerLawFit}).
+	 * @return The number of iterations of all pixels.
+	 */
+	public long fitMLE(final double[][] counts, final int length,
+		final double[] r, final double[] a, final int[] errorCodes)
+	{
+		return fitMLE(counts, length, null, r, a, errorCodes);
+	}
+
+	/**
+	 * The MLE with individual start values, e.g. the results of
+	 * {@link #fitLSE}.
+	 *
+	 * @param rStart The start value of r for each pixel. If it is
+	 *          <code>null</code> or NaN, r = 4 is used.
+	 * @see #fitMLE(double[][], int, double[], double[], int[])
+	 */
+	public long fitMLE(final double[][] counts, final int length,
+		final double[] rStart, final double[] r, final double[] a,
+		final int[] errorCodes)
+	{
+		long iterations = 0;
+		for (int from = 0; from < length; from += LANES) {
+			final int lanes = Math.min(LANES, length - from);
+			for (int l = 0; l < lanes; l++) {
+				start[l] = rStart == null ? Double.NaN : rStart[from + l];
+				active[l] = true;
+			}
+			iterations += fitMLEBlock(counts, from, lanes, r, a, errorCodes);
+		}
+		return iterations;
+	}
+
+	/**
+	 * <p>
+	 * The MLE with a warm start. The pixels of a block are fitted at the same
+	 * time and can't start with the result of each other. Instead all pixels of
+	 * a block start with the r of the last pixel of the previous block, if this
+	 * pixel is the direct left neighbour of the block and its fit has
+	 * succeeded.
+	 * </p>
+	 * <p>
+	 * If the fit of a warm started pixel fails, the neighbour has been no good
+	 * guess and the pixel is fitted again with the default start value.
+	 * </p>
+	 *
+	 * @param columns The image column of each pixel. Only direct neighbours are
+	 *          used for a warm start.
+	 * @param statistics <code>statistics[0]</code> is increased by the number
+	 *          of warm started pixels and <code>statistics[1]</code> by the
+	 *          number of pixels that were fitted again.
+	 * @see #fitMLE(double[][], int, double[], double[], int[])
+	 */
+	public long fitMLEWarmStart(final double[][] counts, final int length,
+		final int[] columns, final double[] r, final double[] a,
+		final int[] errorCodes, final int[] statistics)
+	{
+		long iterations = 0;
+		for (int from = 0; from < length; from += LANES) {
+			final int lanes = Math.min(LANES, length - from);
+			final boolean isWarmStart = from > 0 &&
+				errorCodes[from - 1] == PowerLawFit.ERROR_NONE &&
+				columns[from] == columns[from - 1] + 1;
+			final double seed = isWarmStart ? r[from - 1] : Double.NaN;
+			for (int l = 0; l < lanes; l++) {
+				start[l] = seed;
+				active[l] = true;
+			}
+			iterations += fitMLEBlock(counts, from, lanes, r, a, errorCodes);
+			if (!isWarmStart) continue;
+			statistics[0] += lanes;
+			int retries = 0;
+			for (int l = 0; l < lanes; l++) {
+				active[l] = errorCodes[from + l] != PowerLawFit.ERROR_NONE;
+				start[l] = Double.NaN;
+				if (active[l]) retries++;
+			}
+			if (retries > 0) {
+				statistics[1] += retries;
+				iterations += fitMLEBlock(counts, from, lanes, r, a, errorCodes);
+			}
+		}
+		return iterations;
+	}
+
+	/**
+	 * Pearson's &chi;<sup>2</sup> of a fitted power law at one pixel. The counts
+	 * are assumed to be Poisson distributed.
+	 *
+	 * @param counts The counts of the pre-edge images (<code>counts[i][pixel]
+	 *          </code>).
+	 * @param x The pixel.
+	 * @param r The fitted r of the pixel.
+	 * @param a The fitted a of the pixel.
+	 * @return &sum; (I<sub>i</sub> - a&sdot;E<sub>i</sub><sup>-r</sup>)
+	 *         <sup>2</sup> / (a&sdot;E<sub>i</sub><sup>-r</sup>)
+	 */
+	public double chi2(final double[][] counts, final int x, final double r,
+		final double a)
+	{
+		double chi2 = 0;
+		for (int i = 0; i < lnE.length; i++) {
+			final double fitted = a * Math.exp(-r * lnE[i]);
+			final double residual = counts[i][x] - fitted;
+			chi2 += residual * residual / fitted;
+		}
+		return chi2;
+	}
+
+	/**
+	 * Fits the active lanes of one block of pixels, starting with
+	 * {@link #start}. Lanes that are not active must keep the r of a previous
+	 * fit of the same block. The iteration stops if all lanes have converged
+	 * or failed.
+	 *
+	 * @param from The first pixel of the block.
+	 * @param lanes The number of pixels of the block.
+	 * @return The number of iterations of all pixels of the block.
+	 */
+	private long fitMLEBlock(final double[][] counts, final int from,
+		final int lanes, final double[] r, final double[] a,
+		final int[] errorCodes)
+	{
+		int activeLanes = 0;
+		for (int l = 0; l < lanes; l++) {
+			weight[l] = 0;
+			sumCounts[l] = 0;
+			if (!active[l]) continue;
+			activeLanes++;
+			rn[l] = Double.isNaN(start[l]) ? DEFAULT_R : start[l];
+			rnPrevious[l] = rn[l] + 2 * epsilon;
+			diff[l] = 10.0;
+			divergences[l] = 0;
+		}
+		for (int i = 0; i < lnE.length; i++) {
+			final double[] countsI = counts[i];
+			final double lnEI = lnE[i];
+			for (int l = 0; l < lanes; l++) {
+				weight[l] += lnEI * countsI[from + l];
+				sumCounts[l] += countsI[from + l];
+			}
+		}
+		for (int l = 0; l < lanes; l++) {
+			// If the sum is 0 this will result in 0/1
+			weight[l] /= sumCounts[l] == 0 ? 1 : sumCounts[l];
+		}
+		long iterations = 0;
+		while (activeLanes > 0) {
+			sumExp(lanes);
+			for (int l = 0; l < lanes; l++) {
+				if (!active[l]) continue;
+				iterations++;
+				rnPrevious[l] = rn[l];
+				final double mean = s1[l] / s0[l];
+				rn[l] -= (mean - weight[l]) / (mean * mean - s2[l] / s0[l]);
+				final int x = from + l;
+				final double change = Math.abs(rnPrevious[l] - rn[l]);
+				int errorCode = PowerLawFit.ERROR_NONE;
+				if (Double.isNaN(rn[l])) {
+					errorCode = PowerLawFit.ERROR_R_NAN;
+				}
+				else if (Double.isInfinite(rn[l])) {
+					errorCode = PowerLawFit.ERROR_R_INFINITE;
+				}
+				else if (change == diff[l]) {
+					errorCode = PowerLawFit.ERROR_CONVERGE;
+				}
+				else {
+					if (change > diff[l]) divergences[l]++;
+					if (divergences[l] >= MAX_DIVERGENCES) {
+						errorCode = PowerLawFit.ERROR_CONVERGE;
+					}
+				}
+				diff[l] = change;
+				if (errorCode != PowerLawFit.ERROR_NONE) {
+					setFailed(x, r, a, errorCodes, errorCode);
+					active[l] = false;
+					activeLanes--;
+				}
+				else if (change <= epsilon) {
+					r[x] = rn[l];
+					active[l] = false;
+					activeLanes--;
+				}
+			}
+		}
+		// a is calculated with the final r of each lane.
+		sumExp(lanes);
+		for (int l = 0; l < lanes; l++) {
+			final int x = from + l;
+			if (Double.isNaN(r[x])) continue;
+			a[x] = sumCounts[l] / s0[l];
+			if (Double.isNaN(a[x])) {
+				setFailed(x, r, a, errorCodes, PowerLawFit.ERROR_A_NAN);
+			}
+			else {
+				errorCodes[x] = PowerLawFit.ERROR_NONE;
+				if (moments != null) {
+					moments[0][x] = a[x] * s0[l];
+					moments[1][x] = a[x] * s1[l];
+					moments[2][x] = a[x] * s2[l];
+				}
+			}
+		}
+		return iterations;
+	}
+
+	/**
+	 * Calculates the sums of ln(E<sub>i</sub>)<sup>k</sup>&sdot;E<sub>i</sub>
+	 * <sup>-r</sup> (k = 0, 1, 2) for all lanes. Lanes that have already
+	 * finished are calculated too; this keeps the loop free of branches.
+	 */
+	private void sumExp(final int lanes) {
+		for (int l = 0; l < lanes; l++) {
+			s0[l] = 0;
+			s1[l] = 0;
+			s2[l] = 0;
+		}
+		for (int i = 0; i < lnE.length; i++) {
+			final double lnEI = lnE[i];
+			for (int l = 0; l < lanes; l++) {
+				final double e = Math.exp(-rn[l] * lnEI);
+				s0[l] += e;
+				s1[l] += lnEI * e;
+				s2[l] += lnEI * lnEI * e;
+			}
+		}
+	}
+
+	private static void setFailed(final int x, final double[] r,
+		final double[] a, final int[] errorCodes, final int errorCode)
+	{
+		r[x] = Double.NaN;
+		a[x] = Double.NaN;
+		errorCodes[x] = errorCode;
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import java.awt.EventQueue;
+import java.text.MessageFormat;
+
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.Binner;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * <p>
+ * This class creates a preview of the elemental map. The first map is
+ * calculated from a stack that has been binned by 8. Then the stack is binned
+ * by 4 and 2 and at last the full resolution is used. After each step the
+ * preview images are updated.
+ * </p>
+ * <p>
+ * The calculation runs at its own {@link Thread}. Call {@link #cancel()} if the
+ * parameters have changed and start a new {@link ProgressiveElementalMapping}.
+ * The binned images contain the mean counts, so the maps of all steps can be
+ * compared.
+ * </p>
+ * <p>
+ * The preview windows are only changed at the event dispatch thread. This
+ * way a step that finishes after {@link #cancel()} or {@link #close()} can't
+ * update or reopen a window.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class ProgressiveElementalMapping implements Runnable {
+
+	/**
+	 * The binning factors that are used one after another. 1 is the full
+	 * resolution.
+	 */
+	private static final int[] BINNINGS = { 8, 4, 2, 1 };
+
+	private final float[] energyLossArray;
+	/**
+	 * The exposure times or <code>null</code> if all images have the same
+	 * exposure time.
+	 */
+	private final float[] exposureArray;
+	private final ImagePlus stack;
+	private final float edgeEnergyLoss;
+	private final float epsilon;
+	private final AVAILABLE_METHODS method;
+	/**
+	 * The {@link ElementalMapping} of the current step.
+	 */
+	private volatile ElementalMapping mapping;
+	private boolean warmStart;
+	/**
+	 * The cache of the maps of r and a or <code>null</code>.
+	 */
+	private BackgroundFitCache fitCache;
+	private volatile boolean cancelled;
+	/**
+	 * The images that show the preview of <strong>r</strong>,
+	 * <strong>ln(a)</strong> and the first elemental map. They are only used at
+	 * the event dispatch thread.
+	 */
+	private ImagePlus impRMap;
+	private ImagePlus impLnAMap;
+	private ImagePlus impElementalMap;
+
+	/**
+	 * @param energyLossArray The energy losses of all images at the given stack.
+	 * @param exposureArray The exposure times of all images or <code>null</code>
+	 *          .
+	 * @param stack An {@link ImagePlus} that contains the stack to process.
+	 * @param edgeEnergyLoss The onset energy of the considered ionisation edge.
+	 * @param epsilon The accuracy of the power low fit.
+	 * @param method The method used for fitting the power law function.
+	 */
+	public ProgressiveElementalMapping(final float[] energyLossArray,
+		final float[] exposureArray, final ImagePlus stack,
+		final float edgeEnergyLoss, final float epsilon,
+		final AVAILABLE_METHODS method)
+	{
+		this.energyLossArray = energyLossArray;
+		this.exposureArray = exposureArray;
+		this.stack = stack;
+		this.edgeEnergyLoss = edgeEnergyLoss;
+		this.epsilon = epsilon;
+		this.method = method;
+	}
+
+	/**
+	 * @param warmStart <code>true</code> to start the MLE of each pixel with the
+	 *          result of the neighbouring pixel.
+	 * @see ElementalMapping#setWarmStart(boolean)
+	 */
+	public void setWarmStart(final boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+
+	/**
+	 * @param fitCache A {@link BackgroundFitCache} that is used by all steps.
+	 *          The binned stacks have different sizes, so the steps don't
+	 *          interfere.
+	 * @see ElementalMapping#setFitCache(BackgroundFitCache)
+	 */
+	public void setFitCache(final BackgroundFitCache fitCache) {
+		this.fitCache = fitCache;
+	}
+
+	/**
+	 * The new preview uses the windows of a previous preview instead of opening
+	 * new ones.
+	 *
+	 * @param previous A {@link ProgressiveElementalMapping} that is no longer
+	 *          used.
+	 */
+	public void reuseWindows(final ProgressiveElementalMapping previous) {
+		previous.cancel();
+		// Runs after all updates of the previous preview that are pending.
+		EventQueue.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				impRMap = previous.impRMap;
+				impLnAMap = previous.impLnAMap;
+				impElementalMap = previous.impElementalMap;
+			}
+		});
+	}
+
+	/**
+	 * Starts the calculation at a new {@link Thread}.
+	 */
+	public void start() {
+		final Thread thread = new Thread(this, "Elemental map preview");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the calculation. The preview images are not updated any more.
+	 */
+	public void cancel() {
+		cancelled = true;
+		final ElementalMapping current = mapping;
+		if (current != null) current.cancel();
+	}
+
+	/**
+	 * Closes all preview windows.
+	 */
+	public void close() {
+		cancel();
+		EventQueue.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				for (final ImagePlus imp : new ImagePlus[] { impRMap, impLnAMap,
+					impElementalMap })
+				{
+					if (imp != null) imp.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Calculates the steps one after another. Invalid parameters, e.g. too few
+	 * pre-edge images, stop the preview with a message at the status bar.
+	 */
+	@Override
+	public void run() {
+		try {
+			calculateSteps();
+		}
+		catch (final RuntimeException e) {
+			if (!cancelled) {
+				IJ.showStatus("Elemental map preview: " + (e.getMessage() == null
+					? e.toString() : e.getMessage()));
+			}
+		}
+	}
+
+	private void calculateSteps() {
+		for (final int binning : BINNINGS) {
+			if (cancelled) return;
+			if (stack.getWidth() / binning < 1 || stack.getHeight() / binning < 1) {
+				continue;
+			}
+			ImagePlus binnedStack = stack;
+			if (binning > 1) {
+				binnedStack = new Binner().shrink(stack, binning, binning, 1,
+					Binner.AVERAGE);
+			}
+			if (exposureArray == null) {
+				mapping = new ElementalMapping(energyLossArray, binnedStack,
+					edgeEnergyLoss, epsilon, method);
+			}
+			else {
+				mapping = new ElementalMapping(energyLossArray, exposureArray,
+					binnedStack, edgeEnergyLoss, epsilon, method);
+			}
+			mapping.setWarmStart(warmStart);
+			mapping.setFitCache(fitCache);
+			if (cancelled) return;
+			mapping.startCalculation();
+			if (cancelled || mapping.isCancelled()) return;
+			updatePreview(binning);
+		}
+	}
+
+	/**
+	 * Scales the maps of the current step to the size of the stack and shows
+	 * them at the event dispatch thread, unless the preview has been cancelled
+	 * in the meantime.
+	 *
+	 * @param binning The binning of the current step.
+	 */
+	private void updatePreview(final int binning) {
+		final ImageProcessor rMap = scale(mapping.getRMap(), binning);
+		final ImageProcessor lnAMap = scale(mapping.getLnAMap(), binning);
+		final ImageProcessor elementalMap = mapping.getElementalMaps().length > 0
+			? scale(mapping.getElementalMaps()[0], binning) : null;
+		final String elementalMapTitle = elementalMap == null ? null
+			: MessageFormat.format("Preview of elemental map {0,number}eV", mapping
+				.getPostEdgeEnergyLosses()[0]);
+		EventQueue.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				if (cancelled) return;
+				impRMap = show(impRMap, "Preview of parameter r", rMap, binning);
+				impLnAMap = show(impLnAMap, "Preview of parameter ln(a)", lnAMap,
+					binning);
+				if (elementalMap != null) {
+					impElementalMap = show(impElementalMap, elementalMapTitle,
+						elementalMap, binning);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param map A map of the current step.
+	 * @param binning The binning of the current step.
+	 * @return The map with the size of the stack.
+	 */
+	private ImageProcessor scale(final FloatProcessor map, final int binning) {
+		ImageProcessor ip = map;
+		if (binning > 1) {
+			ip.setInterpolationMethod(ImageProcessor.NONE);
+			ip = ip.resize(stack.getWidth(), stack.getHeight());
+		}
+		ip.resetMinAndMax();
+		return ip;
+	}
+
+	/**
+	 * Must be called at the event dispatch thread.
+	 *
+	 * @param imp The {@link ImagePlus} to update or <code>null</code> to create
+	 *          a new one.
+	 * @return The updated {@link ImagePlus}.
+	 */
+	private ImagePlus show(ImagePlus imp, final String title,
+		final ImageProcessor ip, final int binning)
+	{
+		final String titleWithBinning = title + (binning > 1 ? " (binning " +
+			binning + ")" : "");
+		if (imp == null || imp.getWindow() == null) {
+			imp = new ImagePlus(titleWithBinning, ip);
+			imp.setCalibration(stack.getCalibration());
+			imp.show();
+		}
+		else {
+			imp.setProcessor(titleWithBinning, ip);
+		}
+		return imp;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * This plugin creates a map of the relative thickness t/&lambda; by the
+ * log-ratio method (see {@link ClosedFormMaps#relativeThickness}). An
+ * unfiltered image and a zero-loss filtered image of the same region are
+ * necessary.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class RelativeThicknessPlugin implements ExtendedPlugInFilter {
+
+	/**
+	 * <code>FLAGS = DOES_ALL | NO_CHANGES | FINAL_PROCESSING</code>
+	 */
+	private final int FLAGS = DOES_ALL | NO_CHANGES | FINAL_PROCESSING;
+	/**
+	 * The unfiltered image (I<sub>t</sub>).
+	 */
+	private ImagePlus impUnfiltered;
+	/**
+	 * The zero-loss filtered image (I<sub>0</sub>).
+	 */
+	private ImagePlus impZeroLoss;
+	private ImagePlus result;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#setup(java.lang.String, ij.ImagePlus)
+	 */
+	@Override
+	public int setup(final String arg, final ImagePlus imp) {
+		if (arg.equals("final")) {
+			if (result != null) result.show();
+			return NO_CHANGES | DONE;
+		}
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#run(ij.process.ImageProcessor)
+	 */
+	@Override
+	public void run(final ImageProcessor ip) {
+		final float[] unfiltered = (float[]) impUnfiltered.getProcessor()
+			.convertToFloat().getPixels();
+		final float[] zeroLoss = (float[]) impZeroLoss.getProcessor()
+			.convertToFloat().getPixels();
+		final FloatProcessor thickness = new FloatProcessor(impUnfiltered
+			.getWidth(), impUnfiltered.getHeight());
+		ClosedFormMaps.relativeThickness(unfiltered, zeroLoss, (float[]) thickness
+			.getPixels());
+		thickness.resetMinAndMax();
+		result = new ImagePlus("t-lambda map of " + impUnfiltered.getShortTitle(),
+			thickness);
+		result.setCalibration(impUnfiltered.getCalibration());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#showDialog(ij.ImagePlus, java.lang.String,
+	 * ij.plugin.filter.PlugInFilterRunner)
+	 */
+	@Override
+	public int showDialog(final ImagePlus imp, final String command,
+		final PlugInFilterRunner pfr)
+	{
+		final int[] wList = WindowManager.getIDList();
+		if (wList == null || wList.length < 2) {
+			IJ.showMessage("Two images are necessary to use this tool.");
+			return DONE;
+		}
+		final String[] titles = new String[wList.length];
+		for (int i = 0; i < wList.length; i++) {
+			final ImagePlus temp = WindowManager.getImage(wList[i]);
+			if (temp != null) titles[i] = temp.getTitle();
+			else titles[i] = "";
+		}
+		final GenericDialog gd = new GenericDialog(command + " - set images", IJ
+			.getInstance());
+		gd.addChoice("Unfiltered_image:", titles, titles[0]);
+		gd.addChoice("Zero-loss_image:", titles, titles[1]);
+		gd.setResizable(false);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return DONE;
+		}
+		final int index1 = gd.getNextChoiceIndex();
+		final int index2 = gd.getNextChoiceIndex();
+		if (index1 == index2) {
+			IJ.showMessage("You have to choose two different images.");
+			return DONE;
+		}
+		impUnfiltered = WindowManager.getImage(wList[index1]);
+		impZeroLoss = WindowManager.getImage(wList[index2]);
+		if (impUnfiltered.getWidth() != impZeroLoss.getWidth() || impUnfiltered
+			.getHeight() != impZeroLoss.getHeight())
+		{
+			IJ.showMessage("Both images must have the same size.");
+			return DONE;
+		}
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#setNPasses(int)
+	 */
+	@Override
+	public void setNPasses(final int nPasses) {
+		// This method is not used.
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package elemental_map;
+
+import eftemj.EFTEMj_ComputePool;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import tools.PoissonRandom;
+
+/**
+ * <p>
+ * Creates an EFTEM series with known maps of r and a. The background of each
+ * pixel follows the power law <code>a * E<sup>-r</sup></code>. r increases
+ * from left to right and the background counts at the first energy loss
+ * increase from top to bottom, so each combination of both is present. Round
+ * particles on a regular grid add the signal of the element to all images
+ * above the edge.
+ * </p>
+ * <p>
+ * The slice labels contain the energy losses (e.g. <code>617eV</code>), so the
+ * series can be processed by the {@link ElementalMappingPlugin}. The rows are
+ * created in parallel by the {@link EFTEMj_ComputePool}. Each row uses its own
+ * random numbers, so the result only depends on the seed and not on the
+ * number of {@link Thread}s.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class SyntheticEFTEMSeries {
+
+	private final int width;
+	private final int height;
+	private final float[] energyLosses;
+	private final float edgeEnergyLoss;
+	private double rMin = 2.5;
+	private double rMax = 4.0;
+	private double countsMin = 100;
+	private double countsMax = 1000;
+	private double signal = 50;
+	private int particleSpacing;
+	private boolean poissonNoise = true;
+	private long seed;
+	private FloatProcessor rMap;
+	private FloatProcessor lnAMap;
+	private FloatProcessor elementMap;
+
+	/**
+	 * @param width The width of the images.
+	 * @param height The height of the images.
+	 * @param energyLosses The energy losses of the images (in eV).
+	 * @param edgeEnergyLoss The onset energy of the ionisation edge. Images at
+	 *          larger energy losses contain the signal of the element.
+	 */
+	public SyntheticEFTEMSeries(final int width, final int height,
+		final float[] energyLosses, final float edgeEnergyLoss)
+	{
+		if (width < 1 || height < 1) throw new IllegalArgumentException(
+			"The size has to be at least 1x1.");
+		if (energyLosses.length < 1 || energyLosses[0] <= 0)
+			throw new IllegalArgumentException(
+				"The energy losses have to be larger than 0.");
+		this.width = width;
+		this.height = height;
+		this.energyLosses = energyLosses.clone();
+		this.edgeEnergyLoss = edgeEnergyLoss;
+		particleSpacing = Math.max(8, Math.min(width, height) / 8);
+	}
+
+	/**
+	 * @param min The value of r at the left border (default 2.5).
+	 * @param max The value of r at the right border (default 4.0).
+	 */
+	public void setRRange(final double min, final double max) {
+		rMin = min;
+		rMax = max;
+	}
+
+	/**
+	 * @param min The background counts of the first image at the top border
+	 *          (default 100).
+	 * @param max The background counts of the first image at the bottom border
+	 *          (default 1000).
+	 */
+	public void setCountsRange(final double min, final double max) {
+		countsMin = min;
+		countsMax = max;
+	}
+
+	/**
+	 * @param signal The counts that are added by the element to the images above
+	 *          the edge (default 50).
+	 */
+	public void setSignal(final double signal) {
+		this.signal = signal;
+	}
+
+	/**
+	 * @param spacing The distance of two particles in pixels (default 1/8 of the
+	 *          image size). The diameter of the particles is half the spacing.
+	 */
+	public void setParticleSpacing(final int spacing) {
+		if (spacing < 2) throw new IllegalArgumentException(
+			"The particle spacing has to be at least 2.");
+		particleSpacing = spacing;
+	}
+
+	/**
+	 * @param poissonNoise <code>false</code> to create the exact counts
+	 *          (default <code>true</code>).
+	 */
+	public void setPoissonNoise(final boolean poissonNoise) {
+		this.poissonNoise = poissonNoise;
+	}
+
+	/**
+	 * @param seed The seed of the Poisson noise (default 0).
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Creates the series and the maps of the known parameters.
+	 *
+	 * @return A 32-bit stack with one slice per energy loss.
+	 */
+	public ImagePlus create() {
+		final FloatProcessor[] images = new FloatProcessor[energyLosses.length];
+		final ImageStack stack = new ImageStack(width, height);
+		for (int i = 0; i < images.length; i++) {
+			images[i] = new FloatProcessor(width, height);
+			stack.addSlice(format(energyLosses[i]) + "eV", images[i]);
+		}
+		rMap = new FloatProcessor(width, height);
+		lnAMap = new FloatProcessor(width, height);
+		elementMap = new FloatProcessor(width, height);
+		final double[] lnE = new double[energyLosses.length];
+		for (int i = 0; i < lnE.length; i++) {
+			lnE[i] = Math.log(energyLosses[i]);
+		}
+		EFTEMj_ComputePool.forEach(height, new EFTEMj_ComputePool.IndexTask() {
+
+			@Override
+			public void run(final int y) {
+				final PoissonRandom random = new PoissonRandom(seed * height + y);
+				final double counts = countsMin + (countsMax - countsMin) * fraction(y,
+					height);
+				for (int x = 0; x < width; x++) {
+					final int index = y * width + x;
+					final double r = rMin + (rMax - rMin) * fraction(x, width);
+					// The counts of the first image define a.
+					final double lnA = Math.log(counts) + r * lnE[0];
+					final double element = isParticle(x, y) ? signal : 0;
+					rMap.setf(index, (float) r);
+					lnAMap.setf(index, (float) lnA);
+					elementMap.setf(index, (float) element);
+					for (int i = 0; i < images.length; i++) {
+						double value = Math.exp(lnA - r * lnE[i]);
+						if (energyLosses[i] > edgeEnergyLoss) value += element;
+						if (poissonNoise) value = random.nextPoisson(value);
+						images[i].setf(index, (float) value);
+					}
+				}
+			}
+		});
+		return new ImagePlus("EFTEM-Series_" + width + "x" + height, stack);
+	}
+
+	/**
+	 * @return The map of r that has been used by {@link #create()}.
+	 */
+	public FloatProcessor getRMap() {
+		return rMap;
+	}
+
+	/**
+	 * @return The map of ln(a) that has been used by {@link #create()}.
+	 */
+	public FloatProcessor getLnAMap() {
+		return lnAMap;
+	}
+
+	/**
+	 * @return The signal of the element that has been added to the images above
+	 *         the edge. This is the expected elemental map.
+	 */
+	public FloatProcessor getElementMap() {
+		return elementMap;
+	}
+
+	private boolean isParticle(final int x, final int y) {
+		final double radius = particleSpacing / 4.0;
+		final double dx = x % particleSpacing - (particleSpacing - 1) / 2.0;
+		final double dy = y % particleSpacing - (particleSpacing - 1) / 2.0;
+		return dx * dx + dy * dy <= radius * radius;
+	}
+
+	/**
+	 * @return The position as a value between 0 and 1.
+	 */
+	private static double fraction(final int position, final int size) {
+		return size > 1 ? (double) position / (size - 1) : 0;
+	}
+
+	private static String format(final float energyLoss) {
+		if (energyLoss == Math.rint(energyLoss)) return String.valueOf(
+			(int) energyLoss);
+		return String.valueOf(energyLoss);
+	}
+}
@@ -0,0 +1,201 @@
+package libs.lma;
+
+/**
+ * A <i>Levenberg-Marquardt Algorithm</i> (LMA) fit for many independent
+ * problems with two fit parameters each. All problems share the same x-values
+ * (e.g. the energy losses of an EFTEM stack), only the y-values differ (e.g.
+ * the counts of each pixel).
+ * <p>
+ * In contrast to {@link LMA} no objects are created for each problem. The
+ * parameters are stored as structure of arrays (one array per parameter) and
+ * the 2&times;2 normal equations are solved directly. As the instance holds no
+ * state of a running fit, one instance can be used by several {@link Thread}s
+ * at the same time.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class BatchLMA {
+
+	/**
+	 * This value is written to the iteration count of a problem if the fit has
+	 * failed.
+	 */
+	public static final int FAILED = -1;
+
+	/**
+	 * The model function. {@link LMAFunction#getYAndPartialDerivates} is used
+	 * to calculate alpha and beta.
+	 */
+	private final LMAFunction function;
+	/**
+	 * The x-values that are shared by all problems.
+	 */
+	private final double[] xValues;
+	/**
+	 * The weight of each x-value, or <code>null</code> if all weights are 1.
+	 */
+	private final double[] weights;
+
+	public double lambda = 1e-5;
+	public double lambdaFactor = 10;
+	/**
+	 * The fit of a problem stops if the relative change of chi2 is smaller than
+	 * this value.
+	 */
+	public double minDeltaChi2 = 1e-8;
+	public int maxIterations = 100;
+
+	/**
+	 * @param function The model function with two fit parameters.
+	 * @param xValues The x-values that are shared by all problems.
+	 */
+	public BatchLMA(final LMAFunction function, final double[] xValues) {
+		this(function, xValues, null);
+	}
+
+	/**
+	 * @param function The model function with two fit parameters.
+	 * @param xValues The x-values that are shared by all problems.
+	 * @param weights The weight of each x-value. If the given array is
+	 *          <code>null</code>, all weights are 1.
+	 */
+	public BatchLMA(final LMAFunction function, final double[] xValues,
+		final double[] weights)
+	{
+		if (weights != null && weights.length != xValues.length)
+			throw new IllegalArgumentException(
+				"There must be one weight for each x-value.");
+		this.function = function;
+		this.xValues = xValues;
+		this.weights = weights;
+	}
+
+	/**
+	 * Fits all problems. N is the number of x-values and P is the number of
+	 * problems.
+	 *
+	 * @param yValues The y-values of all problems, <code>double[N][P]</code>.
+	 * @param parameters The initial guess of both parameters for each problem,
+	 *          <code>double[2][P]</code>. The fit results are written to this
+	 *          array.
+	 * @param chi2 The final chi2 of each problem is written to this array
+	 *          (length P).
+	 * @param iterations The number of iterations of each problem is written to
+	 *          this array (length P). If a fit has failed, the value is
+	 *          {@link #FAILED}.
+	 * @return The number of problems where the fit has failed. All fits fail if
+	 *         there are less x-values than parameters.
+	 */
+	public int fit(final double[][] yValues, final double[][] parameters,
+		final double[] chi2, final int[] iterations)
+	{
+		if (yValues.length != xValues.length)
+			throw new IllegalArgumentException(
+				"There must be one y-array for each x-value.");
+		if (xValues.length < parameters.length) {
+			// The parameters are not determined, but chi2 can be 0 at the start.
+			for (int p = 0; p < parameters[0].length; p++) {
+				iterations[p] = FAILED;
+				chi2[p] = Double.NaN;
+			}
+			return parameters[0].length;
+		}
+		final double[] a = new double[2];
+		final double[] trial = new double[2];
+		final double[] partialDerivates = new double[2];
+		int failed = 0;
+		for (int p = 0; p < parameters[0].length; p++) {
+			a[0] = parameters[0][p];
+			a[1] = parameters[1][p];
+			iterations[p] = fit(yValues, p, a, trial, partialDerivates);
+			if (iterations[p] == FAILED) {
+				failed++;
+				chi2[p] = Double.NaN;
+			}
+			else {
+				chi2[p] = calculateChi2(yValues, p, a);
+			}
+			parameters[0][p] = a[0];
+			parameters[1][p] = a[1];
+		}
+		return failed;
+	}
+
+	/**
+	 * Fits a single problem. The parameters are updated in place.
+	 *
+	 * @return The number of iterations or {@link #FAILED}, if the fit has not
+	 *         converged within {@link #maxIterations}.
+	 */
+	private int fit(final double[][] yValues, final int p, final double[] a,
+		final double[] trial, final double[] partialDerivates)
+	{
+		double currentLambda = lambda;
+		double currentChi2 = calculateChi2(yValues, p, a);
+		if (Double.isNaN(currentChi2)) return FAILED;
+		int iterationCount = 0;
+		boolean stop = currentChi2 == 0;
+		while (!stop) {
+			double alpha00 = 0;
+			double alpha01 = 0;
+			double alpha11 = 0;
+			double beta0 = 0;
+			double beta1 = 0;
+			for (int k = 0; k < xValues.length; k++) {
+				final double w = weights == null ? 1 : weights[k];
+				final double y = function.getYAndPartialDerivates(xValues[k], a,
+					partialDerivates);
+				final double dy = yValues[k][p] - y;
+				alpha00 += w * partialDerivates[0] * partialDerivates[0];
+				alpha01 += w * partialDerivates[0] * partialDerivates[1];
+				alpha11 += w * partialDerivates[1] * partialDerivates[1];
+				beta0 += w * dy * partialDerivates[0];
+				beta1 += w * dy * partialDerivates[1];
+			}
+			// Marquardt's lambda addition
+			alpha00 *= 1 + currentLambda;
+			alpha11 *= 1 + currentLambda;
+			final double det = alpha00 * alpha11 - alpha01 * alpha01;
+			double incrementedChi2 = Double.NaN;
+			if (det != 0 && !Double.isNaN(det)) {
+				trial[0] = a[0] + (beta0 * alpha11 - beta1 * alpha01) / det;
+				trial[1] = a[1] + (alpha00 * beta1 - alpha01 * beta0) / det;
+				incrementedChi2 = calculateChi2(yValues, p, trial);
+			}
+			else if (iterationCount == maxIterations) {
+				// The matrix is singular at the last round - the fit has failed.
+				return FAILED;
+			}
+			final double previousChi2 = currentChi2;
+			if (incrementedChi2 >= currentChi2 || Double.isNaN(incrementedChi2)) {
+				currentLambda *= lambdaFactor;
+			}
+			else {
+				currentLambda /= lambdaFactor;
+				a[0] = trial[0];
+				a[1] = trial[1];
+				currentChi2 = incrementedChi2;
+			}
+			iterationCount++;
+			stop = Math.abs(previousChi2 - incrementedChi2) < minDeltaChi2 *
+				previousChi2 || currentChi2 == 0;
+			// The fit has not converged within maxIterations.
+			if (!stop && iterationCount > maxIterations) return FAILED;
+		}
+		return iterationCount;
+	}
+
+	/**
+	 * @return The chi2 of problem <code>p</code> for the given parameters.
+	 */
+	private double calculateChi2(final double[][] yValues, final int p,
+		final double[] a)
+	{
+		double result = 0;
+		for (int k = 0; k < xValues.length; k++) {
+			final double dy = yValues[k][p] - function.getY(xValues[k], a);
+			result += (weights == null ? 1 : weights[k]) * dy * dy;
+		}
+		return result;
+	}
+}
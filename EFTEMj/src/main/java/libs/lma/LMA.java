@@ -1,10 +1,15 @@
-
 package libs.lma;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import libs.lma.ArrayConverter.SeparatedData;
-import libs.lma.implementations.JAMAMatrix;
+import libs.lma.implementations.CholeskyMatrix;
 
 /**
  * A class which implements the <i>Levenberg-Marquardt Algorithm</i> (LMA) fit
@@ -16,11 +21,13 @@
  * <a href="http://www.nrbook.com/b/bookfpdf/f15-5.pdf">here</a> as a pdf file.
  * <p>
  * The matrix (<code>LMAMatrix</code>) class used in the fit is an interface, so
- * you can use your favourite implementation. This package uses
- * <code>Matrix</code> from JAMA-math libraries, but feel free to use anything
- * you want. Note that you have to implement the actual model function and its
- * partial derivates as <code>LMAFunction</code> or
- * <code>LMAMultiDimFunction</code> before making the fit.
+ * you can use your favourite implementation. By default this package uses
+ * <code>CholeskyMatrix</code>, that solves the normal equations without
+ * inverting alpha. <code>JAMAMatrix</code> (based on JAMA-math libraries) is
+ * available as well, but feel free to use anything you want. Note that you have
+ * to implement the actual model function and its partial derivates as
+ * <code>LMAFunction</code> or <code>LMAMultiDimFunction</code> before making
+ * the fit.
  * <p>
  * Note that there are <i>three</i> different ways to input the data points.
  * Read the documentation for each constructor carefully.
@@ -30,8 +37,11 @@
  */
 public class LMA {
 
-	/** Set true to print details while fitting. */
-	public boolean verbose = true;
+	/**
+	 * Set true to print details while fitting. Use an {@link LMAListener} to
+	 * collect information without writing to the console.
+	 */
+	public boolean verbose = false;
 	/**
 	 * The model function to be fitted, y = y(x[], a[]), where <code>x[]</code>
 	 * the array of x-values and <code>a</code> is the array of fit parameters.
@@ -69,17 +79,72 @@ public class LMA {
 	public double[] incrementedParameters;
 	public int iterationCount;
 	public double chi2;
+	/**
+	 * Index of the time used to calculate alpha and beta at the array passed to
+	 * {@link LMAListener#iterationFinished(LMA, boolean, long[])}.
+	 */
+	public static final int PHASE_ALPHA_BETA = 0;
+	/**
+	 * Index of the time used to solve the increments.
+	 */
+	public static final int PHASE_SOLVE = 1;
+	/**
+	 * Index of the time used to calculate chi2.
+	 */
+	public static final int PHASE_CHI2 = 2;
+	/**
+	 * The listener that is informed about each iteration. If it is
+	 * <code>null</code>, no time is measured.
+	 */
+	private LMAListener listener;
+	/**
+	 * The time in nanoseconds spent at each phase of the current iteration.
+	 */
+	private final long[] phaseNanos = new long[3];
+	/**
+	 * The number of data points that are processed by one task if an
+	 * {@link ExecutorService} is used. The data points are always split at the
+	 * same positions, so the result does not depend on the number of
+	 * {@link Thread}s.
+	 */
+	public int chunkSize = 1024;
+	/**
+	 * If not <code>null</code>, chi2, alpha and beta are calculated in parallel.
+	 */
+	private ExecutorService executorService;
+	/**
+	 * One row of the Jacobian matrix. It is filled by
+	 * {@link LMAMultiDimFunction#getYAndPartialDerivates} for each data point.
+	 */
+	private double[] jacobianRow;
+	/**
+	 * Beta followed by the lower triangle of alpha (row by row) without
+	 * Marquardt's lambda addition. It is reused at each iteration.
+	 */
+	private double[] sums;
+	/**
+	 * The partial sums of each chunk if the calculation is done in parallel.
+	 */
+	private double[][] chunkSums;
+	/**
+	 * One row of the Jacobian matrix for each chunk.
+	 */
+	private double[][] chunkRows;
 
 	// default end conditions
 	public double minDeltaChi2 = 1e-8;
 	public int maxIterations = 100;
+	/**
+	 * The number of Gauss-Newton steps used to fit a linear function.
+	 */
+	private static final int LINEAR_STEPS = 2;
 
 	/**
 	 * One dimensional convenience constructor for LMAFunction. You can also
 	 * implement the same function using LMAMultiDimFunction.
 	 * <p>
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of data points, M is the number of fit parameters. Call
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of data points, M is the number of fit parameters. Call
 	 * <code>fit()</code> to start the actual fitting.
 	 *
 	 * @param function The model function to be fitted. Must be able to take M
@@ -100,8 +165,8 @@ public LMA(final LMAFunction function, final double[] parameters,
 	 * One dimensional convenience constructor for LMAFunction. You can also
 	 * implement the same function using LMAMultiDimFunction.
 	 * <p>
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of data points, M is the number of fit parameters. Call
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of data points, M is the number of fit parameters. Call
 	 * <code>fit()</code> to start the actual fitting.
 	 *
 	 * @param function The model function to be fitted. Must be able to take M
@@ -132,17 +197,24 @@ public double getPartialDerivate(final double[] x, final double[] a,
 				public double getY(final double[] x, final double[] a) {
 					return f.getY(x[0], a);
 				}
+
+				@Override
+				public double getYAndPartialDerivates(final double[] x,
+					final double[] a, final double[] partialDerivates)
+			{
+					return f.getYAndPartialDerivates(x[0], a, partialDerivates);
+				}
 			}, parameters, dataPoints[1], // y-data
 			ArrayConverter.transpose(dataPoints[0]), // x-data
-			weights, new JAMAMatrix(parameters.length, parameters.length));
+			weights, new CholeskyMatrix(parameters.length, parameters.length));
 	}
 
 	/**
 	 * One dimensional convenience constructor for LMAFunction. You can also
 	 * implement the same function using LMAMultiDimFunction.
 	 * <p>
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of data points, M is the number of fit parameters. Call
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of data points, M is the number of fit parameters. Call
 	 * <code>fit()</code> to start the actual fitting.
 	 *
 	 * @param function The model function to be fitted. Must be able to take M
@@ -163,8 +235,8 @@ public LMA(final LMAFunction function, final float[] parameters,
 	 * One dimensional convenience constructor for LMAFunction. You can also
 	 * implement the same function using LMAMultiDimFunction.
 	 * <p>
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of data points, M is the number of fit parameters. Call
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of data points, M is the number of fit parameters. Call
 	 * <code>fit()</code> to start the actual fitting.
 	 *
 	 * @param function The model function to be fitted. Must be able to take M
@@ -186,8 +258,8 @@ public LMA(final LMAFunction function, final float[] parameters,
 	}
 
 	/**
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of y-data points, K is the dimension of the fit function and M
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of y-data points, K is the dimension of the fit function and M
 	 * is the number of fit parameters. Call <code>this.fit()</code> to start the
 	 * actual fitting.
 	 *
@@ -209,13 +281,13 @@ public LMA(final LMAMultiDimFunction function, final float[] parameters,
 	{
 		this(function, ArrayConverter.asDoubleArray(parameters), ArrayConverter
 			.asDoubleArray(dataPoints), function.constructWeights(ArrayConverter
-				.asDoubleArray(dataPoints)), new JAMAMatrix(parameters.length,
+				.asDoubleArray(dataPoints)), new CholeskyMatrix(parameters.length,
 					parameters.length));
 	}
 
 	/**
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of y-data points, K is the dimension of the fit function and M
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of y-data points, K is the dimension of the fit function and M
 	 * is the number of fit parameters. Call <code>this.fit()</code> to start the
 	 * actual fitting.
 	 *
@@ -236,12 +308,12 @@ public LMA(final LMAMultiDimFunction function, final double[] parameters,
 		final double[][] dataPoints)
 	{
 		this(function, parameters, dataPoints, function.constructWeights(
-			dataPoints), new JAMAMatrix(parameters.length, parameters.length));
+			dataPoints), new CholeskyMatrix(parameters.length, parameters.length));
 	}
 
 	/**
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of y-data points, K is the dimension of the fit function and M
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of y-data points, K is the dimension of the fit function and M
 	 * is the number of fit parameters. Call <code>this.fit()</code> to start the
 	 * actual fitting.
 	 *
@@ -258,12 +330,12 @@ public LMA(final LMAMultiDimFunction function, final double[] parameters,
 		this(function, parameters, ArrayConverter.asDoubleArray(yDataPoints),
 			ArrayConverter.asDoubleArray(xDataPoints), function.constructWeights(
 				ArrayConverter.combineMultiDimDataPoints(yDataPoints, xDataPoints)),
-			new JAMAMatrix(parameters.length, parameters.length));
+			new CholeskyMatrix(parameters.length, parameters.length));
 	}
 
 	/**
-	 * Initiates the fit with function constructed weights and a JAMA matrix. N is
-	 * the number of y-data points, K is the dimension of the fit function and M
+	 * Initiates the fit with function constructed weights and a Cholesky matrix. N
+	 * is the number of y-data points, K is the dimension of the fit function and M
 	 * is the number of fit parameters. Call <code>this.fit()</code> to start the
 	 * actual fitting.
 	 *
@@ -279,7 +351,7 @@ public LMA(final LMAMultiDimFunction function, final double[] parameters,
 	{
 		this(function, parameters, yDataPoints, xDataPoints, function
 			.constructWeights(ArrayConverter.combineMultiDimDataPoints(yDataPoints,
-				xDataPoints)), new JAMAMatrix(parameters.length, parameters.length));
+				xDataPoints)), new CholeskyMatrix(parameters.length, parameters.length));
 	}
 
 	/**
@@ -390,6 +462,22 @@ protected void init(final LMAMultiDimFunction functionIn,
 		alpha = alphaIn;
 		beta = new double[parametersIn.length];
 		da = new double[parametersIn.length];
+		jacobianRow = new double[parametersIn.length];
+		sums = new double[parametersIn.length + parametersIn.length *
+			(parametersIn.length + 1) / 2];
+	}
+
+	/**
+	 * Use an {@link ExecutorService} to calculate chi2, alpha and beta in
+	 * parallel. The data points are split into chunks of
+	 * <code>chunkSize</code>, and the partial sums are combined in a fixed
+	 * order. The fit function must be thread safe.
+	 *
+	 * @param executorService An {@link ExecutorService} or <code>null</code> to
+	 *          disable the parallel calculation.
+	 */
+	public void setExecutorService(final ExecutorService executorService) {
+		this.executorService = executorService;
 	}
 
 	/**
@@ -399,46 +487,176 @@ protected void init(final LMAMultiDimFunction functionIn,
 	 * use another stop condition.
 	 */
 	public void fit() throws LMAMatrix.InvertException {
+		if (function.isLinear()) {
+			fitLinear();
+			return;
+		}
 		iterationCount = 0;
-		if (Double.isNaN(calculateChi2())) throw new RuntimeException(
-			"INITIAL PARAMETERS ARE ILLEGAL.");
-		do {
-			chi2 = calculateChi2();
-			if (verbose) System.out.println(iterationCount + ": chi2 = " + chi2 +
-				", " + Arrays.toString(parameters));
-			updateAlpha();
-			updateBeta();
-			try {
-				solveIncrements();
-				incrementedChi2 = calculateIncrementedChi2();
-				// The guess results to worse chi2 or NaN - make the step
-				// smaller
-				if (incrementedChi2 >= chi2 || Double.isNaN(incrementedChi2)) {
-					lambda *= lambdaFactor;
+		final boolean measure = listener != null;
+		boolean successful = false;
+		try {
+			if (Double.isNaN(calculateChi2())) throw new RuntimeException(
+				"INITIAL PARAMETERS ARE ILLEGAL.");
+			do {
+				long time = 0;
+				if (measure) {
+					Arrays.fill(phaseNanos, 0);
+					time = System.nanoTime();
 				}
-				// The guess results to better chi2 - move and make the step
-				// larger
-				else {
-					lambda /= lambdaFactor;
-					updateParameters();
+				chi2 = calculateChi2();
+				if (verbose) System.out.println(iterationCount + ": chi2 = " + chi2 +
+					", " + Arrays.toString(parameters));
+				if (measure) time = lap(PHASE_CHI2, time);
+				updateAlphaAndBeta();
+				if (measure) time = lap(PHASE_ALPHA_BETA, time);
+				boolean accepted = false;
+				try {
+					solveIncrements();
+					if (measure) time = lap(PHASE_SOLVE, time);
+					incrementedChi2 = calculateIncrementedChi2();
+					if (measure) time = lap(PHASE_CHI2, time);
+					// The guess results to worse chi2 or NaN - make the step
+					// smaller
+					if (incrementedChi2 >= chi2 || Double.isNaN(incrementedChi2)) {
+						lambda *= lambdaFactor;
+					}
+					// The guess results to better chi2 - move and make the step
+					// larger
+					else {
+						lambda /= lambdaFactor;
+						updateParameters();
+						accepted = true;
+					}
 				}
+				catch (final LMAMatrix.InvertException e) {
+					// If the error happens on the last round, the fit has failed -
+					// throw the error out
+					if (iterationCount == maxIterations) throw e;
+					// otherwise make the step smaller and try again
+					if (verbose) {
+						System.out.println(e.getMessage());
+					}
+					if (measure) lap(PHASE_SOLVE, time);
+					lambda *= lambdaFactor;
+				}
+				iterationCount++;
+				if (measure) listener.iterationFinished(this, accepted, phaseNanos);
 			}
-			catch (final LMAMatrix.InvertException e) {
-				// If the error happens on the last round, the fit has failed -
-				// throw the error out
-				if (iterationCount == maxIterations) throw e;
-				// otherwise make the step smaller and try again
-				if (verbose) {
-					System.out.println(e.getMessage());
+			while (!stop());
+			successful = true;
+		}
+		finally {
+			if (measure) listener.fitFinished(this, successful);
+		}
+		printEndReport();
+	}
+
+	/**
+	 * Fits a function that is linear in its parameters (see
+	 * {@link LMAMultiDimFunction#isLinear()}). The Jacobian does not depend on
+	 * the parameters, so a single Gauss-Newton step (lambda = 0) reaches the
+	 * minimum of chi2 from any starting point. A second step corrects the
+	 * rounding errors of the first one. <code>lambda</code>,
+	 * <code>minDeltaChi2</code> and <code>maxIterations</code> are not used.
+	 *
+	 * @throws LMAMatrix.InvertException if the normal equations are singular.
+	 */
+	protected void fitLinear() throws LMAMatrix.InvertException {
+		iterationCount = 0;
+		final boolean measure = listener != null;
+		boolean successful = false;
+		final double oldLambda = lambda;
+		lambda = 0;
+		try {
+			chi2 = calculateChi2();
+			if (Double.isNaN(chi2)) throw new RuntimeException(
+				"INITIAL PARAMETERS ARE ILLEGAL.");
+			incrementedChi2 = chi2;
+			final double[] scale = new double[parameters.length];
+			for (int step = 0; step < LINEAR_STEPS; step++) {
+				long time = 0;
+				if (measure) {
+					Arrays.fill(phaseNanos, 0);
+					time = System.nanoTime();
 				}
-				lambda *= lambdaFactor;
+				updateAlphaAndBeta();
+				if (measure) time = lap(PHASE_ALPHA_BETA, time);
+				solveScaledIncrements(scale);
+				if (measure) time = lap(PHASE_SOLVE, time);
+				incrementedChi2 = calculateIncrementedChi2();
+				if (measure) time = lap(PHASE_CHI2, time);
+				final boolean accepted = incrementedChi2 <= chi2;
+				if (accepted) {
+					updateParameters();
+					chi2 = incrementedChi2;
+				}
+				iterationCount++;
+				if (measure) listener.iterationFinished(this, accepted, phaseNanos);
+				if (!accepted) break;
 			}
-			iterationCount++;
+			successful = true;
+		}
+		finally {
+			lambda = oldLambda;
+			if (measure) listener.fitFinished(this, successful);
 		}
-		while (!stop());
 		printEndReport();
 	}
 
+	/**
+	 * Solves the normal equations after scaling alpha to a unit diagonal. The
+	 * monomials of a polynomial differ by many orders of magnitude and without
+	 * this scaling the solution loses most of its precision.
+	 *
+	 * @param scale A buffer of the same length as the parameters.
+	 */
+	private void solveScaledIncrements(final double[] scale)
+		throws LMAMatrix.InvertException
+	{
+		final int n = parameters.length;
+		for (int i = 0; i < n; i++) {
+			final double diagonal = alpha.getElement(i, i);
+			scale[i] = diagonal > 0 ? 1 / Math.sqrt(diagonal) : 1;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				alpha.setElement(i, j, alpha.getElement(i, j) * scale[i] * scale[j]);
+			}
+			beta[i] *= scale[i];
+		}
+		solve(alpha, beta, da);
+		for (int i = 0; i < n; i++) {
+			da[i] *= scale[i];
+			incrementedParameters[i] = parameters[i] + da[i];
+		}
+	}
+
+	/**
+	 * Adds the time since <code>start</code> to the given phase.
+	 *
+	 * @return The current time in nanoseconds.
+	 */
+	private long lap(final int phase, final long start) {
+		final long now = System.nanoTime();
+		phaseNanos[phase] += now - start;
+		return now;
+	}
+
+	/**
+	 * @param listener An {@link LMAListener} that is informed about each
+	 *          iteration, or <code>null</code> to remove the current listener.
+	 */
+	public void setListener(final LMAListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The current {@link LMAListener} or <code>null</code>.
+	 */
+	public LMAListener getListener() {
+		return listener;
+	}
+
 	private void printEndReport() {
 		if (verbose) {
 			System.out.println(" ***** FIT ENDED ***** ");
@@ -487,32 +705,79 @@ protected void updateParameters() {
 
 	/**
 	 * Solves the increments array (<code>this.da</code>) using alpha and beta.
-	 * Then updates the <code>this.incrementedParameters</code> array. NOTE:
-	 * Inverts alpha. Call at least <code>updateAlpha()</code> before calling
-	 * this.
+	 * Then updates the <code>this.incrementedParameters</code> array. Call
+	 * <code>updateAlphaAndBeta()</code> before calling this.
 	 */
 	protected void solveIncrements() throws LMAMatrix.InvertException {
-		alpha.invert(); // throws InvertException if matrix is singular
-		alpha.multiply(beta, da);
+		// throws InvertException if matrix is singular
+		solve(alpha, beta, da);
 		for (int i = 0; i < parameters.length; i++) {
 			incrementedParameters[i] = parameters[i] + da[i];
 		}
 	}
 
+	/**
+	 * Solves <code>matrix * result = vector</code>. A
+	 * {@link SolvableLMAMatrix} is not inverted; any other {@link LMAMatrix} is
+	 * inverted in place and multiplied with the vector.
+	 *
+	 * @throws LMAMatrix.InvertException if the matrix is singular.
+	 */
+	protected static void solve(final LMAMatrix matrix, final double[] vector,
+		final double[] result) throws LMAMatrix.InvertException
+	{
+		if (matrix instanceof SolvableLMAMatrix) {
+			((SolvableLMAMatrix) matrix).solve(vector, result);
+		}
+		else {
+			matrix.invert();
+			matrix.multiply(vector, result);
+		}
+	}
+
 	/**
 	 * @return The calculated evalution function value (chi2) for the given
 	 *         parameter array. NOTE: Does not change the value of chi2.
 	 */
 	protected double calculateChi2(final double[] a) {
+		final int chunks = getChunkCount();
+		if (chunks == 1) return calculateChi2(a, 0, yDataPoints.length);
+		final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+		for (int c = 0; c < chunks; c++) {
+			final int from = c * chunkSize;
+			final int to = Math.min(from + chunkSize, yDataPoints.length);
+			tasks.add(new Callable<Double>() {
+
+				@Override
+				public Double call() {
+					return calculateChi2(a, from, to);
+				}
+			});
+		}
 		double result = 0;
-		for (int i = 0; i < yDataPoints.length; i++) {
+		for (final Double partialChi2 : invokeAll(tasks)) {
+			result += partialChi2;
+		}
+		return result;
+	}
+
+	/**
+	 * @return The chi2 of the data points <code>from</code> (inclusive) to
+	 *         <code>to</code> (exclusive).
+	 */
+	private double calculateChi2(final double[] a, final int from,
+		final int to)
+	{
+		double result = 0;
+		for (int i = from; i < to; i++) {
 			final double dy = yDataPoints[i] - function.getY(xDataPoints[i], a);
 			// check if NaN occurred
 			if (Double.isNaN(dy)) {
-				System.err.println("Chi2 calculation produced a NaN value at point " +
-					i + ":\n" + " x = " + Arrays.toString(xDataPoints[i]) + "\n" +
-					" y = " + yDataPoints[i] + "\n" + " parameters: " + Arrays.toString(
-						a) + "\n" + " iteration count = " + iterationCount);
+				if (verbose) System.err.println(
+					"Chi2 calculation produced a NaN value at point " + i + ":\n" +
+						" x = " + Arrays.toString(xDataPoints[i]) + "\n" + " y = " +
+						yDataPoints[i] + "\n" + " parameters: " + Arrays.toString(a) +
+						"\n" + " iteration count = " + iterationCount);
 				return Double.NaN;
 			}
 			result += weights[i] * dy * dy;
@@ -536,50 +801,130 @@ protected double calculateIncrementedChi2() {
 		return calculateChi2(incrementedParameters);
 	}
 
-	/** Calculates all elements for <code>this.alpha</code>. */
+	/**
+	 * Calculates all elements for <code>this.alpha</code>. NOTE:
+	 * <code>this.beta</code> is updated as well, as both are calculated at the
+	 * same pass.
+	 *
+	 * @see #updateAlphaAndBeta()
+	 */
 	protected void updateAlpha() {
-		for (int i = 0; i < parameters.length; i++) {
-			for (int j = 0; j < parameters.length; j++) {
-				alpha.setElement(i, j, calculateAlphaElement(i, j));
+		updateAlphaAndBeta();
+	}
+
+	/**
+	 * Calculates all elements for <code>this.alpha</code> and
+	 * <code>this.beta</code> in a single pass over the data points. For each
+	 * data point the function value and all partial derivates are requested only
+	 * once. As alpha is symmetric only the lower triangle is summed up.
+	 */
+	protected void updateAlphaAndBeta() {
+		final int n = parameters.length;
+		final int chunks = getChunkCount();
+		Arrays.fill(sums, 0);
+		if (chunks == 1) {
+			accumulateAlphaAndBeta(0, yDataPoints.length, jacobianRow, sums);
+		}
+		else {
+			if (chunkSums == null || chunkSums.length != chunks) {
+				chunkSums = new double[chunks][sums.length];
+				chunkRows = new double[chunks][n];
+			}
+			final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (int c = 0; c < chunks; c++) {
+				final int from = c * chunkSize;
+				final int to = Math.min(from + chunkSize, yDataPoints.length);
+				final double[] row = chunkRows[c];
+				final double[] partialSums = chunkSums[c];
+				tasks.add(new Callable<Object>() {
+
+					@Override
+					public Object call() {
+						Arrays.fill(partialSums, 0);
+						accumulateAlphaAndBeta(from, to, row, partialSums);
+						return null;
+					}
+				});
+			}
+			invokeAll(tasks);
+			// The partial sums are always combined in the same order.
+			for (int c = 0; c < chunks; c++) {
+				for (int i = 0; i < sums.length; i++) {
+					sums[i] += chunkSums[c][i];
+				}
 			}
 		}
+		System.arraycopy(sums, 0, beta, 0, n);
+		int index = n;
+		for (int j = 0; j < n; j++) {
+			for (int k = 0; k < j; k++) {
+				alpha.setElement(j, k, sums[index]);
+				alpha.setElement(k, j, sums[index]);
+				index++;
+			}
+			// Marquardt's lambda addition
+			alpha.setElement(j, j, sums[index] * (1 + lambda));
+			index++;
+		}
 	}
 
 	/**
-	 * @return An calculated lambda weighted element for the alpha-matrix. NOTE:
-	 *         Does not change the value of alpha-matrix.
+	 * Adds the contribution of the data points <code>from</code> (inclusive) to
+	 * <code>to</code> (exclusive) to the given sums.
+	 *
+	 * @param row A buffer for one row of the Jacobian matrix.
+	 * @param partialSums Beta followed by the lower triangle of alpha.
 	 */
-	protected double calculateAlphaElement(final int row, final int col) {
-		double result = 0;
-		for (int i = 0; i < yDataPoints.length; i++) {
-			result += weights[i] * function.getPartialDerivate(xDataPoints[i],
-				parameters, row) * function.getPartialDerivate(xDataPoints[i],
-					parameters, col);
+	private void accumulateAlphaAndBeta(final int from, final int to,
+		final double[] row, final double[] partialSums)
+	{
+		final int n = parameters.length;
+		for (int i = from; i < to; i++) {
+			final double y = function.getYAndPartialDerivates(xDataPoints[i],
+				parameters, row);
+			final double weightedDy = weights[i] * (yDataPoints[i] - y);
+			int index = n;
+			for (int j = 0; j < n; j++) {
+				final double weightedDerivate = weights[i] * row[j];
+				partialSums[j] += weightedDy * row[j];
+				for (int k = 0; k <= j; k++) {
+					partialSums[index++] += weightedDerivate * row[k];
+				}
+			}
 		}
-		// Marquardt's lambda addition
-		if (row == col) result *= (1 + lambda);
-		return result;
 	}
 
-	/** Calculates all elements for <code>this.beta</code>. */
-	protected void updateBeta() {
-		for (int i = 0; i < parameters.length; i++) {
-			beta[i] = calculateBetaElement(i);
-		}
+	/**
+	 * @return The number of chunks the data points are split into. This is 1 if
+	 *         no {@link ExecutorService} is used.
+	 */
+	private int getChunkCount() {
+		if (executorService == null) return 1;
+		return Math.max(1, (yDataPoints.length + chunkSize - 1) / chunkSize);
 	}
 
 	/**
-	 * @return An calculated element for the beta-matrix. NOTE: Does not change
-	 *         the value of beta-matrix.
+	 * Runs all tasks with the {@link ExecutorService} and waits for the results.
+	 *
+	 * @return The results in the same order as the tasks.
 	 */
-	protected double calculateBetaElement(final int row) {
-		double result = 0;
-		for (int i = 0; i < yDataPoints.length; i++) {
-			result += weights[i] * (yDataPoints[i] - function.getY(xDataPoints[i],
-				parameters)) * function.getPartialDerivate(xDataPoints[i], parameters,
-					row);
+	private <T> List<T> invokeAll(final List<Callable<T>> tasks) {
+		final List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (final Future<T> future : executorService.invokeAll(tasks)) {
+				results.add(future.get());
+			}
 		}
-		return result;
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e
+				.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
 	}
 
 	/**
@@ -648,44 +993,72 @@ protected double[] checkWeights(final int length, final double[] weightsIn) {
 			damaged = allZero || illegalElement;
 		}
 		if (!damaged) return weightsOut;
-		System.out.println(
+		if (verbose) System.out.println(
 			"WARNING: weights were not well defined. All elements set to 1.");
 		Arrays.fill(weightsOut, 1);
 		return weightsOut;
 	}
 
 	/**
+	 * The covariance matrix is the inverse of alpha with lambda = 0. For a
+	 * {@link SolvableLMAMatrix} its columns are calculated by solving
+	 * alpha&sdot;x = e<sub>i</sub> for each unit vector; the matrix is
+	 * decomposed only once. Any other {@link LMAMatrix} is inverted. Afterwards
+	 * the previous elements of alpha are restored.
+	 *
 	 * @return The covariance matrix of the fit parameters.
-	 * @throws LMAMatrix.InvertException if the inversion of alpha fails. Note
-	 *           that even if the fit does NOT throw the invert exception, this
-	 *           method can still do it, because here alpha is inverted with
-	 *           lambda = 0.
+	 * @throws LMAMatrix.InvertException if alpha is singular. Note that even if
+	 *           the fit does NOT throw the invert exception, this method can
+	 *           still do it, because here alpha is used with lambda = 0.
 	 */
 	public double[][] getCovarianceMatrixOfStandardErrorsInParameters()
 		throws LMAMatrix.InvertException
 	{
-		final double[][] result = new double[parameters.length][parameters.length];
+		final int n = parameters.length;
+		final double[][] previousAlpha = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				previousAlpha[i][j] = alpha.getElement(i, j);
+			}
+		}
+		final double[][] result = new double[n][n];
+		final double[] unitVector = new double[n];
+		final double[] column = new double[n];
 		final double oldLambda = lambda;
 		lambda = 0;
-		updateAlpha();
 		try {
-			alpha.invert();
+			updateAlpha();
+			if (alpha instanceof SolvableLMAMatrix) {
+				for (int j = 0; j < n; j++) {
+					Arrays.fill(unitVector, 0);
+					unitVector[j] = 1;
+					((SolvableLMAMatrix) alpha).solve(unitVector, column);
+					for (int i = 0; i < n; i++) {
+						result[i][j] = column[i];
+					}
+				}
+			}
+			else {
+				alpha.invert();
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < n; j++) {
+						result[i][j] = alpha.getElement(i, j);
+					}
+				}
+			}
 		}
 		catch (final LMAMatrix.InvertException e) {
-			// restore alpha just in case
-			lambda = oldLambda;
-			updateAlpha();
 			throw new LMAMatrix.InvertException(
 				"Inverting alpha failed with lambda = 0\n" + e.getMessage());
 		}
-		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < result.length; j++) {
-				result[i][j] = alpha.getElement(i, j);
+		finally {
+			lambda = oldLambda;
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					alpha.setElement(i, j, previousAlpha[i][j]);
+				}
 			}
 		}
-		alpha.invert();
-		lambda = oldLambda;
-		updateAlpha();
 		return result;
 	}
 
@@ -34,6 +34,30 @@ public abstract class LMAFunction {
 	public abstract double getPartialDerivate(double x, double[] a,
 		int parameterIndex);
 
+	/**
+	 * Calculates the <i>y</i>-value and all partial derivates in a single call.
+	 * The default implementation calls <code>getY()</code> once and
+	 * <code>getPartialDerivate()</code> for each parameter. Override it if the
+	 * function value and its derivates share intermediate results.
+	 *
+	 * @param x The <i>x</i>-value for which the values are calculated.
+	 * @param a The fitting parameters.
+	 * @param partialDerivates An array of the same length as <code>a</code>. It
+	 *          is filled with the partial derivates with respect to each
+	 *          parameter.
+	 * @return The <i>y</i>-value of the function.
+	 * @see LMAMultiDimFunction#getYAndPartialDerivates(double[], double[],
+	 *      double[])
+	 */
+	public double getYAndPartialDerivates(final double x, final double[] a,
+		final double[] partialDerivates)
+	{
+		for (int i = 0; i < partialDerivates.length; i++) {
+			partialDerivates[i] = getPartialDerivate(x, a, i);
+		}
+		return getY(x, a);
+	}
+
 	/**
 	 * @return Calculated function values with the given x- and parameter-values.
 	 */
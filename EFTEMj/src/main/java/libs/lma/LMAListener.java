@@ -0,0 +1,39 @@
+package libs.lma;
+
+/**
+ * Implement this to observe the progress of an {@link LMA} fit. Use
+ * {@link LMA#setListener(LMAListener)} to attach the listener. No time is
+ * measured if there is no listener.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * @see LMAStatistics
+ */
+public interface LMAListener {
+
+	/**
+	 * Called at the end of each iteration. The fields
+	 * <code>iterationCount</code>, <code>chi2</code>,
+	 * <code>incrementedChi2</code> and <code>lambda</code> of the given
+	 * {@link LMA} already contain the values of the finished iteration.
+	 *
+	 * @param lma The running fit.
+	 * @param stepAccepted <code>true</code> if the parameters have been updated
+	 *          and lambda has been decreased, <code>false</code> if lambda has
+	 *          been increased.
+	 * @param phaseNanos The time in nanoseconds spent at each phase of the
+	 *          iteration. Use {@link LMA#PHASE_ALPHA_BETA},
+	 *          {@link LMA#PHASE_SOLVE} and {@link LMA#PHASE_CHI2} as index. The
+	 *          array is reused at the next iteration.
+	 */
+	public void iterationFinished(LMA lma, boolean stepAccepted,
+		long[] phaseNanos);
+
+	/**
+	 * Called when the fit has ended.
+	 *
+	 * @param lma The finished fit.
+	 * @param successful <code>false</code> if the fit has been stopped by an
+	 *          exception.
+	 */
+	public void fitFinished(LMA lma, boolean successful);
+}
@@ -38,6 +38,45 @@ public abstract class LMAMultiDimFunction {
 	public abstract double getPartialDerivate(double x[], double[] a,
 		int parameterIndex);
 
+	/**
+	 * Calculates the <i>y</i>-value and all partial derivates (one row of the
+	 * Jacobian matrix) in a single call. The fit algorithm uses this method to
+	 * build alpha and beta with one pass over the data points.
+	 * <p>
+	 * The default implementation calls <code>getY()</code> once and
+	 * <code>getPartialDerivate()</code> for each parameter. Override it if the
+	 * function value and its derivates share intermediate results.
+	 *
+	 * @param x The <i>x</i>-values for which the values are calculated.
+	 * @param a The fitting parameters.
+	 * @param partialDerivates An array of the same length as <code>a</code>. It
+	 *          is filled with the partial derivates with respect to each
+	 *          parameter.
+	 * @return The <i>y</i>-value of the function.
+	 */
+	public double getYAndPartialDerivates(final double[] x, final double[] a,
+		final double[] partialDerivates)
+	{
+		for (int i = 0; i < partialDerivates.length; i++) {
+			partialDerivates[i] = getPartialDerivate(x, a, i);
+		}
+		return getY(x, a);
+	}
+
+	/**
+	 * A function is linear if it is a linear combination of the fitting
+	 * parameters. Then the partial derivates do not depend on <code>a</code> and
+	 * {@link LMA} can solve the normal equations directly instead of iterating.
+	 * <p>
+	 * The default implementation returns <code>false</code>. Override it only if
+	 * the function is linear in <b>all</b> parameters.
+	 *
+	 * @return <code>true</code> if the function is linear in its parameters.
+	 */
+	public boolean isLinear() {
+		return false;
+	}
+
 	/**
 	 * A convenience method for the one dimensional case. Not used by the fit
 	 * algorithm.
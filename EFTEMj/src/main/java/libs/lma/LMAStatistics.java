@@ -0,0 +1,233 @@
+package libs.lma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An {@link LMAListener} that collects aggregate statistics of any number of
+ * fits. One instance can be attached to several {@link LMA} instances that are
+ * running at different {@link Thread}s. The values of a running fit are
+ * collected per {@link Thread} and added to the statistics when the fit has
+ * finished.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class LMAStatistics implements LMAListener {
+
+	/**
+	 * If <code>true</code>, the chi2 values of each iteration are stored for
+	 * each fit.
+	 */
+	private final boolean keepTrajectories;
+	/**
+	 * The values of the fit that is running at the current {@link Thread}.
+	 */
+	private final ThreadLocal<FitRecord> currentFit =
+		new ThreadLocal<FitRecord>()
+	{
+
+			@Override
+			protected FitRecord initialValue() {
+				return new FitRecord();
+			}
+		};
+
+	private int fits;
+	private int failedFits;
+	private long iterations;
+	private int minIterations = Integer.MAX_VALUE;
+	private int maxIterations;
+	private long acceptedSteps;
+	private long rejectedSteps;
+	private final long[] phaseNanos = new long[3];
+	private final List<double[]> trajectories = new ArrayList<double[]>();
+
+	/**
+	 * Creates an {@link LMAStatistics} that does not store the chi2 values of
+	 * each iteration.
+	 */
+	public LMAStatistics() {
+		this(false);
+	}
+
+	/**
+	 * @param keepTrajectories If <code>true</code>, the chi2 values of each
+	 *          iteration are stored for each fit. Use this only for a small
+	 *          number of fits.
+	 */
+	public LMAStatistics(final boolean keepTrajectories) {
+		this.keepTrajectories = keepTrajectories;
+	}
+
+	@Override
+	public void iterationFinished(final LMA lma, final boolean stepAccepted,
+		final long[] nanos)
+	{
+		final FitRecord record = currentFit.get();
+		if (stepAccepted) {
+			record.acceptedSteps++;
+		}
+		else {
+			record.rejectedSteps++;
+		}
+		for (int i = 0; i < record.phaseNanos.length; i++) {
+			record.phaseNanos[i] += nanos[i];
+		}
+		if (keepTrajectories) {
+			record.addChi2(lma.chi2);
+		}
+	}
+
+	@Override
+	public void fitFinished(final LMA lma, final boolean successful) {
+		final FitRecord record = currentFit.get();
+		synchronized (this) {
+			fits++;
+			if (!successful) failedFits++;
+			iterations += lma.iterationCount;
+			minIterations = Math.min(minIterations, lma.iterationCount);
+			maxIterations = Math.max(maxIterations, lma.iterationCount);
+			acceptedSteps += record.acceptedSteps;
+			rejectedSteps += record.rejectedSteps;
+			for (int i = 0; i < phaseNanos.length; i++) {
+				phaseNanos[i] += record.phaseNanos[i];
+			}
+			if (keepTrajectories) {
+				trajectories.add(record.getTrajectory());
+			}
+		}
+		record.reset();
+	}
+
+	/**
+	 * Removes all collected values.
+	 */
+	public synchronized void reset() {
+		fits = 0;
+		failedFits = 0;
+		iterations = 0;
+		minIterations = Integer.MAX_VALUE;
+		maxIterations = 0;
+		acceptedSteps = 0;
+		rejectedSteps = 0;
+		Arrays.fill(phaseNanos, 0);
+		trajectories.clear();
+	}
+
+	/**
+	 * @return The number of finished fits.
+	 */
+	public synchronized int getFits() {
+		return fits;
+	}
+
+	/**
+	 * @return The number of fits that have been stopped by an exception.
+	 */
+	public synchronized int getFailedFits() {
+		return failedFits;
+	}
+
+	/**
+	 * @return The mean number of iterations per fit.
+	 */
+	public synchronized double getMeanIterations() {
+		return fits == 0 ? 0 : (double) iterations / fits;
+	}
+
+	/**
+	 * @return The lowest number of iterations of a single fit.
+	 */
+	public synchronized int getMinIterations() {
+		return fits == 0 ? 0 : minIterations;
+	}
+
+	/**
+	 * @return The highest number of iterations of a single fit.
+	 */
+	public synchronized int getMaxIterations() {
+		return maxIterations;
+	}
+
+	/**
+	 * @return The number of iterations that have decreased lambda.
+	 */
+	public synchronized long getAcceptedSteps() {
+		return acceptedSteps;
+	}
+
+	/**
+	 * @return The number of iterations that have increased lambda.
+	 */
+	public synchronized long getRejectedSteps() {
+		return rejectedSteps;
+	}
+
+	/**
+	 * @param phase One of {@link LMA#PHASE_ALPHA_BETA}, {@link LMA#PHASE_SOLVE}
+	 *          and {@link LMA#PHASE_CHI2}.
+	 * @return The total time in nanoseconds spent at the given phase.
+	 */
+	public synchronized long getPhaseNanos(final int phase) {
+		return phaseNanos[phase];
+	}
+
+	/**
+	 * @return The chi2 values of each iteration for each fit. The list is empty
+	 *         if the trajectories are not kept.
+	 */
+	public synchronized List<double[]> getTrajectories() {
+		return new ArrayList<double[]>(trajectories);
+	}
+
+	/**
+	 * @return A short report of all collected values.
+	 */
+	public synchronized String getSummary() {
+		return String.format(Locale.UK,
+			"LMA fits: %d (%d failed)%n" +
+				"Iterations: mean %.2f, min %d, max %d%n" +
+				"Lambda: %d times decreased, %d times increased%n" +
+				"Time [ms]: alpha & beta %.3f, solve %.3f, chi2 %.3f", fits,
+			failedFits, getMeanIterations(), getMinIterations(), maxIterations,
+			acceptedSteps, rejectedSteps, phaseNanos[LMA.PHASE_ALPHA_BETA] / 1e6,
+			phaseNanos[LMA.PHASE_SOLVE] / 1e6, phaseNanos[LMA.PHASE_CHI2] / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+
+	/**
+	 * The values of a single fit.
+	 */
+	private static class FitRecord {
+
+		private long acceptedSteps;
+		private long rejectedSteps;
+		private final long[] phaseNanos = new long[3];
+		private double[] trajectory = new double[16];
+		private int trajectoryLength;
+
+		private void addChi2(final double chi2) {
+			if (trajectoryLength == trajectory.length) {
+				trajectory = Arrays.copyOf(trajectory, 2 * trajectory.length);
+			}
+			trajectory[trajectoryLength++] = chi2;
+		}
+
+		private double[] getTrajectory() {
+			return Arrays.copyOf(trajectory, trajectoryLength);
+		}
+
+		private void reset() {
+			acceptedSteps = 0;
+			rejectedSteps = 0;
+			Arrays.fill(phaseNanos, 0);
+			trajectoryLength = 0;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package libs.lma;
+
+/**
+ * An {@link LMAMatrix} that solves the linear equations for the parameter
+ * increments without inverting the matrix. {@link LMA} uses {@link #solve} if
+ * alpha implements this interface; other implementations of
+ * {@link LMAMatrix} are inverted and multiplied as before.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public interface SolvableLMAMatrix extends LMAMatrix {
+
+	/**
+	 * Solves the linear equations for parameter increments
+	 * (<code>this * result = vector</code>). The matrix elements are not
+	 * changed. An implementation may keep its decomposition for further calls
+	 * until an element is set.
+	 *
+	 * @param vector The right hand side of the equations.
+	 * @param result The solution will be put here.
+	 * @throws InvertException if the matrix is singular.
+	 */
+	public void solve(double[] vector, double[] result) throws InvertException;
+}
@@ -0,0 +1,242 @@
+package libs.lma.implementations;
+
+import java.util.Arrays;
+
+import libs.lma.LMAMatrix;
+import libs.lma.SolvableLMAMatrix;
+
+/**
+ * An {@link LMAMatrix} that solves the normal equations of the LMA without
+ * calculating an inverse matrix. As alpha is symmetric and usually positive
+ * definite, a Cholesky decomposition is used. If the decomposition fails (e.g.
+ * because of rounding errors), an LU decomposition with partial pivoting is
+ * used instead.
+ * <p>
+ * All buffers are allocated by the constructor and reused at each iteration of
+ * the fit. Only {@link #invert()} allocates an additional buffer at its first
+ * call. The decomposition is kept until an element is changed, so solving the
+ * equations for several vectors decomposes the matrix only once.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class CholeskyMatrix implements SolvableLMAMatrix {
+
+	/**
+	 * The number of rows and columns.
+	 */
+	private final int size;
+	/**
+	 * The elements of the matrix.
+	 */
+	private final double[][] elements;
+	/**
+	 * The result of the last decomposition. For the Cholesky decomposition only
+	 * the lower triangle is used.
+	 */
+	private final double[][] factor;
+	/**
+	 * The row permutation of the LU decomposition.
+	 */
+	private final int[] pivot;
+	/**
+	 * Used for forward substitution.
+	 */
+	private final double[] temp;
+	/**
+	 * Used by {@link #invert()} to store the columns of the inverse matrix.
+	 */
+	private double[][] inverse;
+	/**
+	 * <code>true</code> if the last Cholesky decomposition has failed and
+	 * <code>factor</code> contains an LU decomposition.
+	 */
+	private boolean isLU;
+	/**
+	 * <code>true</code> if <code>factor</code> contains the decomposition of
+	 * the current elements.
+	 */
+	private boolean decomposed;
+
+	/**
+	 * @param rows The number of rows.
+	 * @param cols The number of columns. Must be equal to <code>rows</code>.
+	 */
+	public CholeskyMatrix(final int rows, final int cols) {
+		if (rows != cols) throw new IllegalArgumentException(
+			"The matrix must be square.");
+		size = rows;
+		elements = new double[size][size];
+		factor = new double[size][size];
+		pivot = new int[size];
+		temp = new double[size];
+	}
+
+	@Override
+	public void solve(final double[] vector, final double[] result)
+		throws InvertException
+	{
+		if (!decomposed) decompose();
+		substitute(vector, result);
+	}
+
+	@Override
+	public void invert() throws InvertException {
+		decompose();
+		if (inverse == null) {
+			inverse = new double[size][size];
+		}
+		final double[] unitVector = new double[size];
+		for (int col = 0; col < size; col++) {
+			Arrays.fill(unitVector, 0);
+			unitVector[col] = 1;
+			substitute(unitVector, inverse[col]);
+		}
+		for (int row = 0; row < size; row++) {
+			for (int col = 0; col < size; col++) {
+				elements[row][col] = inverse[col][row];
+			}
+		}
+		decomposed = false;
+	}
+
+	@Override
+	public void setElement(final int row, final int col, final double value) {
+		elements[row][col] = value;
+		decomposed = false;
+	}
+
+	@Override
+	public double getElement(final int row, final int col) {
+		return elements[row][col];
+	}
+
+	@Override
+	public void multiply(final double[] vector, final double[] result) {
+		for (int i = 0; i < size; i++) {
+			double sum = 0;
+			for (int j = 0; j < size; j++) {
+				sum += elements[i][j] * vector[j];
+			}
+			result[i] = sum;
+		}
+	}
+
+	/**
+	 * Decomposes the matrix into <code>factor</code>. The Cholesky
+	 * decomposition is tried first.
+	 *
+	 * @throws InvertException if the matrix is singular.
+	 */
+	private void decompose() throws InvertException {
+		decomposed = false;
+		isLU = !decomposeCholesky();
+		if (isLU) {
+			decomposeLU();
+		}
+		decomposed = true;
+	}
+
+	/**
+	 * Calculates the lower triangular matrix L with A = L&sdot;L<sup>T</sup>.
+	 * Only the lower triangle of the matrix elements is read.
+	 *
+	 * @return <code>false</code> if the matrix is not positive definite.
+	 */
+	private boolean decomposeCholesky() {
+		for (int j = 0; j < size; j++) {
+			final double[] rowJ = factor[j];
+			double diagonal = elements[j][j];
+			for (int k = 0; k < j; k++) {
+				diagonal -= rowJ[k] * rowJ[k];
+			}
+			// This check includes NaN values.
+			if (!(diagonal > 0)) return false;
+			diagonal = Math.sqrt(diagonal);
+			rowJ[j] = diagonal;
+			for (int i = j + 1; i < size; i++) {
+				final double[] rowI = factor[i];
+				double sum = elements[i][j];
+				for (int k = 0; k < j; k++) {
+					sum -= rowI[k] * rowJ[k];
+				}
+				rowI[j] = sum / diagonal;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates the LU decomposition with partial pivoting.
+	 *
+	 * @throws InvertException if the matrix is singular.
+	 */
+	private void decomposeLU() throws InvertException {
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(elements[i], 0, factor[i], 0, size);
+			pivot[i] = i;
+		}
+		for (int k = 0; k < size; k++) {
+			int p = k;
+			double max = Math.abs(factor[k][k]);
+			for (int i = k + 1; i < size; i++) {
+				if (Math.abs(factor[i][k]) > max) {
+					max = Math.abs(factor[i][k]);
+					p = i;
+				}
+			}
+			if (!(max > 0)) throw new InvertException("Matrix is singular:\n" +
+				Arrays.deepToString(elements));
+			if (p != k) {
+				final double[] row = factor[p];
+				factor[p] = factor[k];
+				factor[k] = row;
+				final int index = pivot[p];
+				pivot[p] = pivot[k];
+				pivot[k] = index;
+			}
+			final double[] rowK = factor[k];
+			for (int i = k + 1; i < size; i++) {
+				final double[] rowI = factor[i];
+				rowI[k] /= rowK[k];
+				for (int j = k + 1; j < size; j++) {
+					rowI[j] -= rowI[k] * rowK[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Solves the equations by forward and back substitution, using the last
+	 * decomposition.
+	 *
+	 * @param vector The right hand side.
+	 * @param result The solution is written to this array.
+	 */
+	private void substitute(final double[] vector, final double[] result) {
+		for (int i = 0; i < size; i++) {
+			final double[] row = factor[i];
+			double sum = isLU ? vector[pivot[i]] : vector[i];
+			for (int k = 0; k < i; k++) {
+				sum -= row[k] * temp[k];
+			}
+			temp[i] = isLU ? sum : sum / row[i];
+		}
+		for (int i = size - 1; i >= 0; i--) {
+			double sum = temp[i];
+			if (isLU) {
+				final double[] row = factor[i];
+				for (int k = i + 1; k < size; k++) {
+					sum -= row[k] * result[k];
+				}
+				result[i] = sum / row[i];
+			}
+			else {
+				// L^T is not stored, so the lower triangle is read column-wise.
+				for (int k = i + 1; k < size; k++) {
+					sum -= factor[k][i] * result[k];
+				}
+				result[i] = sum / factor[i][i];
+			}
+		}
+	}
+}
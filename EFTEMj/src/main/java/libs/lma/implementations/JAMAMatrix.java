@@ -7,8 +7,9 @@
 
 import Jama.Matrix;
 import libs.lma.LMAMatrix;
+import libs.lma.SolvableLMAMatrix;
 
-public class JAMAMatrix extends Matrix implements LMAMatrix {
+public class JAMAMatrix extends Matrix implements SolvableLMAMatrix {
 
 	private static final long serialVersionUID = -8925816623803983503L;
 
@@ -27,15 +28,36 @@ public void invert() throws LMAMatrix.InvertException {
 			setMatrix(0, this.getRowDimension() - 1, 0, getColumnDimension() - 1, m);
 		}
 		catch (final RuntimeException e) {
-			final StringWriter s = new StringWriter();
-			final PrintWriter p = new PrintWriter(s);
-			p.println(e.getMessage());
-			p.println("Inversion failed for matrix:");
-			this.print(p, NumberFormat.getInstance(), 5);
-			throw new LMAMatrix.InvertException(s.toString());
+			throw createInvertException(e);
 		}
 	}
 
+	@Override
+	public void solve(final double[] vector, final double[] result)
+		throws LMAMatrix.InvertException
+	{
+		try {
+			final Matrix x = solve(new Matrix(vector, vector.length));
+			for (int i = 0; i < result.length; i++) {
+				result[i] = x.get(i, 0);
+			}
+		}
+		catch (final RuntimeException e) {
+			throw createInvertException(e);
+		}
+	}
+
+	private LMAMatrix.InvertException createInvertException(
+		final RuntimeException e)
+	{
+		final StringWriter s = new StringWriter();
+		final PrintWriter p = new PrintWriter(s);
+		p.println(e.getMessage());
+		p.println("Inversion failed for matrix:");
+		this.print(p, NumberFormat.getInstance(), 5);
+		return new LMAMatrix.InvertException(s.toString());
+	}
+
 	@Override
 	public void setElement(final int row, final int col, final double value) {
 		set(row, col, value);
@@ -182,10 +182,18 @@ public double getPartialDerivate(final double[] x, final double[] a,
 		return poly.getPartialDerivate(x, a, parameterIndex);
 	}
 
+	@Override
+	public double getYAndPartialDerivates(final double[] x, final double[] a,
+		final double[] partialDerivates)
+	{
+		return poly.getYAndPartialDerivates(x, a, partialDerivates);
+	}
+
 	public static void main() {
 		final LMAPolyTest func = new LMAPolyTest();
 		final double[] a_fit = { 1., 1., 1., 1., 1., 1., 1., 1., 1. };
 		final LMA lma = new LMA(func, a_fit, func.values());
+		lma.verbose = true;
 		lma.fit();
 		final double[] a_gnuplot = { 185.215, 0.0114085, -0.000228872, -0.0141436,
 			5.04408e-006, -3.21174e-008, 8.14949e-008, 1.25416e-009, -2.78295e-012 };
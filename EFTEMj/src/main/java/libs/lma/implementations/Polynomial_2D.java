@@ -67,13 +67,30 @@ public double getParam(final int i, final int j) {
 	 * @return the value y(x1,x2).
 	 */
 	public double val(final double[] x) {
+		return val(x, params);
+	}
+
+	/**
+	 * The value is calculated from the given parameters without modifying the
+	 * state of this object. Therefore this method can be used by several
+	 * {@link Thread}s at the same time.
+	 *
+	 * @param x is the coordinate (x1,x2).
+	 * @param a is an array that contains all the parameters.
+	 * @return the value y(x1,x2).
+	 */
+	protected double val(final double[] x, final double[] a) {
 		assert x.length == 2;
+		assert a.length == (m + 1) * (n + 1);
 		double value = 0.;
+		double x1Pow = 1.;
 		for (int i = 0; i <= m; i++) {
+			double monomial = x1Pow;
 			for (int j = 0; j <= n; j++) {
-				value += params[(n + 1) * i + j] * Math.pow(x[0], i) * Math.pow(x[1],
-					j);
+				value += a[(n + 1) * i + j] * monomial;
+				monomial *= x[1];
 			}
+			x1Pow *= x[0];
 		}
 		return value;
 	}
@@ -121,22 +138,54 @@ public double[] grad(final double[] x) {
 		return grads;
 	}
 
-	private void updateParams(final double[] paramsNew) {
-		assert params.length == paramsNew.length;
-		params = Arrays.copyOf(paramsNew, paramsNew.length);
+	/**
+	 * A polynomial is linear in its coefficients.
+	 */
+	@Override
+	public boolean isLinear() {
+		return true;
 	}
 
+	/**
+	 * The given parameters are not copied to this object. This makes it possible
+	 * to use one instance with a parallel {@link libs.lma.LMA}.
+	 */
 	@Override
 	public double getY(final double[] x, final double[] a) {
-		updateParams(a);
-		return val(x);
+		return val(x, a);
 	}
 
+	/**
+	 * The partial derivate does not depend on the parameters.
+	 */
 	@Override
 	public double getPartialDerivate(final double[] x, final double[] a,
 		final int parameterIndex)
 	{
-		updateParams(a);
 		return grad(x, parameterIndex);
 	}
+
+	/**
+	 * The partial derivate with respect to a<sub>ij</sub> is the monomial
+	 * x1<sup>i</sup>&sdot;x2<sup>j</sup>. All monomials are calculated by
+	 * successive multiplication and reused to get the value of the polynomial.
+	 */
+	@Override
+	public double getYAndPartialDerivates(final double[] x, final double[] a,
+		final double[] partialDerivates)
+	{
+		double value = 0.;
+		double x1Pow = 1.;
+		for (int i = 0; i <= m; i++) {
+			double monomial = x1Pow;
+			for (int j = 0; j <= n; j++) {
+				final int index = (n + 1) * i + j;
+				partialDerivates[index] = monomial;
+				value += a[index] * monomial;
+				monomial *= x[1];
+			}
+			x1Pow *= x[0];
+		}
+		return value;
+	}
 }
@@ -0,0 +1,255 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sr_eels;
+
+import java.util.Arrays;
+
+import elemental_map.ElementalMapping;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import elemental_map.PowerLawFit;
+import eftemj.EFTEMj_ComputePool;
+import eftemj.EFTEMj_Progress;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/**
+ * <p>
+ * Subtracts the power law background of an ionisation edge from a corrected
+ * SR-EELS image. Each lateral position is a spectrum. The power law is fitted to
+ * the pre-edge window by one of the methods of {@link ElementalMapping} and
+ * subtracted from all channels above the start of the window.
+ * </p>
+ * <p>
+ * The class does not use any windows, so it can process the result of
+ * {@link SR_EELS_CorrectionPlugin#correctImage} directly. The lateral positions
+ * are processed in parallel.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class SR_EELS_BackgroundSubtraction {
+
+	private final FloatProcessor input;
+	/**
+	 * The energy loss of each channel.
+	 */
+	private final double[] energyLosses;
+	/**
+	 * <code>true</code> if the energy loss axis is the y-axis.
+	 */
+	private final boolean energyOnYAxis;
+	private final AVAILABLE_METHODS method;
+	private final double epsilon;
+	/**
+	 * The first and the last channel of the pre-edge window.
+	 */
+	private int preEdgeStart;
+	private int preEdgeEnd;
+	private FloatProcessor netSignal;
+	private float[] rProfile;
+	private float[] aProfile;
+	private int[] errorCodes;
+
+	/**
+	 * @param spectrumImage A corrected SR-EELS image.
+	 * @param energyLosses The energy loss of each channel (see
+	 *          {@link #getEnergyLosses(Calibration, int, boolean)}).
+	 * @param energyOnYAxis <code>true</code> if the energy loss axis is the
+	 *          y-axis.
+	 * @param method The method used for fitting the power law.
+	 * @param epsilon The break condition for iterative methods.
+	 */
+	public SR_EELS_BackgroundSubtraction(final FloatProcessor spectrumImage,
+		final double[] energyLosses, final boolean energyOnYAxis,
+		final AVAILABLE_METHODS method, final double epsilon)
+	{
+		final int channels = energyOnYAxis ? spectrumImage.getHeight()
+			: spectrumImage.getWidth();
+		if (energyLosses.length != channels) {
+			throw new IllegalArgumentException("There are " + channels +
+				" channels, but " + energyLosses.length + " energy losses.");
+		}
+		this.input = spectrumImage;
+		this.energyLosses = energyLosses;
+		this.energyOnYAxis = energyOnYAxis;
+		this.method = method;
+		this.epsilon = epsilon;
+	}
+
+	/**
+	 * @param cal The {@link Calibration} of the SR-EELS image, e.g. set by
+	 *          {@link SR_EELS_DispersionCalibrationPlugin}.
+	 * @param channels The number of channels along the energy loss axis.
+	 * @param energyOnYAxis <code>true</code> if the energy loss axis is the
+	 *          y-axis.
+	 * @return The calibrated energy loss of each channel.
+	 */
+	public static double[] getEnergyLosses(final Calibration cal,
+		final int channels, final boolean energyOnYAxis)
+	{
+		final double[] energyLosses = new double[channels];
+		for (int i = 0; i < channels; i++) {
+			energyLosses[i] = energyOnYAxis ? cal.getY(i) : cal.getX(i);
+		}
+		return energyLosses;
+	}
+
+	/**
+	 * Selects all channels with an energy loss between start and end as
+	 * pre-edge window.
+	 *
+	 * @param start The lowest energy loss of the window.
+	 * @param end The highest energy loss of the window.
+	 */
+	public void setPreEdgeWindow(final double start, final double end) {
+		preEdgeStart = -1;
+		preEdgeEnd = -1;
+		for (int i = 0; i < energyLosses.length; i++) {
+			if (energyLosses[i] >= start && energyLosses[i] <= end) {
+				if (preEdgeStart == -1) preEdgeStart = i;
+				preEdgeEnd = i;
+			}
+		}
+		if (preEdgeStart == -1 || preEdgeEnd - preEdgeStart < 1) {
+			throw new IllegalArgumentException(
+				"The pre-edge window has to contain at least 2 channels.");
+		}
+		if (energyLosses[preEdgeStart] <= 0) {
+			throw new IllegalArgumentException(
+				"The pre-edge window has to contain positive energy losses only.");
+		}
+	}
+
+	/**
+	 * Fits the background of all lateral positions in parallel.
+	 */
+	public void run() {
+		if (preEdgeEnd <= preEdgeStart) {
+			throw new IllegalStateException("The pre-edge window is not set.");
+		}
+		final int positions = energyOnYAxis ? input.getWidth() : input
+			.getHeight();
+		netSignal = new FloatProcessor(input.getWidth(), input.getHeight());
+		Arrays.fill((float[]) netSignal.getPixels(), Float.NaN);
+		rProfile = new float[positions];
+		aProfile = new float[positions];
+		errorCodes = new int[positions];
+		final double[] windowEnergyLosses = Arrays.copyOfRange(energyLosses,
+			preEdgeStart, preEdgeEnd + 1);
+		final EFTEMj_Progress progress = EFTEMj_Progress.start(
+			"SR-EELS background subtraction", positions);
+		try {
+			EFTEMj_ComputePool.forEach(positions, new EFTEMj_ComputePool.IndexTask() {
+
+				@Override
+				public void run(final int position) {
+					if (progress.isCancelled()) return;
+					subtractBackground(position, windowEnergyLosses);
+					progress.step();
+				}
+			});
+		}
+		finally {
+			progress.finish();
+		}
+	}
+
+	/**
+	 * Fits the pre-edge window of one spectrum and writes the net signal.
+	 *
+	 * @param position The lateral position.
+	 * @param windowEnergyLosses The energy losses of the pre-edge window.
+	 */
+	private void subtractBackground(final int position,
+		final double[] windowEnergyLosses)
+	{
+		final double[] counts = new double[windowEnergyLosses.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = getCounts(position, preEdgeStart + i);
+		}
+		final PowerLawFit fit = ElementalMapping.createPowerLawFit(method,
+			windowEnergyLosses, counts, epsilon);
+		fit.doFit();
+		final double r = fit.getR();
+		final double a = fit.getA();
+		errorCodes[position] = fit.getErrorCode();
+		if (fit.getErrorCode() != PowerLawFit.ERROR_NONE || Double.isNaN(r) ||
+			Double.isInfinite(a))
+		{
+			rProfile[position] = Float.NaN;
+			aProfile[position] = Float.NaN;
+			return;
+		}
+		rProfile[position] = (float) r;
+		aProfile[position] = (float) a;
+		final float[] pixels = (float[]) netSignal.getPixels();
+		for (int channel = preEdgeStart; channel < energyLosses.length; channel++) {
+			final double background = a * Math.pow(energyLosses[channel], -r);
+			pixels[getIndex(position, channel)] = (float) (getCounts(position,
+				channel) - background);
+		}
+	}
+
+	private float getCounts(final int position, final int channel) {
+		return input.getf(getIndex(position, channel));
+	}
+
+	private int getIndex(final int position, final int channel) {
+		if (energyOnYAxis) return channel * input.getWidth() + position;
+		return position * input.getWidth() + channel;
+	}
+
+	/**
+	 * @return The spectrum image without the background. Channels below the
+	 *         pre-edge window and failed fits are NaN.
+	 */
+	public FloatProcessor getNetSignal() {
+		return netSignal;
+	}
+
+	/**
+	 * @return The fitted r of each lateral position.
+	 */
+	public float[] getRProfile() {
+		return rProfile;
+	}
+
+	/**
+	 * @return The fitted a of each lateral position.
+	 */
+	public float[] getAProfile() {
+		return aProfile;
+	}
+
+	/**
+	 * @return The error code of each lateral position (see {@link PowerLawFit}).
+	 */
+	public int[] getErrorCodes() {
+		return errorCodes;
+	}
+}
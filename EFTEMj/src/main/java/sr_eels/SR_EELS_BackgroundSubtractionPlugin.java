@@ -0,0 +1,193 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package sr_eels;
+
+import elemental_map.ElementalMapping;
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import elemental_map.PowerLawFit;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Plot;
+import ij.measure.Calibration;
+import ij.plugin.filter.ExtendedPlugInFilter;
+import ij.plugin.filter.PlugInFilterRunner;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.util.Tools;
+import tools.StringManipulator;
+
+/**
+ * <p>
+ * This plugin subtracts the power law background of an ionisation edge from a
+ * corrected SR-EELS image. The energy loss axis has to be calibrated, e.g. by
+ * {@link SR_EELS_DispersionCalibrationPlugin}.
+ * </p>
+ * <p>
+ * The calculation is done by {@link SR_EELS_BackgroundSubtraction}. The net
+ * signal image and the profiles of r and a along the lateral axis are shown.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class SR_EELS_BackgroundSubtractionPlugin implements
+	ExtendedPlugInFilter
+{
+
+	private final int FLAGS = DOES_32 | NO_CHANGES | FINAL_PROCESSING;
+	private ImagePlus input;
+	private boolean energyOnYAxis;
+	private double[] energyLosses;
+	private double preEdgeStart;
+	private double preEdgeEnd;
+	private AVAILABLE_METHODS method;
+	private double epsilon;
+	private SR_EELS_BackgroundSubtraction subtraction;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#setup(java.lang.String, ij.ImagePlus)
+	 */
+	@Override
+	public int setup(final String arg, final ImagePlus imp) {
+		if (arg == "final") {
+			if (subtraction != null) showResults();
+			return NO_CHANGES | DONE;
+		}
+		input = imp;
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.PlugInFilter#run(ij.process.ImageProcessor)
+	 */
+	@Override
+	public void run(final ImageProcessor ip) {
+		IJ.showStatus("Subtracting the background...");
+		final SR_EELS_BackgroundSubtraction newSubtraction =
+			new SR_EELS_BackgroundSubtraction((FloatProcessor) ip, energyLosses,
+				energyOnYAxis, method, epsilon);
+		try {
+			newSubtraction.setPreEdgeWindow(preEdgeStart, preEdgeEnd);
+		}
+		catch (final IllegalArgumentException e) {
+			IJ.error("SR-EELS background subtraction", e.getMessage());
+			return;
+		}
+		newSubtraction.run();
+		subtraction = newSubtraction;
+	}
+
+	/**
+	 * Shows the net signal and the profiles of r and a.
+	 */
+	private void showResults() {
+		final String title = StringManipulator.removeExtensionFromTitle(input
+			.getTitle());
+		final ImagePlus netSignal = new ImagePlus(title + "_net", subtraction
+			.getNetSignal());
+		netSignal.setCalibration(input.getCalibration());
+		netSignal.show();
+		final double[] r = Tools.toDouble(subtraction.getRProfile());
+		final double[] positions = new double[r.length];
+		int failed = 0;
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = i;
+			if (subtraction.getErrorCodes()[i] != PowerLawFit.ERROR_NONE) failed++;
+		}
+		final Plot plotR = new Plot(title + " - profile of r", "lateral position",
+			"r");
+		plotR.add("line", positions, r);
+		plotR.show();
+		final Plot plotA = new Plot(title + " - profile of a", "lateral position",
+			"a");
+		plotA.add("line", positions, Tools.toDouble(subtraction.getAProfile()));
+		plotA.show();
+		if (failed > 0) {
+			IJ.log("SR-EELS background subtraction: The fit failed at " + failed +
+				" of " + positions.length + " lateral positions.");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#showDialog(ij.ImagePlus, java.lang.String,
+	 * ij.plugin.filter.PlugInFilterRunner)
+	 */
+	@Override
+	public int showDialog(final ImagePlus imp, final String command,
+		final PlugInFilterRunner pfr)
+	{
+		final Calibration cal = imp.getCalibration();
+		final boolean yCalibrated = "eV".equals(cal.getYUnit());
+		final boolean xCalibrated = "eV".equals(cal.getXUnit());
+		if (!xCalibrated && !yCalibrated) {
+			IJ.error(command,
+				"The energy loss axis is not calibrated.\nUse 'Calibrate dispersion' first.");
+			return NO_CHANGES | DONE;
+		}
+		final String[] axes = { "x-axis", "y-axis" };
+		final GenericDialog gd = new GenericDialog(command + " - set parameters",
+			IJ.getInstance());
+		gd.addChoice("Energy_axis:", axes, axes[yCalibrated ? 1 : 0]);
+		gd.addNumericField("Pre-edge start:", 0, 1, 7, "eV");
+		gd.addNumericField("Pre-edge end:", 0, 1, 7, "eV");
+		gd.addChoice("Method:", ElementalMapping.AVAILABLE_METHODS.toStringArray(),
+			AVAILABLE_METHODS.MLE.toString());
+		gd.addChoice("Epsilon:", ElementalMapping.AVAILABLE_EPSILONS
+			.toStringArray(), ElementalMapping.AVAILABLE_EPSILONS.toStringArray()[0]);
+		gd.setResizable(false);
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			IJ.showStatus("SR-EELS background subtraction has been canceled.");
+			return NO_CHANGES | DONE;
+		}
+		energyOnYAxis = gd.getNextChoiceIndex() == 1;
+		preEdgeStart = gd.getNextNumber();
+		preEdgeEnd = gd.getNextNumber();
+		method = AVAILABLE_METHODS.values()[gd.getNextChoiceIndex()];
+		epsilon = Double.parseDouble(gd.getNextChoice());
+		energyLosses = SR_EELS_BackgroundSubtraction.getEnergyLosses(cal,
+			energyOnYAxis ? imp.getHeight() : imp.getWidth(), energyOnYAxis);
+		return FLAGS;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ij.plugin.filter.ExtendedPlugInFilter#setNPasses(int)
+	 */
+	@Override
+	public void setNPasses(final int nPasses) {
+		// This method is not used.
+	}
+}
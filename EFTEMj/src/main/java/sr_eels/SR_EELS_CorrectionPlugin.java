@@ -38,10 +38,11 @@
 import java.util.LinkedList;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import eftemj.EFTEMj;
+import eftemj.EFTEMj_Debug;
+import eftemj.EFTEMj_ComputePool;
+import eftemj.EFTEMj_Progress;
 import gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImageJ;
@@ -52,6 +53,7 @@
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import libs.lma.LMA;
+import libs.lma.LMAStatistics;
 import tools.StringManipulator;
 
 /**
@@ -115,16 +117,6 @@ public class SR_EELS_CorrectionPlugin implements ExtendedPlugInFilter {
 	 * </p>
 	 */
 	private ImagePlus outputImage;
-	/**
-	 * This field indicates the progress. A static method is used to increase the
-	 * value by 1. It is necessary to use volatile because different
-	 * {@link Thread}s call the related method.
-	 */
-	private static volatile int progress;
-	/**
-	 * Number of steps until the correction is finished.
-	 */
-	private static int progressSteps;
 
 	/*
 	 * (non-Javadoc)
@@ -137,7 +129,7 @@ public int setup(final String arg, final ImagePlus imp) {
 		 * This will be called when the run method has finished.
 		 */
 		if (arg == "final") {
-			outputImage.show();
+			if (outputImage != null) outputImage.show();
 			return NO_CHANGES | DONE;
 		}
 		return FLAGS;
@@ -160,9 +152,16 @@ public void run(final ImageProcessor ip) {
 		 * algorithm (LMA) is used to fit functions to the discrete values.
 		 */
 		IJ.showStatus("Preparing correction...");
-		final SR_EELS_Polynomial_2D widthFunction = getFunctionWidth();
+		/*
+		 * The LMA uses the shared compute pool to calculate chi2, alpha and beta.
+		 */
+		final ExecutorService fitExecutorService = EFTEMj_ComputePool
+			.getExecutorService();
+		final SR_EELS_Polynomial_2D widthFunction = getFunctionWidth(
+			fitExecutorService);
+		final SR_EELS_Polynomial_2D borderFunction = getFunctionBorders(
+			fitExecutorService);
 		inputProcessor.setWidthFunction(widthFunction);
-		final SR_EELS_Polynomial_2D borderFunction = getFunctionBorders();
 		inputProcessor.setBorderFunction(borderFunction);
 		/*
 		 * TODO: Add the used correction methods to the image title.
@@ -177,46 +176,39 @@ public void run(final ImageProcessor ip) {
 		 * Each line of the image is a step that is visualise by the progress bar of
 		 * ImageJ.
 		 */
-		setupProgress(outputProcessor.getHeight());
-		if (EFTEMj.debugLevel == EFTEMj.DEBUG_FULL) {
-			for (int x2 = 0; x2 < outputProcessor.getHeight(); x2++) {
-				for (int x1 = 0; x1 < outputProcessor.getWidth(); x1++) {
-					final float intensity = intensityCorrection.getIntensity(x1, x2);
-					outputProcessor.setf(x1, x2, intensity);
-				}
-				updateProgress();
-			}
-		}
-		else {
-			/*
-			 * The ExecutorService is used to handle the multithreading. see
-			 * http://www.vogella.com/tutorials/JavaConcurrency/article.html#threadpools
-			 */
-			final ExecutorService executorService = Executors.newFixedThreadPool(
-				Runtime.getRuntime().availableProcessors());
-			for (int x2 = 0; x2 < outputProcessor.getHeight(); x2++) {
-				final int x2Temp = x2;
-				executorService.execute(new Runnable() {
+		final EFTEMj_Progress progress = EFTEMj_Progress.start("SR-EELS correction",
+			outputProcessor.getHeight());
+		final EFTEMj_ComputePool.IndexTask correctRow =
+			new EFTEMj_ComputePool.IndexTask()
+		{
 
-					@Override
-					public void run() {
-						for (int x1 = 0; x1 < outputProcessor.getWidth(); x1++) {
-							final float intensity = intensityCorrection.getIntensity(x1,
-								x2Temp);
-							outputProcessor.setf(x1, x2Temp, intensity);
-						}
-						updateProgress();
+				@Override
+				public void run(final int x2) {
+					if (progress.isCancelled()) return;
+					for (int x1 = 0; x1 < outputProcessor.getWidth(); x1++) {
+						final float intensity = intensityCorrection.getIntensity(x1, x2);
+						outputProcessor.setf(x1, x2, intensity);
 					}
-				});
-			}
-			executorService.shutdown();
-			try {
-				executorService.awaitTermination(30, TimeUnit.MINUTES);
+					progress.step();
+				}
+			};
+		try {
+			if (EFTEMj.debugLevel == EFTEMj.DEBUG_FULL) {
+				for (int x2 = 0; x2 < outputProcessor.getHeight(); x2++) {
+					correctRow.run(x2);
+				}
 			}
-			catch (final InterruptedException e) {
-				e.printStackTrace();
+			else {
+				EFTEMj_ComputePool.forEach(outputProcessor.getHeight(), correctRow);
 			}
 		}
+		finally {
+			progress.finish();
+		}
+		if (progress.isCancelled()) {
+			outputImage = null;
+			canceled();
+		}
 	}
 
 	/**
@@ -255,9 +247,12 @@ public ImagePlus correctImage(final ImagePlus input_image,
 	 * of a spectrum.
 	 * </p>
 	 *
+	 * @param executorService is used to fit the polynomial in parallel.
 	 * @return a polynomial that fits the given data points
 	 */
-	private SR_EELS_Polynomial_2D getFunctionBorders() {
+	private SR_EELS_Polynomial_2D getFunctionBorders(
+		final ExecutorService executorService)
+	{
 		final DataImporter importer = new DataImporter(pathBorders, true);
 		final double[][] vals =
 			new double[importer.vals.length][importer.vals[0].length];
@@ -278,11 +273,22 @@ private SR_EELS_Polynomial_2D getFunctionBorders() {
 		final double[] a_fit = new double[(m + 1) * (n + 1)];
 		Arrays.fill(a_fit, 1.);
 		final LMA lma = new LMA(func, a_fit, vals);
+		lma.setExecutorService(executorService);
+		LMAStatistics statistics = null;
+		if (EFTEMj.debugLevel >= EFTEMj.DEBUG_LOGGING) {
+			statistics = new LMAStatistics();
+			lma.setListener(statistics);
+		}
 		lma.fit();
+		if (statistics != null) {
+			EFTEMj_Debug.log(statistics.getSummary(), false);
+		}
+		final SR_EELS_Polynomial_2D fittedFunc = new SR_EELS_Polynomial_2D(m, n,
+			a_fit);
 		if (true) {
-			IJ.log(func.compareWithGnuplot(SR_EELS_Polynomial_2D.BORDERS));
+			IJ.log(fittedFunc.compareWithGnuplot(SR_EELS_Polynomial_2D.BORDERS));
 		}
-		return new SR_EELS_Polynomial_2D(m, n, a_fit);
+		return fittedFunc;
 	}
 
 	/**
@@ -295,9 +301,12 @@ private SR_EELS_Polynomial_2D getFunctionBorders() {
 	 * depending on its position on the camera.
 	 * </p>
 	 *
+	 * @param executorService is used to fit the polynomial in parallel.
 	 * @return a polynomial that fits the given data points
 	 */
-	private SR_EELS_Polynomial_2D getFunctionWidth() {
+	private SR_EELS_Polynomial_2D getFunctionWidth(
+		final ExecutorService executorService)
+	{
 		final DataImporter importer = new DataImporter(pathWidth, false);
 		final double[][] vals =
 			new double[importer.vals.length][importer.vals[0].length];
@@ -318,11 +327,22 @@ private SR_EELS_Polynomial_2D getFunctionWidth() {
 		final double[] b_fit = new double[(m + 1) * (n + 1)];
 		Arrays.fill(b_fit, 1.);
 		final LMA lma = new LMA(func, b_fit, vals);
+		lma.setExecutorService(executorService);
+		LMAStatistics statistics = null;
+		if (EFTEMj.debugLevel >= EFTEMj.DEBUG_LOGGING) {
+			statistics = new LMAStatistics();
+			lma.setListener(statistics);
+		}
 		lma.fit();
+		if (statistics != null) {
+			EFTEMj_Debug.log(statistics.getSummary(), false);
+		}
+		final SR_EELS_Polynomial_2D fittedFunc = new SR_EELS_Polynomial_2D(m, n,
+			b_fit);
 		if (true) {
-			IJ.log(func.compareWithGnuplot(SR_EELS_Polynomial_2D.WIDTH_VS_POS));
+			IJ.log(fittedFunc.compareWithGnuplot(SR_EELS_Polynomial_2D.WIDTH_VS_POS));
 		}
-		return new SR_EELS_Polynomial_2D(m, n, b_fit);
+		return fittedFunc;
 	}
 
 	/*
@@ -458,16 +478,6 @@ public void setNPasses(final int nPasses) {
 		// This method is not used.
 	}
 
-	private static void setupProgress(final int fullProgress) {
-		progressSteps = fullProgress;
-		progress = 0;
-	}
-
-	private static void updateProgress() {
-		progress++;
-		IJ.showProgress(progress, progressSteps);
-	}
-
 	/**
 	 * <p>
 	 * This main method is used for testing. It starts ImageJ, loads a test image
@@ -0,0 +1,190 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package sr_eels;
+
+import eftemj.EFTEMj_ComputePool;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import tools.PoissonRandom;
+
+/**
+ * <p>
+ * Creates a distorted SR-EELS image from the results of a characterisation.
+ * The pathway of each spectrum is described by the polynomial of the borders
+ * (see <code>Borders.txt</code>) and its width by the polynomial of the width
+ * (see <code>Width.txt</code>). Both polynomials use the coordinates of the
+ * SR-EELS correction: The origin is at the centre of the camera and
+ * unbinned pixels are used.
+ * </p>
+ * <p>
+ * Each spectrum has a constant intensity and the borders are anti-aliased,
+ * so the image can be created at any size, e.g. 1k to 16k. The positions and
+ * widths of the spectra are calculated once per column and the rows are
+ * created in parallel by the {@link EFTEMj_ComputePool}. Each row uses its own
+ * random numbers, so the result only depends on the seed and not on the
+ * number of {@link Thread}s.
+ * </p>
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class SyntheticSR_EELSImage {
+
+	private final int width;
+	private final int height;
+	private final SR_EELS_Polynomial_2D bordersFunction;
+	private final SR_EELS_Polynomial_2D widthFunction;
+	private double[] positions;
+	private double counts = 1000;
+	private boolean poissonNoise = true;
+	private long seed;
+
+	/**
+	 * @param width The width of the image. The binning is calculated from the
+	 *          size of the camera (see {@link CameraSetup}).
+	 * @param height The height of the image.
+	 * @param bordersFunction The polynomial that describes the pathway of a
+	 *          spectrum: <code>x2 = f(x1, position)</code>.
+	 * @param widthFunction The polynomial that describes the width of a
+	 *          spectrum: <code>width = g(x1, x2)</code>.
+	 */
+	public SyntheticSR_EELSImage(final int width, final int height,
+		final SR_EELS_Polynomial_2D bordersFunction,
+		final SR_EELS_Polynomial_2D widthFunction)
+	{
+		if (width < 1 || height < 1) throw new IllegalArgumentException(
+			"The size has to be at least 1x1.");
+		this.width = width;
+		this.height = height;
+		this.bordersFunction = bordersFunction;
+		this.widthFunction = widthFunction;
+		setSpectra(6);
+	}
+
+	/**
+	 * Places the given number of spectra at equal distances.
+	 *
+	 * @param count The number of spectra (default 6).
+	 */
+	public void setSpectra(final int count) {
+		final int fullHeight = CameraSetup.getFullHeight();
+		final double[] positions = new double[count];
+		for (int i = 0; i < count; i++) {
+			positions[i] = (double) fullHeight * (i + 1) / (count + 1);
+		}
+		this.positions = positions;
+	}
+
+	/**
+	 * @param positions The positions of the spectra at the camera, like the
+	 *          second column of <code>Borders.txt</code> (unbinned pixels).
+	 */
+	public void setPositions(final double[] positions) {
+		this.positions = positions.clone();
+	}
+
+	/**
+	 * @return The positions of the spectra at the camera (unbinned pixels).
+	 */
+	public double[] getPositions() {
+		return positions.clone();
+	}
+
+	/**
+	 * @param counts The counts of a pixel that is fully covered by a spectrum
+	 *          (default 1000).
+	 */
+	public void setCounts(final double counts) {
+		this.counts = counts;
+	}
+
+	/**
+	 * @param poissonNoise <code>false</code> to create the exact counts
+	 *          (default <code>true</code>).
+	 */
+	public void setPoissonNoise(final boolean poissonNoise) {
+		this.poissonNoise = poissonNoise;
+	}
+
+	/**
+	 * @param seed The seed of the Poisson noise (default 0).
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return A 32-bit image with the distorted spectra.
+	 */
+	public ImagePlus create() {
+		final double binningX = (double) CameraSetup.getFullWidth() / width;
+		final double binningY = (double) CameraSetup.getFullHeight() / height;
+		final double offsetY = CameraSetup.getFullHeight() / 2;
+		/*
+		 * The upper and lower border of each spectrum at each column, in (binned)
+		 * image coordinates.
+		 */
+		final double[][] top = new double[positions.length][width];
+		final double[][] bottom = new double[positions.length][width];
+		EFTEMj_ComputePool.forEach(width, new EFTEMj_ComputePool.IndexTask() {
+
+			@Override
+			public void run(final int x) {
+				final double x1 = (x + 0.5 - width / 2) * binningX;
+				for (int k = 0; k < positions.length; k++) {
+					final double centre = bordersFunction.val(new double[] { x1,
+						positions[k] - offsetY });
+					final double spectrumWidth = Math.abs(widthFunction.val(
+						new double[] { x1, centre }));
+					top[k][x] = (centre - spectrumWidth / 2) / binningY + height / 2;
+					bottom[k][x] = (centre + spectrumWidth / 2) / binningY + height / 2;
+				}
+			}
+		});
+		final FloatProcessor fp = new FloatProcessor(width, height);
+		EFTEMj_ComputePool.forEach(height, new EFTEMj_ComputePool.IndexTask() {
+
+			@Override
+			public void run(final int y) {
+				final PoissonRandom random = new PoissonRandom(seed * height + y);
+				for (int x = 0; x < width; x++) {
+					double coverage = 0;
+					for (int k = 0; k < positions.length; k++) {
+						// The fraction of the pixel [y, y + 1) that is covered.
+						coverage += Math.max(0, Math.min(y + 1, bottom[k][x]) - Math.max(y,
+							top[k][x]));
+					}
+					double value = counts * Math.min(1, coverage);
+					if (poissonNoise) value = random.nextPoisson(value);
+					fp.setf(x, y, (float) value);
+				}
+			}
+		});
+		return new ImagePlus("SR-EELS_" + width + "x" + height, fp);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package tools;
+
+/**
+ * A small and fast xorshift random number generator that creates Poisson
+ * distributed counts. It is not thread safe; each {@link Thread} has to use
+ * its own instance. Using a fixed seed for each image row makes the results
+ * independent of the number of {@link Thread}s.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class PoissonRandom {
+
+	/**
+	 * For larger mean values the Poisson distribution is approximated by a
+	 * normal distribution.
+	 */
+	private static final double GAUSSIAN_LIMIT = 30;
+
+	private long state;
+	private double nextGaussian;
+	private boolean hasNextGaussian;
+
+	/**
+	 * @param seed Any value. It is mixed to avoid correlated sequences of
+	 *          neighbouring seeds.
+	 */
+	public PoissonRandom(final long seed) {
+		// SplitMix64 finaliser
+		long z = seed + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		state = z ^ (z >>> 31);
+		if (state == 0) state = 1;
+	}
+
+	/**
+	 * @return A uniformly distributed value in [0, 1).
+	 */
+	public double nextDouble() {
+		state ^= state << 13;
+		state ^= state >>> 7;
+		state ^= state << 17;
+		return (state >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * @return A normally distributed value (Marsaglia polar method).
+	 */
+	public double nextGaussian() {
+		if (hasNextGaussian) {
+			hasNextGaussian = false;
+			return nextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		}
+		while (s >= 1 || s == 0);
+		final double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+		nextGaussian = v2 * multiplier;
+		hasNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/**
+	 * Small mean values use Knuth's multiplication method. For mean values
+	 * larger than 30 a rounded normal distribution is used.
+	 *
+	 * @param mean The expectation value. Negative values are treated as 0.
+	 * @return A Poisson distributed count.
+	 */
+	public double nextPoisson(final double mean) {
+		if (mean <= 0) return 0;
+		if (mean > GAUSSIAN_LIMIT) {
+			return Math.max(0, Math.floor(mean + Math.sqrt(mean) * nextGaussian() +
+				0.5));
+		}
+		final double limit = Math.exp(-mean);
+		double product = nextDouble();
+		int count = 0;
+		while (product > limit) {
+			product *= nextDouble();
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import elemental_map.ElementalMapping.AVAILABLE_METHODS;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+/**
+ * Tests when {@link ElementalMapping} takes r and a from a
+ * {@link BackgroundFitCache}. The cache must only be used if the pre-edge
+ * images, the fit method and its parameters are the same.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class BackgroundFitCacheTest {
+
+	private static final int SIZE = 16;
+	private static final float[] ENERGY_LOSSES = { 617, 672, 694, 717, 740 };
+	/**
+	 * Both edges have the same pre-edge images.
+	 */
+	private static final float EDGE = 700;
+	private static final float OTHER_EDGE = 710;
+	private static final float EPSILON = 1e-6f;
+
+	private final ImagePlus stack = createStack();
+
+	@Test
+	public void testLeastRecentlyUsed() {
+		final BackgroundFitCache cache = new BackgroundFitCache(2);
+		final BackgroundFitCache.Entry first = createEntry();
+		final BackgroundFitCache.Entry second = createEntry();
+		cache.put("first", first);
+		cache.put("second", second);
+		assertSame(first, cache.get("first"));
+		// "second" is the least recently used entry now.
+		cache.put("third", createEntry());
+		assertNull(cache.get("second"));
+		assertSame(first, cache.get("first"));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testClear() {
+		final BackgroundFitCache cache = new BackgroundFitCache();
+		cache.put("key", createEntry());
+		cache.clear();
+		assertNull(cache.get("key"));
+		final ElementalMapping mapping = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		mapping.startCalculation();
+		cache.clear();
+		createMapping(cache, EDGE, AVAILABLE_METHODS.MLE).startCalculation();
+		assertEquals(0, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void testOtherEdge() {
+		final BackgroundFitCache cache = new BackgroundFitCache();
+		createMapping(cache, EDGE, AVAILABLE_METHODS.MLE).startCalculation();
+		final ElementalMapping mapping = createMapping(cache, OTHER_EDGE,
+			AVAILABLE_METHODS.MLE);
+		mapping.startCalculation();
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertTrue(mapping.getIterationStatistics().contains("cache"));
+	}
+
+	@Test
+	public void testOtherPreEdgeImages() {
+		final BackgroundFitCache cache = new BackgroundFitCache();
+		createMapping(cache, EDGE, AVAILABLE_METHODS.MLE).startCalculation();
+		// 694 eV is a post-edge image now.
+		createMapping(cache, 680, AVAILABLE_METHODS.MLE).startCalculation();
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testOtherParameters() {
+		final BackgroundFitCache cache = new BackgroundFitCache(16);
+		createMapping(cache, EDGE, AVAILABLE_METHODS.MLE).startCalculation();
+		createMapping(cache, EDGE, AVAILABLE_METHODS.LSE).startCalculation();
+		final ElementalMapping epsilon = new ElementalMapping(ENERGY_LOSSES,
+			stack, EDGE, EPSILON / 10, AVAILABLE_METHODS.MLE);
+		epsilon.setFitCache(cache);
+		epsilon.startCalculation();
+		final ElementalMapping threshold = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		threshold.setThreshold(10);
+		threshold.startCalculation();
+		final ElementalMapping localSummation = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		localSummation.setLocalSummation(3);
+		localSummation.startCalculation();
+		final ElementalMapping warmStart = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		warmStart.setWarmStart(true);
+		warmStart.startCalculation();
+		final ElementalMapping kernel = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		kernel.setUseKernel(false);
+		kernel.startCalculation();
+		assertEquals(0, cache.getHits());
+		assertEquals(7, cache.getMisses());
+		// All calculations are cached.
+		createMapping(cache, OTHER_EDGE, AVAILABLE_METHODS.LSE)
+			.startCalculation();
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testNotCached() {
+		final BackgroundFitCache cache = new BackgroundFitCache();
+		final ElementalMapping masked = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		final ByteProcessor mask = new ByteProcessor(SIZE, SIZE);
+		mask.setValue(255);
+		mask.fill();
+		masked.setMask(mask);
+		masked.startCalculation();
+		final ElementalMapping bootstrap = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.MLE);
+		bootstrap.setBootstrapReplicates(2);
+		bootstrap.startCalculation();
+		final ElementalMapping model = createMapping(cache, EDGE,
+			AVAILABLE_METHODS.LSE);
+		model.setBackgroundModel(BackgroundModel.EXPONENTIAL);
+		model.startCalculation();
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+
+	private ElementalMapping createMapping(final BackgroundFitCache cache,
+		final float edge, final AVAILABLE_METHODS method)
+	{
+		final ElementalMapping mapping = new ElementalMapping(ENERGY_LOSSES, stack,
+			edge, EPSILON, method);
+		mapping.setFitCache(cache);
+		return mapping;
+	}
+
+	private static BackgroundFitCache.Entry createEntry() {
+		return new BackgroundFitCache.Entry(new float[1], new float[1],
+			new byte[1], null);
+	}
+
+	/**
+	 * @return A power law background with r = 3 and Poisson like noise. The
+	 *         counts are about 1000 at the highest energy loss.
+	 */
+	private static ImagePlus createStack() {
+		final Random random = new Random(42);
+		final ImageStack imageStack = new ImageStack(SIZE, SIZE);
+		for (final float energyLoss : ENERGY_LOSSES) {
+			final float[] pixels = new float[SIZE * SIZE];
+			for (int i = 0; i < pixels.length; i++) {
+				final double counts = 1000 * Math.pow(energyLoss / 740.0, -3);
+				pixels[i] = (float) (counts + Math.sqrt(counts) * random
+					.nextGaussian());
+			}
+			imageStack.addSlice(energyLoss + "eV", new FloatProcessor(SIZE, SIZE,
+				pixels));
+		}
+		return new ImagePlus("test", imageStack);
+	}
+}
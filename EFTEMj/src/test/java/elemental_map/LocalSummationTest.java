@@ -0,0 +1,141 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/**
+ * Compares the summed-area tables of {@link LocalSummation} with sums over the
+ * clipped neighbourhood of each pixel. Odd and even edge lengths are tested, as
+ * well as neighbourhoods that are larger than the image.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class LocalSummationTest {
+
+	private static final int WIDTH = 7;
+	private static final int HEIGHT = 5;
+	private static final int SLICES = 3;
+	private static final int[] SIZES = { 1, 2, 3, 4, 9 };
+
+	@Test
+	public void testSum() {
+		final ImagePlus stack = createStack();
+		for (final int size : SIZES) {
+			final ImagePlus summed = LocalSummation.sum(stack, size);
+			assertEquals(SLICES, summed.getStackSize());
+			for (int z = 1; z <= SLICES; z++) {
+				// The counts are integers, so the float sums are exact.
+				assertArrayEquals("Slice " + z + ", k = " + size, sumNeighbourhoods(
+					(float[]) stack.getStack().getPixels(z), size), (float[]) summed
+						.getStack().getPixels(z), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testPixelCount() {
+		final float[] ones = new float[WIDTH * HEIGHT];
+		for (int i = 0; i < ones.length; i++) {
+			ones[i] = 1;
+		}
+		for (final int size : SIZES) {
+			final float[] counts = sumNeighbourhoods(ones, size);
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					assertEquals("(" + x + ", " + y + "), k = " + size, (int) counts[y *
+						WIDTH + x], LocalSummation.getPixelCount(WIDTH, HEIGHT, size, x,
+							y));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLabelsAndCalibration() {
+		final ImagePlus stack = createStack();
+		final Calibration calibration = stack.getCalibration();
+		calibration.pixelWidth = 0.5;
+		calibration.setUnit("nm");
+		final ImagePlus summed = LocalSummation.sum(stack, 3);
+		for (int z = 1; z <= SLICES; z++) {
+			assertEquals(stack.getStack().getSliceLabel(z), summed.getStack()
+				.getSliceLabel(z));
+		}
+		assertEquals(0.5, summed.getCalibration().pixelWidth, 0);
+		assertEquals("nm", summed.getCalibration().getUnit());
+	}
+
+	private static ImagePlus createStack() {
+		final Random random = new Random(42);
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < SLICES; z++) {
+			final float[] pixels = new float[WIDTH * HEIGHT];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = random.nextInt(1000);
+			}
+			stack.addSlice((400 + 10 * z) + "eV", new FloatProcessor(WIDTH, HEIGHT,
+				pixels));
+		}
+		return new ImagePlus("test", stack);
+	}
+
+	/**
+	 * The neighbourhood of (x, y) reaches from x - (k - 1) / 2 to x + k / 2
+	 * and is clipped at the borders.
+	 */
+	private static float[] sumNeighbourhoods(final float[] pixels,
+		final int size)
+	{
+		final float[] sums = new float[WIDTH * HEIGHT];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				double sum = 0;
+				for (int j = y - (size - 1) / 2; j <= y + size / 2; j++) {
+					for (int i = x - (size - 1) / 2; i <= x + size / 2; i++) {
+						if (i >= 0 && i < WIDTH && j >= 0 && j < HEIGHT) {
+							sum += pixels[j * WIDTH + i];
+						}
+					}
+				}
+				sums[y * WIDTH + x] = (float) sum;
+			}
+		}
+		return sums;
+	}
+}
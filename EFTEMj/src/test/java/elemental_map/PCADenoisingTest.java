@@ -0,0 +1,136 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * Compares the covariance of {@link PCADenoising}, which merges the centred
+ * sums of all tiles, with a covariance that is calculated in two passes over
+ * all pixels. The stack is higher than one tile and the counts have a large
+ * offset, where raw sums of squares lose their precision.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class PCADenoisingTest {
+
+	private static final int WIDTH = 50;
+	/**
+	 * More than two tiles, the last one is not complete.
+	 */
+	private static final int HEIGHT = 150;
+	private static final int SLICES = 5;
+	private static final double OFFSET = 1e6;
+
+	private final ImagePlus imp;
+
+	public PCADenoisingTest() {
+		final Random random = new Random(42);
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < SLICES; z++) {
+			final float[] pixels = new float[WIDTH * HEIGHT];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (float) (OFFSET + (i % WIDTH) * (z + 1) + 10 * random
+					.nextGaussian());
+			}
+			stack.addSlice("slice " + z, new FloatProcessor(WIDTH, HEIGHT, pixels));
+		}
+		imp = new ImagePlus("test", stack);
+	}
+
+	@Test
+	public void testEigenvalues() {
+		final PCADenoising pca = new PCADenoising(imp);
+		pca.setPoissonScaling(false);
+		pca.denoise();
+		final double[] eigenvalues = pca.getEigenvalues();
+		final double[] expected = calculateCovariance().eig()
+			.getRealEigenvalues();
+		Arrays.sort(expected);
+		for (int i = 0; i < SLICES; i++) {
+			// The eigenvalues of PCADenoising are sorted in descending order.
+			assertEquals("Eigenvalue " + i, expected[SLICES - 1 - i], eigenvalues[i],
+				1e-9 * expected[SLICES - 1]);
+		}
+	}
+
+	@Test
+	public void testAllComponents() {
+		final PCADenoising pca = new PCADenoising(imp);
+		pca.setComponents(SLICES);
+		final ImagePlus denoised = pca.denoise();
+		for (int z = 1; z <= SLICES; z++) {
+			final float[] expected = (float[]) imp.getStack().getPixels(z);
+			final float[] pixels = (float[]) denoised.getStack().getPixels(z);
+			for (int i = 0; i < pixels.length; i++) {
+				assertEquals("Pixel " + i + " of slice " + z, expected[i], pixels[i],
+					1e-6 * OFFSET);
+			}
+		}
+	}
+
+	/**
+	 * @return The covariance of the slices, calculated from the mean of each
+	 *         slice in a second pass.
+	 */
+	private Matrix calculateCovariance() {
+		final int length = WIDTH * HEIGHT;
+		final double[] means = new double[SLICES];
+		for (int z = 0; z < SLICES; z++) {
+			final float[] pixels = (float[]) imp.getStack().getPixels(z + 1);
+			for (int i = 0; i < length; i++) {
+				means[z] += pixels[i];
+			}
+			means[z] /= length;
+		}
+		final Matrix covariance = new Matrix(SLICES, SLICES);
+		for (int z1 = 0; z1 < SLICES; z1++) {
+			final float[] pixels1 = (float[]) imp.getStack().getPixels(z1 + 1);
+			for (int z2 = 0; z2 <= z1; z2++) {
+				final float[] pixels2 = (float[]) imp.getStack().getPixels(z2 + 1);
+				double sum = 0;
+				for (int i = 0; i < length; i++) {
+					sum += (pixels1[i] - means[z1]) * (pixels2[i] - means[z2]);
+				}
+				covariance.set(z1, z2, sum / (length - 1));
+				covariance.set(z2, z1, sum / (length - 1));
+			}
+		}
+		return covariance;
+	}
+}
@@ -0,0 +1,179 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package elemental_map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the row kernels ({@link PowerLawKernel} and the compiled
+ * {@link BackgroundModel#POWER_LAW}) with the fit of single pixels by
+ * {@link PowerLawFit_MLE} and {@link PowerLawFit_LSE}. The pre-edge counts
+ * have Poisson noise; the lowest counts cause some fits to fail, so the error
+ * codes are compared too.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class PowerLawKernelTest {
+
+	private static final int SIZE = 64;
+	private static final double EPSILON = 1e-6;
+	/**
+	 * The relative tolerance of r and a. The kernels use other sums than the
+	 * single pixel fits, so the results are not bit identical. For r &lt; 1 the
+	 * tolerance is absolute.
+	 */
+	private static final double TOLERANCE = 1e-5;
+
+	private final double[] preEdgeEnergyLosses = { 617, 672, 694 };
+	private final double[] postEdgeEnergyLosses = { 717 };
+	/**
+	 * The pre-edge counts of all pixels (<code>counts[i][pixel]</code>).
+	 */
+	private final double[][] counts;
+	private final int length = SIZE * SIZE;
+
+	public PowerLawKernelTest() {
+		final Random random = new Random(42);
+		counts = new double[preEdgeEnergyLosses.length][length];
+		for (int y = 0; y < SIZE; y++) {
+			// The counts of the first image are between 2 and 1000.
+			final double first = 2 + 998.0 * y / (SIZE - 1);
+			for (int x = 0; x < SIZE; x++) {
+				final double r = 2 + 3.0 * x / (SIZE - 1);
+				for (int i = 0; i < counts.length; i++) {
+					counts[i][y * SIZE + x] = nextPoisson(random, first * Math.pow(
+						preEdgeEnergyLosses[i] / preEdgeEnergyLosses[0], -r));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFitMLE() {
+		final double[] r = new double[length];
+		final double[] a = new double[length];
+		final int[] errorCodes = new int[length];
+		new PowerLawKernel(preEdgeEnergyLosses, EPSILON).fitMLE(counts, length, r,
+			a, errorCodes);
+		for (int x = 0; x < length; x++) {
+			final PowerLawFit fit = new PowerLawFit_MLE(preEdgeEnergyLosses,
+				getPixel(x), EPSILON);
+			fit.doFit();
+			assertResult(x, fit, r[x], a[x], errorCodes[x]);
+		}
+	}
+
+	@Test
+	public void testFitLSE() {
+		final double[] r = new double[length];
+		final double[] a = new double[length];
+		final int[] errorCodes = new int[length];
+		new PowerLawKernel(preEdgeEnergyLosses, EPSILON).fitLSE(counts, length, r,
+			a, errorCodes);
+		int failed = 0;
+		for (int x = 0; x < length; x++) {
+			final PowerLawFit fit = new PowerLawFit_LSE(preEdgeEnergyLosses,
+				getPixel(x), EPSILON);
+			fit.doFit();
+			assertResult(x, fit, r[x], a[x], errorCodes[x]);
+			if (errorCodes[x] != PowerLawFit.ERROR_NONE) failed++;
+		}
+		assertTrue("Some pixels must fail to test the error codes.", failed > 0);
+	}
+
+	@Test
+	public void testPowerLawModel() {
+		final BackgroundKernel kernel = BackgroundModel.POWER_LAW.compile(
+			preEdgeEnergyLosses, postEdgeEnergyLosses);
+		final double[][] parameters = new double[kernel
+			.getParameterCount()][length];
+		final int[] errorCodes = new int[length];
+		kernel.fit(counts, length, parameters, errorCodes);
+		final double referenceEnergyLoss = kernel.getReferenceEnergyLoss();
+		for (int x = 0; x < length; x++) {
+			final PowerLawFit fit = new PowerLawFit_LSE(preEdgeEnergyLosses,
+				getPixel(x), EPSILON);
+			fit.doFit();
+			// The model fails with ERROR_R_NAN for all counts that are not
+			// positive.
+			if (fit.getErrorCode() != PowerLawFit.ERROR_NONE) {
+				assertTrue("Error code at pixel " + x,
+					errorCodes[x] != PowerLawFit.ERROR_NONE);
+				continue;
+			}
+			final double r = -parameters[1][x];
+			final double a = Math.exp(parameters[0][x]) * Math.pow(
+				referenceEnergyLoss, r);
+			assertResult(x, fit, r, a, errorCodes[x]);
+		}
+	}
+
+	private double[] getPixel(final int x) {
+		final double[] pixel = new double[counts.length];
+		for (int i = 0; i < pixel.length; i++) {
+			pixel[i] = counts[i][x];
+		}
+		return pixel;
+	}
+
+	/**
+	 * Uses the algorithm of Knuth for low counts and a rounded normal
+	 * distribution for all other counts.
+	 */
+	private static double nextPoisson(final Random random, final double mean) {
+		if (mean > 30) {
+			return Math.max(0, Math.round(mean + Math.sqrt(mean) * random
+				.nextGaussian()));
+		}
+		final double limit = Math.exp(-mean);
+		int k = 0;
+		double p = random.nextDouble();
+		while (p > limit) {
+			k++;
+			p *= random.nextDouble();
+		}
+		return k;
+	}
+
+	private static void assertResult(final int x, final PowerLawFit expected,
+		final double r, final double a, final int errorCode)
+	{
+		assertEquals("Error code at pixel " + x, expected.getErrorCode(),
+			errorCode);
+		if (errorCode != PowerLawFit.ERROR_NONE) return;
+		assertEquals("r at pixel " + x, expected.getR(), r, TOLERANCE * Math.max(1,
+			Math.abs(expected.getR())));
+		assertEquals("a at pixel " + x, expected.getA(), a, TOLERANCE * Math.abs(
+			expected.getA()));
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package libs.lma;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import elemental_map.PowerLawFit_LMA;
+
+/**
+ * Compares {@link BatchLMA} with a {@link LMA} for each problem. The power law
+ * of {@link PowerLawFit_LMA} is fitted to noisy counts at normalised energy
+ * losses, like the LMA of the elemental mapping does.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class BatchLMATest {
+
+	private static final double[] X_VALUES = { 0.9, 0.96, 1.02, 1.1 };
+	private static final int PROBLEMS = 200;
+	/**
+	 * Both fits stop at slightly different iterations, so the results are
+	 * compared with a relative tolerance.
+	 */
+	private static final double TOLERANCE = 1e-6;
+
+	private final LMAFunction function = new PowerLawFit_LMA.PowerLawFunction();
+
+	@Test
+	public void testFitMatchesLMA() {
+		final double[][] yValues = createCounts(new Random(42));
+		final double[][] parameters = createStartValues();
+		final double[] chi2 = new double[PROBLEMS];
+		final int[] iterations = new int[PROBLEMS];
+		final BatchLMA batchLMA = new BatchLMA(function, X_VALUES);
+		batchLMA.minDeltaChi2 = 1e-12;
+		assertEquals("Failed fits", 0, batchLMA.fit(yValues, parameters, chi2,
+			iterations));
+		for (int p = 0; p < PROBLEMS; p++) {
+			final double[][] dataPoints = new double[2][X_VALUES.length];
+			for (int k = 0; k < X_VALUES.length; k++) {
+				dataPoints[0][k] = X_VALUES[k];
+				dataPoints[1][k] = yValues[k][p];
+			}
+			final LMA lma = new LMA(function, new double[] { 100, 4 }, dataPoints);
+			lma.fit(batchLMA.lambda, 1e-12, batchLMA.maxIterations);
+			assertEquals("b of problem " + p, lma.parameters[0], parameters[0][p],
+				TOLERANCE * Math.abs(lma.parameters[0]));
+			assertEquals("r of problem " + p, lma.parameters[1], parameters[1][p],
+				TOLERANCE * Math.abs(lma.parameters[1]));
+			assertEquals("chi2 of problem " + p, lma.chi2, chi2[p], TOLERANCE *
+				Math.max(1, lma.chi2));
+		}
+	}
+
+	@Test
+	public void testTooFewXValues() {
+		// A single point is fitted exactly by the start value of b, but r is not
+		// determined.
+		final BatchLMA batchLMA = new BatchLMA(function, new double[] { 1 });
+		final double[][] parameters = { { 100, 100 }, { 4, 4 } };
+		final double[] chi2 = new double[2];
+		final int[] iterations = new int[2];
+		assertEquals(2, batchLMA.fit(new double[][] { { 100, 50 } }, parameters,
+			chi2, iterations));
+		for (int p = 0; p < 2; p++) {
+			assertEquals(BatchLMA.FAILED, iterations[p]);
+			assertEquals("chi2", Double.NaN, chi2[p], 0);
+		}
+	}
+
+	@Test
+	public void testIterationLimit() {
+		final double[][] parameters = createStartValues();
+		final double[] chi2 = new double[PROBLEMS];
+		final int[] iterations = new int[PROBLEMS];
+		final BatchLMA batchLMA = new BatchLMA(function, X_VALUES);
+		batchLMA.minDeltaChi2 = 0;
+		batchLMA.maxIterations = 2;
+		assertEquals(PROBLEMS, batchLMA.fit(createCounts(new Random(42)),
+			parameters, chi2, iterations));
+		for (int p = 0; p < PROBLEMS; p++) {
+			assertEquals(BatchLMA.FAILED, iterations[p]);
+		}
+	}
+
+	/**
+	 * @return Counts of power laws with r between 2 and 5 and a Gaussian noise
+	 *         with the variance of Poisson noise (<code>y[k][problem]</code>).
+	 */
+	private static double[][] createCounts(final Random random) {
+		final double[][] yValues = new double[X_VALUES.length][PROBLEMS];
+		for (int p = 0; p < PROBLEMS; p++) {
+			final double b = 200 + 10 * p;
+			final double r = 2 + 3.0 * p / PROBLEMS;
+			for (int k = 0; k < X_VALUES.length; k++) {
+				final double counts = b * Math.pow(X_VALUES[k], -r);
+				yValues[k][p] = counts + Math.sqrt(counts) * random.nextGaussian();
+			}
+		}
+		return yValues;
+	}
+
+	private static double[][] createStartValues() {
+		final double[][] parameters = new double[2][PROBLEMS];
+		for (int p = 0; p < PROBLEMS; p++) {
+			parameters[0][p] = 100;
+			parameters[1][p] = 4;
+		}
+		return parameters;
+	}
+}
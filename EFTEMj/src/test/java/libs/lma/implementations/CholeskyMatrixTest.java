@@ -0,0 +1,247 @@
+/**
+ * EFTEMj - Processing of Energy Filtering TEM images with ImageJ
+ *
+ * Copyright (c) 2014, Michael Entrup b. Epping <michael.entrup@wwu.de>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package libs.lma.implementations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+import libs.lma.LMA;
+import libs.lma.LMAMatrix;
+import libs.lma.LMAMultiDimFunction;
+
+/**
+ * Compares {@link CholeskyMatrix#solve} with the inversion of a
+ * {@link JAMAMatrix}, which has been used by the {@link LMA} before. The
+ * fallback of {@link LMA} for an {@link LMAMatrix} that can't solve the
+ * equations is tested as well.
+ *
+ * @author Michael Entrup b. Epping <michael.entrup@wwu.de>
+ */
+public class CholeskyMatrixTest {
+
+	private static final double TOLERANCE = 1e-9;
+
+	@Test
+	public void testSolvePositiveDefinite() {
+		final Random random = new Random(42);
+		for (int size = 1; size <= 6; size++) {
+			// A^T A + I is symmetric and positive definite.
+			final Matrix a = new Matrix(size, size);
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					a.set(i, j, random.nextGaussian());
+				}
+			}
+			final double[][] elements = a.transpose().times(a).plus(Matrix.identity(
+				size, size)).getArray();
+			assertSolution(elements, randomVector(random, size));
+		}
+	}
+
+	@Test
+	public void testSolveIndefinite() {
+		// The Cholesky decomposition fails, so the LU decomposition is used.
+		final double[][] elements = { { 1, 2, 0 }, { 2, 1, 3 }, { 0, 3, -2 } };
+		assertSolution(elements, new double[] { 1, -2, 0.5 });
+	}
+
+	@Test
+	public void testSolveAfterSetElement() {
+		final CholeskyMatrix matrix = create(new double[][] { { 4, 1 }, { 1,
+			3 } });
+		final double[] result = new double[2];
+		matrix.solve(new double[] { 1, 2 }, result);
+		// The decomposition must not be reused after an element has changed.
+		matrix.setElement(0, 0, 2);
+		matrix.solve(new double[] { 1, 2 }, result);
+		assertArrayEquals(new double[] { 0.2, 0.6 }, result, TOLERANCE);
+	}
+
+	@Test(expected = LMAMatrix.InvertException.class)
+	public void testSolveSingular() {
+		create(new double[][] { { 1, 2 }, { 2, 4 } }).solve(new double[] { 1,
+			1 }, new double[2]);
+	}
+
+	@Test
+	public void testCovarianceWithoutSolve() {
+		final double[][] x = new double[20][1];
+		final double[] y = new double[x.length];
+		final Random random = new Random(42);
+		for (int i = 0; i < x.length; i++) {
+			x[i][0] = 0.1 * i;
+			y[i] = 5 * Math.exp(-0.7 * x[i][0]) + 1 + 0.01 * random.nextGaussian();
+		}
+		final LMAMultiDimFunction decay = new ExponentialDecay();
+		final LMA expected = new LMA(decay, new double[] { 1, 1, 0 }, y, x, null,
+			new CholeskyMatrix(3, 3));
+		expected.fit();
+		final PlainMatrix alpha = new PlainMatrix(3);
+		final LMA lma = new LMA(decay, new double[] { 1, 1, 0 }, y, x, null,
+			alpha);
+		lma.fit();
+		assertArrayEquals(expected.parameters, lma.parameters, TOLERANCE);
+		final double[][] previousAlpha = alpha.matrix.getArrayCopy();
+		final double[][] covariance = lma
+			.getCovarianceMatrixOfStandardErrorsInParameters();
+		final double[][] expectedCovariance = expected
+			.getCovarianceMatrixOfStandardErrorsInParameters();
+		for (int i = 0; i < covariance.length; i++) {
+			for (int j = 0; j < covariance.length; j++) {
+				assertEquals(expectedCovariance[i][j], covariance[i][j], TOLERANCE *
+					Math.abs(expectedCovariance[i][j]));
+			}
+			assertArrayEquals("alpha must be restored", previousAlpha[i],
+				alpha.matrix.getArray()[i], 0);
+		}
+	}
+
+	/**
+	 * Checks the result of {@link CholeskyMatrix#solve} against the inverse of
+	 * a {@link JAMAMatrix} and checks that the elements are not changed.
+	 */
+	private static void assertSolution(final double[][] elements,
+		final double[] vector)
+	{
+		final int size = elements.length;
+		final CholeskyMatrix matrix = create(elements);
+		final double[] result = new double[size];
+		matrix.solve(vector, result);
+		final JAMAMatrix inverse = new JAMAMatrix(new Matrix(elements)
+			.getArrayCopy());
+		inverse.invert();
+		final double[] expected = new double[size];
+		inverse.multiply(vector, expected);
+		assertArrayEquals(expected, result, TOLERANCE);
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				assertEquals(elements[i][j], matrix.getElement(i, j), 0);
+			}
+		}
+		// A second call reuses the decomposition.
+		final double[] second = new double[size];
+		matrix.solve(vector, second);
+		assertArrayEquals(result, second, 0);
+	}
+
+	private static CholeskyMatrix create(final double[][] elements) {
+		final CholeskyMatrix matrix = new CholeskyMatrix(elements.length,
+			elements.length);
+		for (int i = 0; i < elements.length; i++) {
+			for (int j = 0; j < elements.length; j++) {
+				matrix.setElement(i, j, elements[i][j]);
+			}
+		}
+		return matrix;
+	}
+
+	private static double[] randomVector(final Random random, final int size) {
+		final double[] vector = new double[size];
+		for (int i = 0; i < size; i++) {
+			vector[i] = random.nextGaussian();
+		}
+		return vector;
+	}
+
+	/**
+	 * y = a<sub>0</sub>&sdot;exp(-a<sub>1</sub>&sdot;x) + a<sub>2</sub>
+	 */
+	private static class ExponentialDecay extends LMAMultiDimFunction {
+
+		@Override
+		public double getY(final double[] x, final double[] a) {
+			return a[0] * Math.exp(-a[1] * x[0]) + a[2];
+		}
+
+		@Override
+		public double getPartialDerivate(final double[] x, final double[] a,
+			final int parameterIndex)
+		{
+			switch (parameterIndex) {
+				case 0:
+					return Math.exp(-a[1] * x[0]);
+				case 1:
+					return -a[0] * x[0] * Math.exp(-a[1] * x[0]);
+				default:
+					return 1;
+			}
+		}
+	}
+
+	/**
+	 * An {@link LMAMatrix} that only implements the methods of the interface,
+	 * like an implementation outside of EFTEMj.
+	 */
+	private static class PlainMatrix implements LMAMatrix {
+
+		private final Matrix matrix;
+
+		private PlainMatrix(final int size) {
+			matrix = new Matrix(size, size);
+		}
+
+		@Override
+		public void invert() throws InvertException {
+			final Matrix inverse;
+			try {
+				inverse = matrix.inverse();
+			}
+			catch (final RuntimeException e) {
+				throw new InvertException(e.getMessage());
+			}
+			matrix.setMatrix(0, matrix.getRowDimension() - 1, 0, matrix
+				.getColumnDimension() - 1, inverse);
+		}
+
+		@Override
+		public void setElement(final int row, final int col, final double value) {
+			matrix.set(row, col, value);
+		}
+
+		@Override
+		public double getElement(final int row, final int col) {
+			return matrix.get(row, col);
+		}
+
+		@Override
+		public void multiply(final double[] vector, final double[] result) {
+			for (int i = 0; i < result.length; i++) {
+				double sum = 0;
+				for (int j = 0; j < vector.length; j++) {
+					sum += matrix.get(i, j) * vector[j];
+				}
+				result[i] = sum;
+			}
+		}
+	}
+}